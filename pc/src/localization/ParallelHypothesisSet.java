@@ -0,0 +1,116 @@
+package localization;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/*******
+ * Set of possible starting states which computes its masks and filters in parallel
+ * on a multi-core JVM, for localizing on large maps offline.
+ * <br><br>
+ * Starting states are split into ranges of columns, which are independent of each other
+ * in a <code>HypothesisSet</code>. Ranges are split in half with fork-join until they are
+ * smaller than a minimum number of columns, and each range is filtered with its own scratch
+ * space. Small maps are filtered sequentially.
+ *
+ * @author Scott Cooper
+ * @since v5
+ * @see HypothesisSet
+ */
+public class ParallelHypothesisSet extends HypothesisSet {
+	private static final int MIN_COLUMNS = 32;		// Fewest columns filtered by a single task
+
+	private final ForkJoinPool pool;
+
+	/****
+	 * Create a new set containing every starting state possible on the provided map
+	 *
+	 * @param map The map to localize on, where the value at (X, Y) is at <code>X * size + Y</code>
+	 * @param size The number of tiles along each side of the map
+	 * @param pool The pool to run tasks in
+	 */
+	public ParallelHypothesisSet(BitSet map, int size, ForkJoinPool pool){
+		super(size);
+		this.pool = pool;
+		pool.invoke(new Init(map, 0, size));
+		reset();
+	}
+
+	/****
+	 * Create a copy of another set of starting states. The masks of the
+	 * map are shared between both sets.
+	 *
+	 * @param other The set to copy
+	 */
+	public ParallelHypothesisSet(ParallelHypothesisSet other){
+		super(other);
+		this.pool = other.pool;
+	}
+
+	@Override
+	int filter(int x, int y, Direction dir, int test, int k, boolean remove){
+		if (size < 2 * MIN_COLUMNS)
+			return super.filter(x, y, dir, test, k, remove);
+		return pool.invoke(new Filter(x, y, dir, test, k, remove, 0, size));
+	}
+
+	/*****
+	 * Computes the masks of a range of columns and rows
+	 */
+	private class Init extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final BitSet map;
+		private final int from, to;
+
+		Init(BitSet map, int from, int to){
+			this.map = map;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute(){
+			if (to - from <= MIN_COLUMNS){
+				initColumns(map, from, to);
+				initRows(map, from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Init(map, from, mid), new Init(map, mid, to));
+		}
+	}
+
+	/*****
+	 * Filters the starting states of a range of columns, returning the number which pass
+	 */
+	private class Filter extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+		private final int x, y, test, k, from, to;
+		private final Direction dir;
+		private final boolean remove;
+
+		Filter(int x, int y, Direction dir, int test, int k, boolean remove, int from, int to){
+			this.x = x;
+			this.y = y;
+			this.dir = dir;
+			this.test = test;
+			this.k = k;
+			this.remove = remove;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Integer compute(){
+			if (to - from <= MIN_COLUMNS)
+				return ParallelHypothesisSet.this.filter(x, y, dir, test, k, remove, from, to, new long[words]);
+
+			int mid = (from + to) >>> 1;
+			Filter left = new Filter(x, y, dir, test, k, remove, from, mid);
+			left.fork();
+			int right = new Filter(x, y, dir, test, k, remove, mid, to).compute();
+			return left.join() + right;
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package localization;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+
+import lejos.robotics.RangeFinder;
+import lejos.robotics.localization.PoseProvider;
+import lejos.robotics.navigation.RotateMoveController;
+
+/*******
+ * Localizer whose possible starting states are generated and filtered in parallel,
+ * for localizing on large maps offline on a multi-core JVM.
+ *
+ * @author Scott Cooper
+ * @since v5
+ * @see ParallelHypothesisSet
+ */
+public class ParallelLocalizer extends Localizer {
+	private final ForkJoinPool pool;
+
+	/****
+	 * Create a new parallel localizer
+	 *
+	 * @param pilot The pilot used to move
+	 * @param us_scanner The range finder used to check if the robot is blocked
+	 * @param odo The pose provider to correct
+	 * @param map The map to localize on, where the value at (X, Y) is at <code>X * size + Y</code>
+	 * @param size The number of tiles along each side of the map
+	 * @param pool The pool to generate and filter starting states in
+	 */
+	public ParallelLocalizer(RotateMoveController pilot, RangeFinder us_scanner, PoseProvider odo, BitSet map, int size, ForkJoinPool pool){
+		super(pilot, us_scanner, odo, map, size);
+		this.pool = pool;
+	}
+
+	@Override
+	HypothesisSet generatePossibleStates(){
+		return new ParallelHypothesisSet(getMap(), getSize(), pool);}
+}
@@ -0,0 +1,81 @@
+package simulation;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+
+import localization.LocalizationPolicy;
+import main.Main;
+import main.Maps;
+import navigation.MotionProfile;
+
+/*****
+ * Compiles the localization policy of competition maps offline and saves each as
+ * <code>policy&lt;n&gt;.dat</code>, to be uploaded to the robot with <code>nxjupload</code>.
+ * <code>Main</code> loads the policy of the selected map when localizing in
+ * <code>Mode.POLICY</code>, as compiling it on the NXT takes too long and too much memory.
+ * <br><br>
+ * Policies are compiled for the map with the pickup area blocked, as it is while the robot
+ * localizes, and with the motion profile the robot starts with at <code>Main.TRAVEL_SPEED</code>
+ * and <code>Main.ROTATE_SPEED</code>. The n in the file name is the map number counted from 0,
+ * one less than the number shown on the robot and given here.
+ * <br><br>
+ * Usage: <code>CompilePolicies [-maps 1,2,...] [-lookahead n] [-dir directory]</code>
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class CompilePolicies {
+	private static int[] mapNumbers = {1, 2, 3, 4, 5, 6};
+	private static int lookahead = 2;
+	private static File dir = new File(".");
+
+	/***
+	 * Private constructor to prevent external instantiation
+	 */
+	private CompilePolicies(){};
+
+	public static void main(String[] args){
+		for (int i = 0; i < args.length; i++){
+			String arg = args[i];
+			if (i + 1 >= args.length) usage();
+			else if (arg.equals("-maps")) mapNumbers = parseInts(args[++i]);
+			else if (arg.equals("-lookahead")) lookahead = Integer.parseInt(args[++i]);
+			else if (arg.equals("-dir")) dir = new File(args[++i]);
+			else usage();
+		}
+
+		for (int number : mapNumbers){
+			BitSet map = (BitSet)Maps.get(number - 1).clone();
+			for (int tile : Maps.PICKUP_AREA) map.set(tile);
+
+			long start = System.currentTimeMillis();
+			LocalizationPolicy policy = LocalizationPolicy.compile(map, Main.NUM_TILES,
+					new MotionProfile(Main.TRAVEL_SPEED, Main.ROTATE_SPEED), lookahead);
+			File file = new File(dir, "policy" + (number - 1) + ".dat");
+			try {
+				DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+				policy.write(out);
+				out.close();
+			} catch (IOException e){
+				throw new RuntimeException("Could not write " + file, e);
+			}
+			System.out.printf("Map %d: %d nodes in %d ms, written to %s%n", number, policy.size(),
+					System.currentTimeMillis() - start, file);
+		}
+	}
+
+	private static int[] parseInts(String list){
+		String[] s = list.split(",");
+		int[] v = new int[s.length];
+		for (int i = 0; i < s.length; i++) v[i] = Integer.parseInt(s[i].trim());
+		return v;
+	}
+
+	private static void usage(){
+		System.err.println("Usage: CompilePolicies [-maps 1,2,...] [-lookahead n] [-dir directory]");
+		System.exit(1);
+	}
+}
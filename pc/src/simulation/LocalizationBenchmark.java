@@ -0,0 +1,241 @@
+package simulation;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import lejos.robotics.navigation.Pose;
+import localization.Direction;
+import localization.HistogramLocalizer;
+import localization.LocalizationPolicy;
+import localization.Localizer;
+import localization.Position;
+import main.Main;
+import main.Maps;
+
+/*****
+ * Runs localization against a <code>SimulatedRobot</code> from every possible starting
+ * state of every competition map, and reports the distribution of the number of
+ * observations, readings, rotations, tiles travelled and simulated time needed.
+ * <br><br>
+ * A run fails if the localizer throws (including collisions and giving up after too
+ * many readings) or if the starting position or final pose it finds is wrong.
+ * Distributions only include runs which succeeded.
+ * <br><br>
+ * Usage: <code>LocalizationBenchmark [-maps 1,2,...] [-modes GREEDY,POLICY,INFORMATION_GAIN,SWEEP,HISTOGRAM]
+ * [-noise 0,0.05,...] [-sigma cm] [-range tiles] [-seed n] [-csv]</code>, where noise is the probability
+ * of an outlier reading and range is the most free tiles read in front of the robot, if readings
+ * are free tile counts rather than blocked or free.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class LocalizationBenchmark {
+	private static final String HISTOGRAM = "HISTOGRAM";
+	private static final double OVERHEAD = 300,		// ms added to every move
+								PING_TIME = 50;		// ms taken by every reading
+	private static final int MAX_READINGS = 2000;	// Readings before a run is abandoned
+
+	private static int[] mapNumbers = {1, 2, 3, 4, 5, 6};
+	private static String[] modes = {"GREEDY", "POLICY", "INFORMATION_GAIN", "SWEEP", HISTOGRAM};
+	private static double[] noise = {0, 0.02, 0.05, 0.1};
+	private static double sigma = 1;
+	private static int range = 0;
+	private static long seed = 1;
+	private static boolean csv = false;
+
+	/***
+	 * Private constructor to prevent external instantiation
+	 */
+	private LocalizationBenchmark(){};
+
+	public static void main(String[] args){
+		for (int i = 0; i < args.length; i++){
+			String arg = args[i];
+			if (arg.equals("-csv")) csv = true;
+			else if (i + 1 >= args.length) usage();
+			else if (arg.equals("-maps")) mapNumbers = parseInts(args[++i]);
+			else if (arg.equals("-modes")) modes = args[++i].toUpperCase().split(",");
+			else if (arg.equals("-noise")) noise = parseDoubles(args[++i]);
+			else if (arg.equals("-sigma")) sigma = Double.parseDouble(args[++i]);
+			else if (arg.equals("-range")) range = Integer.parseInt(args[++i]);
+			else if (arg.equals("-seed")) seed = Long.parseLong(args[++i]);
+			else usage();
+		}
+
+		PrintStream out = System.out;
+		if (csv)
+			out.println("map,mode,noise,runs,failures,obs_p50,obs_p90,obs_max,pings_p50,pings_p90,"
+					+ "rotations_p50,rotations_p90,tiles_p50,tiles_p90,time_p50,time_p90,time_p99,time_max");
+		else
+			out.printf("%-4s %-17s %5s %5s %5s  %-13s %-9s %-9s %-9s %s%n", "map", "mode", "noise", "runs", "fail",
+					"obs 50/90/max", "pings", "rotations", "tiles", "time (s) 50/90/99/max");
+
+		for (int m : mapNumbers){
+			BitSet map = (BitSet)Maps.get(m - 1).clone();
+			LocalizationPolicy policy = null;
+
+			for (String mode : modes){
+				for (double n : noise){
+					SimulatedRobot robot = new SimulatedRobot(map, Main.NUM_TILES, OVERHEAD);
+					SimulatedRangeFinder us = new SimulatedRangeFinder(robot, sigma, n, PING_TIME, MAX_READINGS, seed);
+					Localizer localizer = create(mode, robot, us, map);
+
+					if (mode.equals("POLICY")){
+						if (policy == null)
+							policy = LocalizationPolicy.compile(map, Main.NUM_TILES, localizer.getMotionProfile(), 2);
+						localizer.setPolicy(policy);
+					}
+
+					Result r = run(localizer, robot, us, map);
+					r.print(out, m, mode, n);
+				}
+			}
+		}
+	}
+
+	/****
+	 * Create a localizer for a simulated robot
+	 */
+	private static Localizer create(String mode, SimulatedRobot robot, SimulatedRangeFinder us, BitSet map){
+		Localizer localizer;
+		if (mode.equals(HISTOGRAM))
+			localizer = new HistogramLocalizer(robot, us, robot, map);
+		else {
+			localizer = new Localizer(robot, us, robot, map);
+			localizer.setMode(Localizer.Mode.valueOf(mode));
+		}
+		localizer.setRangeObservations(range);
+		localizer.setSounds(false);
+		localizer.setCorrection(false);
+		localizer.getMotionProfile().setAdaptive(false);	// Simulated moves take no real time
+		return localizer;
+	}
+
+	/****
+	 * Localize from every possible starting state of a map
+	 */
+	private static Result run(Localizer localizer, SimulatedRobot robot, SimulatedRangeFinder us, BitSet map){
+		Result result = new Result(4 * Main.NUM_TILES * Main.NUM_TILES);
+		for (int x = 0; x < Main.NUM_TILES; x++){
+			for (int y = 0; y < Main.NUM_TILES; y++){
+				if (map.get(x * Main.NUM_TILES + y)) continue;
+				for (int d = 0; d < 4; d++){
+					robot.place(x, y, d);
+					us.reset();
+
+					int observations;
+					try {
+						observations = localizer.localize();
+					} catch (RuntimeException e){
+						result.fail();
+						continue;
+					} catch (StackOverflowError e){		// Restarted too many times
+						result.fail();
+						continue;
+					}
+
+					if (!isCorrect(Localizer.getStartingPosition(), x, y, d) || !isCorrect(robot.getPose(), robot))
+						result.fail();
+					else
+						result.add(observations, us.getReadings(), robot.getRotations(), robot.getTiles(), robot.getClock());
+				}
+			}
+		}
+		return result;
+	}
+
+	/****
+	 * Check whether the starting position found is the true starting state
+	 */
+	private static boolean isCorrect(Position start, int x, int y, int d){
+		return start != null && start.getX() == x && start.getY() == y && start.getDir() == Direction.fromValue(d);}
+
+	/****
+	 * Check whether the pose the localizer set is the true pose of the robot
+	 */
+	private static boolean isCorrect(Pose pose, SimulatedRobot robot){
+		float x = robot.getX() * Main.TILE_WIDTH - Main.TILE_WIDTH / 2f,
+			  y = robot.getY() * Main.TILE_WIDTH - Main.TILE_WIDTH / 2f,
+			  heading = 90 + 90 * robot.getDir();
+		float error = Math.abs(((pose.getHeading() - heading) % 360 + 540) % 360 - 180);
+		return Math.abs(pose.getX() - x) < 1 && Math.abs(pose.getY() - y) < 1 && error < 1;
+	}
+
+	private static int[] parseInts(String list){
+		String[] s = list.split(",");
+		int[] v = new int[s.length];
+		for (int i = 0; i < s.length; i++) v[i] = Integer.parseInt(s[i].trim());
+		return v;
+	}
+
+	private static double[] parseDoubles(String list){
+		String[] s = list.split(",");
+		double[] v = new double[s.length];
+		for (int i = 0; i < s.length; i++) v[i] = Double.parseDouble(s[i].trim());
+		return v;
+	}
+
+	private static void usage(){
+		System.err.println("Usage: LocalizationBenchmark [-maps 1,2,...] [-modes GREEDY,POLICY,INFORMATION_GAIN,SWEEP,HISTOGRAM]"
+				+ " [-noise 0,0.05,...] [-sigma cm] [-range tiles] [-seed n] [-csv]");
+		System.exit(1);
+	}
+
+	/*****
+	 * Distributions of the metrics of every successful run of one map, mode and noise level
+	 */
+	private static class Result {
+		private final int[] observations, pings, rotations, tiles;
+		private final double[] time;
+		private int runs, failures;
+
+		Result(int capacity){
+			observations = new int[capacity];
+			pings = new int[capacity];
+			rotations = new int[capacity];
+			tiles = new int[capacity];
+			time = new double[capacity];
+		}
+
+		void fail(){
+			failures++;}
+
+		void add(int observations, int pings, int rotations, int tiles, double time){
+			this.observations[runs] = observations;
+			this.pings[runs] = pings;
+			this.rotations[runs] = rotations;
+			this.tiles[runs] = tiles;
+			this.time[runs] = time / 1000;
+			runs++;
+		}
+
+		void print(PrintStream out, int map, String mode, double noise){
+			int[] o = sorted(observations), p = sorted(pings), r = sorted(rotations), t = sorted(tiles);
+			double[] s = Arrays.copyOf(time, runs);
+			Arrays.sort(s);
+			if (csv)
+				out.printf("%d,%s,%.3f,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%.2f,%.2f,%.2f,%.2f%n", map, mode, noise, runs + failures, failures,
+						pct(o, 50), pct(o, 90), pct(o, 100), pct(p, 50), pct(p, 90), pct(r, 50), pct(r, 90), pct(t, 50), pct(t, 90),
+						pct(s, 50), pct(s, 90), pct(s, 99), pct(s, 100));
+			else
+				out.printf("%-4d %-17s %5.3f %5d %5d  %-13s %-9s %-9s %-9s %.1f/%.1f/%.1f/%.1f%n", map, mode, noise, runs + failures, failures,
+						pct(o, 50) + "/" + pct(o, 90) + "/" + pct(o, 100), pct(p, 50) + "/" + pct(p, 90),
+						pct(r, 50) + "/" + pct(r, 90), pct(t, 50) + "/" + pct(t, 90),
+						pct(s, 50), pct(s, 90), pct(s, 99), pct(s, 100));
+		}
+
+		private int[] sorted(int[] values){
+			int[] s = Arrays.copyOf(values, runs);
+			Arrays.sort(s);
+			return s;
+		}
+
+		/** Nearest rank percentile of sorted values, 0 if there are none */
+		private static int pct(int[] sorted, int percentile){
+			return sorted.length == 0 ? 0 : sorted[Math.max(0, (sorted.length * percentile + 99) / 100 - 1)];}
+
+		private static double pct(double[] sorted, int percentile){
+			return sorted.length == 0 ? 0 : sorted[Math.max(0, (sorted.length * percentile + 99) / 100 - 1)];}
+	}
+}
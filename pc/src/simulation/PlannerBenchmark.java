@@ -0,0 +1,380 @@
+package simulation;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import lejos.robotics.navigation.DestinationUnreachableException;
+import lejos.robotics.navigation.Pose;
+import lejos.robotics.navigation.Waypoint;
+import lejos.robotics.pathfinding.AstarSearchAlgorithm;
+import lejos.robotics.pathfinding.NodePathFinder;
+import lejos.robotics.pathfinding.PathFinder;
+import main.Main;
+import main.Maps;
+import navigation.GridMesh;
+import navigation.HeadingPlanner;
+import navigation.HierarchicalPlanner;
+import navigation.IncrementalPlanner;
+import navigation.MotionProfile;
+import navigation.RouteTable;
+
+/*****
+ * Measures how long regenerating the navigation mesh and finding routes take, and how much
+ * memory they allocate, on every competition map and on larger random maps.
+ * <br><br>
+ * Every benchmark runs its operation a number of times to warm up the JIT, then times each
+ * of a number of operations separately, reporting percentiles of the time per operation and
+ * the mean bytes allocated per operation by the benchmark thread. Route queries cycle through
+ * the same random pairs of free tiles for every planner. Benchmarks are:
+ * <ul>
+ * <li>REGENERATE: <code>GridMesh.regenerate()</code></li>
+ * <li>ASTAR: <code>NodePathFinder</code> with <code>AstarSearchAlgorithm</code> over a <code>GridMesh</code></li>
+ * <li>ADJACENT: ASTAR between random pairs of neighbouring tiles, failing unless the route goes directly</li>
+ * <li>INCREMENTAL: <code>IncrementalPlanner</code> between random pairs, so each query restarts the search</li>
+ * <li>REPAIR: <code>IncrementalPlanner</code> to a fixed goal after blocking or unblocking a random tile, then restoring it</li>
+ * <li>HEADING: <code>HeadingPlanner</code> between random pairs and headings</li>
+ * <li>HIERARCHICAL: <code>HierarchicalPlanner</code> between random pairs, and HIERARCHICAL_REPAIR after
+ * blocking or unblocking a random tile, then restoring it, so each query rebuilds the clusters around it</li>
+ * <li>TABLE_BUILD and TABLE: building a <code>RouteTable</code>, and routes looked up in it</li>
+ * </ul>
+ * Usage: <code>PlannerBenchmark [-maps 1,2,...] [-sizes 50,100,...] [-density p] [-benchmarks REGENERATE,ASTAR,...]
+ * [-warmup n] [-iterations n] [-seed n] [-csv]</code>, where sizes are the sides of random maps, each tile of which
+ * is blocked with probability density.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class PlannerBenchmark {
+	private static final int QUERIES = 256;		// Pairs of tiles cycled through by route queries
+
+	private static int[] mapNumbers = {1, 2, 3, 4, 5, 6};
+	private static int[] sizes = {50, 100, 200};
+	private static double density = 0.2;
+	private static String[] benchmarks = {"REGENERATE", "ASTAR", "ADJACENT", "INCREMENTAL", "REPAIR", "HEADING", "HIERARCHICAL", "HIERARCHICAL_REPAIR", "TABLE_BUILD", "TABLE"};
+	private static int warmup = 200, iterations = 1000;
+	private static long seed = 1;
+	private static boolean csv = false;
+
+	/***
+	 * Private constructor to prevent external instantiation
+	 */
+	private PlannerBenchmark(){};
+
+	public static void main(String[] args){
+		for (int i = 0; i < args.length; i++){
+			String arg = args[i];
+			if (arg.equals("-csv")) csv = true;
+			else if (i + 1 >= args.length) usage();
+			else if (arg.equals("-maps")) mapNumbers = parseInts(args[++i]);
+			else if (arg.equals("-sizes")) sizes = parseInts(args[++i]);
+			else if (arg.equals("-density")) density = Double.parseDouble(args[++i]);
+			else if (arg.equals("-benchmarks")) benchmarks = args[++i].toUpperCase().split(",");
+			else if (arg.equals("-warmup")) warmup = Integer.parseInt(args[++i]);
+			else if (arg.equals("-iterations")) iterations = Integer.parseInt(args[++i]);
+			else if (arg.equals("-seed")) seed = Long.parseLong(args[++i]);
+			else usage();
+		}
+
+		PrintStream out = System.out;
+		if (csv)
+			out.println("benchmark,map,size,ops,failures,mean_us,p50_us,p90_us,p99_us,max_us,alloc_bytes_per_op");
+		else
+			out.printf("%-20s %-8s %5s %6s %5s  %9s %9s %9s %9s %9s  %s%n", "benchmark", "map", "size", "ops", "fail",
+					"mean us", "p50", "p90", "p99", "max", "bytes/op");
+
+		for (int m : mapNumbers)
+			run(out, "map" + m, (BitSet)Maps.get(m - 1).clone(), Main.NUM_TILES);
+
+		Random random = new Random(seed);
+		for (int size : sizes){
+			BitSet map = new BitSet(size * size);
+			for (int i = 0; i < size * size; i++)
+				if (random.nextDouble() < density) map.set(i);
+			run(out, "random", map, size);
+		}
+	}
+
+	/****
+	 * Run every benchmark on a map
+	 */
+	private static void run(PrintStream out, String name, final BitSet map, final int size){
+		final Random random = new Random(seed);
+		final int[] from = new int[QUERIES], to = new int[QUERIES];
+		for (int i = 0; i < QUERIES; i++){
+			from[i] = randomFree(map, size, random);
+			to[i] = randomFree(map, size, random);
+		}
+
+		for (String benchmark : benchmarks){
+			Operation op = create(benchmark, map, size, from, to, random);
+			if (op == null){
+				System.err.println("Skipping " + benchmark + " on " + name + " of size " + size);
+				continue;
+			}
+			measure(op).print(out, benchmark, name, size);
+		}
+	}
+
+	/****
+	 * Create the operation of a benchmark, or null if it can not be run on the map
+	 */
+	private static Operation create(String benchmark, final BitSet map, final int size, final int[] from, final int[] to, final Random random){
+		if (benchmark.equals("REGENERATE")){
+			final GridMesh mesh = new GridMesh(map, size);
+			return new Operation(){
+				public boolean run(int i){
+					mesh.regenerate();
+					return true;
+				}
+			};
+		}
+		if (benchmark.equals("ASTAR")){
+			GridMesh mesh = new GridMesh(map, size);
+			mesh.regenerate();
+			return new Query(new NodePathFinder(new AstarSearchAlgorithm(), mesh), size, from, to, false);
+		}
+		if (benchmark.equals("ADJACENT")){
+			GridMesh mesh = new GridMesh(map, size);
+			mesh.regenerate();
+			final NodePathFinder planner = new NodePathFinder(new AstarSearchAlgorithm(), mesh);
+			final int[] near = new int[QUERIES * 2];
+			for (int i = 0; i < QUERIES; i++){
+				near[i * 2] = randomFree(map, size, random);
+				near[i * 2 + 1] = randomNeighbor(map, size, near[i * 2], random);
+			}
+			return new Operation(){
+				public boolean run(int i){
+					int q = i % QUERIES * 2;
+					if (near[q + 1] < 0) return true;	// No free neighbouring tile
+					Pose start = new Pose(near[q] / size, near[q] % size, 0);
+					try {
+						// The route must be the single tile between them, not through the stored nodes of the tiles
+						float tiles = 0, x = start.getX(), y = start.getY();
+						for (Waypoint w : planner.findRoute(start, new Waypoint(near[q + 1] / size, near[q + 1] % size))){
+							tiles += Math.abs(w.x - x) + Math.abs(w.y - y);
+							x = w.x;
+							y = w.y;
+						}
+						return tiles == 1;
+					} catch (DestinationUnreachableException e){
+						return false;
+					}
+				}
+			};
+		}
+		if (benchmark.equals("INCREMENTAL"))
+			return new Query(new IncrementalPlanner(map, size), size, from, to, false);
+		if (benchmark.equals("HIERARCHICAL"))
+			return new Query(new HierarchicalPlanner(map, size), size, from, to, false);
+		if (benchmark.equals("HIERARCHICAL_REPAIR")){
+			final HierarchicalPlanner planner = new HierarchicalPlanner(map, size);
+			final BitSet current = (BitSet)map.clone();
+			final Query query = new Query(planner, size, from, to, false);
+			return new Operation(){
+				public boolean run(int i){
+					int tile = random.nextInt(size * size);
+					current.flip(tile);
+					planner.setBlocked(tile / size, tile % size, current.get(tile));
+					boolean found = query.run(i);
+					current.flip(tile);
+					planner.setBlocked(tile / size, tile % size, current.get(tile));
+					return found;
+				}
+			};
+		}
+		if (benchmark.equals("HEADING"))
+			return new Query(new HeadingPlanner(map, size, new MotionProfile(20, 90)), size, from, to, true);
+		if (benchmark.equals("REPAIR")){
+			final IncrementalPlanner planner = new IncrementalPlanner(map, size);
+			final BitSet current = (BitSet)map.clone();
+			final Pose start = new Pose(from[0] / size, from[0] % size, 0);
+			final Waypoint goal = new Waypoint(to[0] / size, to[0] % size);
+			return new Operation(){
+				public boolean run(int i){
+					// Flip a random tile other than the start or goal, then flip it back
+					int tile = random.nextInt(size * size);
+					boolean flip = tile != from[0] && tile != to[0];
+					if (flip){
+						current.flip(tile);
+						planner.setBlocked(tile / size, tile % size, current.get(tile));
+					}
+					boolean found;
+					try {
+						found = planner.findRoute(start, goal) != null;
+					} catch (DestinationUnreachableException e){
+						found = false;
+					}
+					if (flip){
+						current.flip(tile);
+						planner.setBlocked(tile / size, tile % size, current.get(tile));
+					}
+					return found;
+				}
+			};
+		}
+		if (benchmark.equals("TABLE_BUILD") || benchmark.equals("TABLE")){
+			final RouteTable table;
+			try {
+				table = RouteTable.build(map, size, 1);
+			} catch (RuntimeException e){		// Too many free tiles
+				return null;
+			}
+			if (benchmark.equals("TABLE_BUILD"))
+				return new Operation(){
+					public boolean run(int i){
+						return RouteTable.build(map, size, 1) != null;}
+				};
+			return new Operation(){
+				public boolean run(int i){
+					int q = i % QUERIES;
+					return table.getRoute(from[q] / size, from[q] % size, to[q] / size, to[q] % size) != null;
+				}
+			};
+		}
+		throw new RuntimeException("Unknown benchmark: " + benchmark);
+	}
+
+	/****
+	 * Time every operation, after warming up
+	 */
+	private static Result measure(Operation op){
+		for (int i = 0; i < warmup; i++)
+			op.run(i);
+
+		long[] ns = new long[iterations];
+		int failures = 0;
+		long allocated = allocatedBytes();
+		for (int i = 0; i < iterations; i++){
+			long start = System.nanoTime();
+			if (!op.run(i)) failures++;
+			ns[i] = System.nanoTime() - start;
+		}
+		allocated = allocated < 0 ? -1 : allocatedBytes() - allocated;
+		return new Result(ns, failures, allocated < 0 ? -1 : allocated / iterations);
+	}
+
+	/****
+	 * Get the bytes allocated by the current thread, or -1 if the JVM does not track it
+	 */
+	private static long allocatedBytes(){
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+		return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static int randomFree(BitSet map, int size, Random random){
+		for (int i = 0; i < 1000; i++){
+			int tile = random.nextInt(size * size);
+			if (!map.get(tile)) return tile;
+		}
+		return 0;
+	}
+
+	/** Get a random free tile next to a tile, or -1 if there is none */
+	private static int randomNeighbor(BitSet map, int size, int tile, Random random){
+		int x = tile / size, y = tile % size, first = random.nextInt(4);
+		for (int d = 0; d < 4; d++){
+			int nx = x, ny = y;
+			switch ((first + d) & 3){
+			case 0: nx++; break;
+			case 1: nx--; break;
+			case 2: ny++; break;
+			case 3: ny--; break;
+			}
+			if (nx >= 0 && nx < size && ny >= 0 && ny < size && !map.get(nx * size + ny)) return nx * size + ny;
+		}
+		return -1;
+	}
+
+	private static int[] parseInts(String list){
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		for (String s : list.split(","))
+			if (!s.trim().isEmpty()) values.add(Integer.parseInt(s.trim()));
+		int[] v = new int[values.size()];
+		for (int i = 0; i < v.length; i++) v[i] = values.get(i);
+		return v;
+	}
+
+	private static void usage(){
+		System.err.println("Usage: PlannerBenchmark [-maps 1,2,...] [-sizes 50,100,...] [-density p] [-benchmarks REGENERATE,ASTAR,...]"
+				+ " [-warmup n] [-iterations n] [-seed n] [-csv]");
+		System.exit(1);
+	}
+
+	/*****
+	 * A single operation of a benchmark
+	 */
+	private interface Operation {
+		/**
+		 * @param i The number of the operation
+		 * @return False iff the operation failed, such as finding no route
+		 */
+		boolean run(int i);
+	}
+
+	/*****
+	 * Route queries between the same pairs of tiles, in tiles
+	 */
+	private static class Query implements Operation {
+		private final PathFinder planner;
+		private final int size;
+		private final int[] from, to;
+		private final boolean headings;		// Whether to start and end at a heading
+
+		Query(PathFinder planner, int size, int[] from, int[] to, boolean headings){
+			this.planner = planner;
+			this.size = size;
+			this.from = from;
+			this.to = to;
+			this.headings = headings;
+		}
+
+		public boolean run(int i){
+			int q = i % QUERIES;
+			Pose start = new Pose(from[q] / size, from[q] % size, headings ? 90 * (i & 3) : 0);
+			Waypoint goal = headings ? new Waypoint(to[q] / size, to[q] % size, 90 * ((i >> 2) & 3))
+									 : new Waypoint(to[q] / size, to[q] % size);
+			try {
+				return planner.findRoute(start, goal) != null;
+			} catch (DestinationUnreachableException e){
+				return false;
+			}
+		}
+	}
+
+	/*****
+	 * Distribution of the time taken by every operation of one benchmark
+	 */
+	private static class Result {
+		private final long[] ns;
+		private final int failures;
+		private final long bytesPerOp;
+
+		Result(long[] ns, int failures, long bytesPerOp){
+			this.ns = ns.clone();
+			Arrays.sort(this.ns);
+			this.failures = failures;
+			this.bytesPerOp = bytesPerOp;
+		}
+
+		void print(PrintStream out, String benchmark, String map, int size){
+			double mean = 0;
+			for (long n : ns) mean += n;
+			mean /= Math.max(1, ns.length) * 1000.0;
+			if (csv)
+				out.printf("%s,%s,%d,%d,%d,%.2f,%.2f,%.2f,%.2f,%.2f,%d%n", benchmark, map, size, ns.length, failures,
+						mean, pct(50), pct(90), pct(99), pct(100), bytesPerOp);
+			else
+				out.printf("%-20s %-8s %5d %6d %5d  %9.2f %9.2f %9.2f %9.2f %9.2f  %d%n", benchmark, map, size, ns.length, failures,
+						mean, pct(50), pct(90), pct(99), pct(100), bytesPerOp);
+		}
+
+		/** Nearest rank percentile in us, 0 if there are none */
+		private double pct(int percentile){
+			return ns.length == 0 ? 0 : ns[Math.max(0, (ns.length * percentile + 99) / 100 - 1)] / 1000.0;}
+	}
+}
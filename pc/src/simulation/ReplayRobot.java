@@ -0,0 +1,332 @@
+package simulation;
+
+import lejos.robotics.RangeFinder;
+import lejos.robotics.localization.PoseProvider;
+import lejos.robotics.navigation.ArcRotateMoveController;
+import lejos.robotics.navigation.Move;
+import lejos.robotics.navigation.MoveListener;
+import lejos.robotics.navigation.Pose;
+import main.Main;
+import main.TraceRecorder;
+import navigation.OdometryCorrection;
+
+/*****
+ * A robot replaying a trace recorded by <code>TraceRecorder</code>, acting as the pilot, the
+ * odometer and the ultrasonic sensor of the classes which recorded it.
+ * <br><br>
+ * The trace is read in order as the replayed classes ask for moves and readings, as fast as
+ * they ask, rather than in real time. Every move must be the next move recorded and every
+ * reading the next reading recorded, or else a <code>RuntimeException</code> is thrown as the
+ * replay has diverged from the trace. A move whose distance or angle differs from the one
+ * recorded is still replayed as recorded, and is counted as a divergence. Light values passed
+ * on the way are given to an <code>OdometryCorrection</code>, and the pose is found from the
+ * tachometer counts as the pilot's odometry does, or set from the pose recorded at a mark.
+ * <br><br>
+ * Moves complete immediately unless they return immediately, in which case they are in
+ * progress until the readings recorded during them have been taken.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class ReplayRobot implements ArcRotateMoveController, PoseProvider, RangeFinder {
+	private static final double TOLERANCE = 1;		// Most cm or degrees a move can differ from the one recorded by
+	private static final int END = 0;				// Kind returned at the end of the trace
+	private static final String[] NAMES = {"END", "LIGHT", "TACHO", "RANGE", "TRAVEL", "ROTATE", "ARC", "STOP",
+			"TRAVEL_SPEED", "ROTATE_SPEED", "MARK", "X", "Y", "HEADING"};
+
+	private final TraceReader trace;
+	private boolean pending;				// Whether the record last read has not been used yet
+	private OdometryCorrection correction;
+
+	private double x, y, heading;			// Pose, with the heading in degrees
+	private int left, right;				// Tachometer counts of the last TACHO record
+	private boolean tachos;					// Whether a TACHO record has been replayed
+	private int move;						// Kind of the move in progress, 0 if stopped
+	private double travelled, turned;		// Distance and angle moved since the move started
+	private boolean polled;					// Whether the move was found in progress since the last reading
+	private double travelSpeed, rotateSpeed;
+	private int divergences;
+
+	/****
+	 * Create a new robot at the start of a trace
+	 *
+	 * @param trace The trace to replay
+	 */
+	public ReplayRobot(TraceReader trace){
+		this.trace = trace;}
+
+	/****
+	 * Set the odometry correction to give the light values to as they are replayed
+	 *
+	 * @param correction The odometry correction, or null not to
+	 */
+	public void setCorrection(OdometryCorrection correction){
+		this.correction = correction;}
+
+	/****
+	 * Replay the trace until just after a mark, without any moves or readings being asked for
+	 *
+	 * @param mark The mark, such as <code>TraceRecorder.LOCALIZE</code>, or -1 to replay the rest of the trace
+	 * @return True iff the mark was found, with the pose set to the one recorded with it
+	 */
+	public boolean seek(int mark){
+		while (true){
+			int kind = peek();
+			if (kind == END) return false;
+			pending = false;
+			if (kind == TraceRecorder.STOP) move = 0;
+			else if (kind == TraceRecorder.TRAVEL || kind == TraceRecorder.ROTATE || kind == TraceRecorder.ARC) start(kind);
+			else if (kind == TraceRecorder.MARK && trace.getValue() == mark){
+				peek();		// Replay the pose recorded with the mark
+				return true;
+			}
+		}
+	}
+
+	/****
+	 * Get the time the trace has been replayed up to
+	 *
+	 * @return The time in ms since recording started
+	 */
+	public long getTime(){
+		return trace.getTime();}
+
+	/****
+	 * Get the number of moves whose distance or angle differed from the move recorded
+	 *
+	 * @return The number of moves
+	 */
+	public int getDivergences(){
+		return divergences;}
+
+	/****
+	 * Give a sample of the light values to the odometry correction, if any
+	 *
+	 * @param left The normalized light value of the left sensor
+	 * @param right The normalized light value of the right sensor
+	 * @param time The time of the sample in ms
+	 */
+	protected void light(int left, int right, long time){
+		if (correction != null) correction.sample(left, right, time);}
+
+	/****
+	 * Replay the samples up to the next record which is not one, without using it. Poses recorded
+	 * with marks set the pose, and stops when no move is in progress are skipped.
+	 *
+	 * @return The kind of the record, or END at the end of the trace
+	 */
+	private int peek(){
+		while (true){
+			if (!pending){
+				if (!trace.next()) return END;
+				pending = true;
+			}
+			switch (trace.getKind()){
+			case TraceRecorder.LIGHT: light(trace.getLeft(), trace.getRight(), trace.getTime()); break;
+			case TraceRecorder.TACHO: odometry(trace.getLeft(), trace.getRight()); break;
+			case TraceRecorder.TRAVEL_SPEED: travelSpeed = trace.getFloat(); break;
+			case TraceRecorder.ROTATE_SPEED: rotateSpeed = trace.getFloat(); break;
+			case TraceRecorder.X: x = trace.getFloat(); break;
+			case TraceRecorder.Y: y = trace.getFloat(); break;
+			case TraceRecorder.HEADING: heading = trace.getFloat(); break;
+			case TraceRecorder.STOP: if (move != 0) return TraceRecorder.STOP; break;	// Else stopped without moving
+			default: return trace.getKind();
+			}
+			pending = false;
+		}
+	}
+
+	/****
+	 * Use the next record, which must be of a kind
+	 */
+	private void expect(int kind){
+		int next = peek();
+		if (next != kind) throw diverged(kind, next);
+		pending = false;
+	}
+
+	private RuntimeException diverged(int expected, int found){
+		return new RuntimeException("Replay diverged from the trace at " + trace.getTime() + " ms: expected "
+				+ NAMES[expected] + " but found " + (found < NAMES.length ? NAMES[found] : "" + found));}
+
+	/** Move the pose by the change in the tachometer counts */
+	private void odometry(int l, int r){
+		if (!tachos){
+			tachos = true;
+			left = l;
+			right = r;
+			return;
+		}
+		double dl = (l - left) * Math.PI * Main.LEFT_WHEEL_D / 360, dr = (r - right) * Math.PI * Main.RIGHT_WHEEL_D / 360;
+		left = l;
+		right = r;
+		double ds = (dl + dr) / 2, dh = Math.toDegrees((dr - dl) / Main.WHEEL_BASE);
+		double mid = Math.toRadians(heading + dh / 2);
+		x += ds * Math.cos(mid);
+		y += ds * Math.sin(mid);
+		heading += dh;
+		travelled += ds;
+		turned += dh;
+	}
+
+	/****
+	 * Replay the start of a move, and its end unless it returns immediately
+	 *
+	 * @param kind The kind of move
+	 * @param target The distance or angle to move, compared to the one recorded
+	 */
+	private void move(int kind, double target, boolean immediateReturn){
+		if (move != 0) stop();
+		expect(kind);
+		double recorded = trace.getFloat();
+		if (recorded != target && !(Math.abs(recorded - target) <= TOLERANCE)) divergences++;
+		start(kind);
+		if (!immediateReturn){
+			expect(TraceRecorder.STOP);
+			move = 0;
+		}
+	}
+
+	private void start(int kind){
+		move = kind;
+		travelled = turned = 0;
+		polled = false;
+	}
+
+	@Override
+	public void travel(double distance){
+		travel(distance, false);}
+
+	@Override
+	public void travel(double distance, boolean immediateReturn){
+		move(TraceRecorder.TRAVEL, distance, immediateReturn);}
+
+	@Override
+	public void forward(){
+		travel(Double.POSITIVE_INFINITY, true);}
+
+	@Override
+	public void backward(){
+		travel(Double.NEGATIVE_INFINITY, true);}
+
+	@Override
+	public void rotate(double angle){
+		rotate(angle, false);}
+
+	@Override
+	public void rotate(double angle, boolean immediateReturn){
+		move(TraceRecorder.ROTATE, angle, immediateReturn);}
+
+	@Override
+	public void arc(double radius, double angle){
+		arc(radius, angle, false);}
+
+	@Override
+	public void arc(double radius, double angle, boolean immediateReturn){
+		move(TraceRecorder.ARC, angle, immediateReturn);}
+
+	@Override
+	public void travelArc(double radius, double distance){
+		travelArc(radius, distance, false);}
+
+	@Override
+	public void travelArc(double radius, double distance, boolean immediateReturn){
+		move(TraceRecorder.ARC, Math.toDegrees(distance / radius), immediateReturn);}
+
+	@Override
+	public void arcForward(double radius){
+		move(TraceRecorder.ARC, Double.POSITIVE_INFINITY, true);}
+
+	@Override
+	public void arcBackward(double radius){
+		move(TraceRecorder.ARC, Double.NEGATIVE_INFINITY, true);}
+
+	@Override
+	public void stop(){
+		if (move == 0) return;
+		expect(TraceRecorder.STOP);
+		move = 0;
+	}
+
+	/****
+	 * Check whether the move which returned immediately is still in progress, which it is until
+	 * the readings recorded during it have been taken
+	 */
+	@Override
+	public boolean isMoving(){
+		if (move == 0) return false;
+		int next = peek();
+		if (next == TraceRecorder.STOP){
+			pending = false;
+			move = 0;
+			return false;
+		}
+
+		// Polling again without taking the reading recorded would never end
+		if (next != TraceRecorder.RANGE || polled) throw diverged(TraceRecorder.STOP, next);
+		polled = true;
+		return true;
+	}
+
+	@Override
+	public Move getMovement(){
+		Move.MoveType type = move == TraceRecorder.ROTATE ? Move.MoveType.ROTATE : move == TraceRecorder.ARC ? Move.MoveType.ARC : Move.MoveType.TRAVEL;
+		return new Move(type, (float)travelled, (float)turned, move != 0);
+	}
+
+	@Override
+	public float getRange(){
+		expect(TraceRecorder.RANGE);
+		polled = false;
+		return trace.getValue();
+	}
+
+	@Override
+	public float[] getRanges(){
+		return new float[]{getRange()};}
+
+	@Override
+	public Pose getPose(){
+		return new Pose((float)x, (float)y, (float)heading);}
+
+	@Override
+	public void setPose(Pose pose){
+		x = pose.getX();
+		y = pose.getY();
+		heading = pose.getHeading();
+	}
+
+	// Speeds are replayed from the trace, as they cannot change the moves recorded
+
+	@Override
+	public void setTravelSpeed(double speed){}
+
+	@Override
+	public double getTravelSpeed(){
+		return travelSpeed;}
+
+	@Override
+	public double getMaxTravelSpeed(){
+		return travelSpeed;}
+
+	@Override
+	public void setRotateSpeed(double speed){}
+
+	@Override
+	public double getRotateSpeed(){
+		return rotateSpeed;}
+
+	@Override
+	public double getRotateMaxSpeed(){
+		return rotateSpeed;}
+
+	@Override
+	public double getMinRadius(){
+		return 0;}
+
+	@Override
+	public void setMinRadius(double radius){}
+
+	@Override
+	public void addMoveListener(MoveListener listener){}
+}
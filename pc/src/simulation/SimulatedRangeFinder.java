@@ -0,0 +1,89 @@
+package simulation;
+
+import java.util.Random;
+
+import lejos.robotics.RangeFinder;
+import main.Main;
+
+/*****
+ * An ultrasonic sensor mounted facing forward on a <code>SimulatedRobot</code>.
+ * <br><br>
+ * Each reading is the distance from the centre of the robot's tile to the first blocked
+ * tile or wall in front, plus gaussian noise. While the robot is rotating, the reading is
+ * taken along the current heading to the wall face of the closest direction. With a
+ * configurable probability a reading is instead an outlier: either no echo (255) or a
+ * uniformly random distance, as the real sensor returns when the ping reflects off an
+ * edge or another robot.
+ * <br><br>
+ * Every reading adds the time of a ping to the robot's clock. After the configured number
+ * of readings a <code>RuntimeException</code> is thrown, so a localizer that never
+ * converges ends instead of running forever.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class SimulatedRangeFinder implements RangeFinder {
+	private static final float NO_ECHO = 255;
+
+	private final SimulatedRobot robot;
+	private final Random random;
+	private final double sigma, outliers, pingTime;
+	private final int maxReadings;
+	private int readings;
+
+	/****
+	 * Create a new simulated sensor
+	 *
+	 * @param robot The robot the sensor is mounted on
+	 * @param sigma The standard deviation of the noise added to every reading, in cm
+	 * @param outliers The probability that a reading is an outlier
+	 * @param pingTime The time taken by each reading in ms
+	 * @param maxReadings The number of readings after which to give up
+	 * @param seed The seed of the noise
+	 */
+	public SimulatedRangeFinder(SimulatedRobot robot, double sigma, double outliers, double pingTime, int maxReadings, long seed){
+		this.robot = robot;
+		this.sigma = sigma;
+		this.outliers = outliers;
+		this.pingTime = pingTime;
+		this.maxReadings = maxReadings;
+		this.random = new Random(seed);
+	}
+
+	/****
+	 * Reset the number of readings taken
+	 */
+	public void reset(){
+		readings = 0;}
+
+	/****
+	 * Get the number of readings taken since the last reset
+	 *
+	 * @return The number of readings
+	 */
+	public int getReadings(){
+		return readings;}
+
+	@Override
+	public float getRange(){
+		if (++readings > maxReadings)
+			throw new RuntimeException("Gave up after " + maxReadings + " readings");
+		robot.elapse(pingTime);
+
+		if (random.nextDouble() < outliers)
+			return random.nextBoolean() ? NO_ECHO : random.nextFloat() * NO_ECHO;
+
+		// Distance to the wall face in the closest direction, along the current heading
+		double turned = robot.getAngleTurned();
+		long quarters = Math.round(turned / 90);
+		double offset = Math.toRadians(turned - 90 * quarters);
+		int free = robot.freeAhead((int)(robot.getDir() + quarters));
+
+		double range = (free + 0.5) * Main.TILE_WIDTH / Math.cos(offset) + sigma * random.nextGaussian();
+		return (float)Math.max(0, Math.min(NO_ECHO, range));
+	}
+
+	@Override
+	public float[] getRanges(){
+		return new float[]{getRange()};}
+}
@@ -0,0 +1,313 @@
+package simulation;
+
+import java.util.BitSet;
+
+import lejos.robotics.localization.PoseProvider;
+import lejos.robotics.navigation.Move;
+import lejos.robotics.navigation.MoveListener;
+import lejos.robotics.navigation.Pose;
+import lejos.robotics.navigation.RotateMoveController;
+import main.Main;
+
+/*****
+ * A robot moving on a known map, one tile and one quarter turn at a time, without any hardware.
+ * <br><br>
+ * The robot keeps its true tile and direction, which the localizer being tested never sees,
+ * and the pose the localizer last set, acting as both the pilot and the odometer. Moves
+ * complete immediately, but every move adds the time the real robot would have taken to
+ * a simulated clock, using a fixed overhead per move plus the time at the set speed.
+ * Travelling into a blocked tile or off the map throws a <code>RuntimeException</code>.
+ * <br><br>
+ * A rotation which returns immediately is in progress until the clock, advanced by
+ * readings taken meanwhile, reaches the time the rotation takes. A travel started by
+ * <code>forward()</code> or <code>backward()</code> is in progress until it is stopped,
+ * covering distance at the set speed as the clock advances, and ends on the nearest tile,
+ * taking as long as travelling there would have. Reaching a blocked tile or the edge of
+ * the map while travelling throws a <code>RuntimeException</code>.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class SimulatedRobot implements RotateMoveController, PoseProvider {
+	// 1 tile forward, indexed by Direction.v
+	private static final int[] FORWARD_X = {0, -1, 0, 1}, FORWARD_Y = {1, 0, -1, 0};
+
+	private final BitSet map;
+	private final int size;
+	private double travelSpeed = 20, rotateSpeed = 90;	// cm/s and deg/s
+	private final double overhead;						// ms added to every move
+
+	private int x, y, dir;						// True tile and direction, dir as Direction.v
+	private Pose pose = new Pose();				// Pose set by the localizer
+	private double clock;						// Simulated time in ms
+	private double turning, turnStart, turnTime;// Angle, start time and duration of the rotation in progress
+	private int travelling;						// Direction of the continuous travel in progress, 1 forward, -1 backward, 0 if none
+	private double travelStart;					// Start time of the continuous travel in progress
+	private int rotations, tiles;				// Number of rotations and tiles travelled
+
+	/****
+	 * Create a new simulated robot
+	 *
+	 * @param map The map the robot moves on
+	 * @param size The number of tiles along each side of the map
+	 * @param overhead The time added to every move for accelerating and stopping, in ms
+	 */
+	public SimulatedRobot(BitSet map, int size, double overhead){
+		this.map = map;
+		this.size = size;
+		this.overhead = overhead;
+	}
+
+	/****
+	 * Place the robot on a tile and reset the clock and move counts
+	 *
+	 * @param x The X coordinate of the tile
+	 * @param y The Y coordinate of the tile
+	 * @param dir The direction faced, as <code>Direction.v</code>
+	 */
+	public void place(int x, int y, int dir){
+		this.x = x;
+		this.y = y;
+		this.dir = dir & 3;
+		this.pose = new Pose();
+		this.clock = 0;
+		this.rotations = this.tiles = 0;
+		this.turning = 0;
+		this.travelling = 0;
+	}
+
+	/** Get the true X coordinate of the robot's tile */
+	public int getX(){
+		return x;}
+
+	/** Get the true Y coordinate of the robot's tile */
+	public int getY(){
+		return y;}
+
+	/** Get the true direction of the robot, as <code>Direction.v</code> */
+	public int getDir(){
+		return dir;}
+
+	/****
+	 * Get the angle turned from the robot's direction by the rotation in progress
+	 *
+	 * @return The angle turned so far in degrees, positive is left
+	 */
+	double getAngleTurned(){
+		if (turning == 0) return 0;
+		return turning * Math.min(1, Math.max(0, clock - turnStart - overhead / 2) / (turnTime - overhead));
+	}
+
+	/****
+	 * Get the distance travelled by the continuous travel in progress
+	 *
+	 * @return The distance travelled so far in cm, negative if backward
+	 */
+	double getDistanceTravelled(){
+		if (travelling == 0) return 0;
+		return travelling * Math.max(0, clock - travelStart - overhead / 2) * travelSpeed / 1000;
+	}
+
+	/** Get the simulated time since the robot was placed, in ms */
+	public double getClock(){
+		return clock;}
+
+	/** Get the number of rotations since the robot was placed */
+	public int getRotations(){
+		return rotations;}
+
+	/** Get the number of tiles travelled since the robot was placed */
+	public int getTiles(){
+		return tiles;}
+
+	/****
+	 * Add time taken by something other than a move, such as a reading
+	 *
+	 * @param ms The time taken in ms
+	 */
+	void elapse(double ms){
+		clock += ms;}
+
+	/****
+	 * Check whether a tile is blocked or off the map
+	 *
+	 * @param x The X coordinate of the tile
+	 * @param y The Y coordinate of the tile
+	 * @return True iff the robot can not be on the tile
+	 */
+	boolean isBlocked(int x, int y){
+		return x < 0 || y < 0 || x >= size || y >= size || map.get(x * size + y);}
+
+	/****
+	 * Get the number of free tiles in a direction from the robot before a blocked tile or the wall
+	 *
+	 * @param dir The direction, as <code>Direction.v</code>
+	 * @return The number of free tiles in front
+	 */
+	int freeAhead(int dir){
+		int n = 0;
+		while (!isBlocked(x + (n + 1) * FORWARD_X[dir & 3], y + (n + 1) * FORWARD_Y[dir & 3])) n++;
+		return n;
+	}
+
+	@Override
+	public void rotate(double angle){
+		stopTravelling();
+		isMoving();
+		long quarters = Math.round(angle / 90);
+		if (Math.abs(angle - 90 * quarters) > 1)
+			throw new RuntimeException("Rotation is not a multiple of 90 degrees: " + angle);
+		if (quarters == 0) return;
+
+		dir = (int)((dir + quarters) & 3);
+		rotations++;
+		clock += overhead + Math.abs(angle) * 1000 / rotateSpeed;
+	}
+
+	@Override
+	public void rotate(double angle, boolean immediateReturn){
+		if (!immediateReturn || angle == 0){
+			rotate(angle);
+			return;
+		}
+		stopTravelling();
+		isMoving();
+		turning = angle;
+		turnStart = clock;
+		turnTime = overhead + Math.abs(angle) * 1000 / rotateSpeed;
+	}
+
+	@Override
+	public void travel(double distance){
+		stopTravelling();
+		isMoving();
+		long n = Math.round(distance / Main.TILE_WIDTH);
+		if (Math.abs(distance - Main.TILE_WIDTH * n) > 1)
+			throw new RuntimeException("Travel is not a whole number of tiles: " + distance);
+		if (n == 0) return;
+
+		int step = n > 0 ? 1 : -1;
+		for (long i = 0; i != n; i += step){
+			x += step * FORWARD_X[dir];
+			y += step * FORWARD_Y[dir];
+			if (isBlocked(x, y))
+				throw new RuntimeException("Collision at (" + x + ", " + y + ")");
+			tiles++;
+		}
+		clock += overhead + Math.abs(distance) * 1000 / travelSpeed;
+	}
+
+	@Override
+	public void travel(double distance, boolean immediateReturn){
+		travel(distance);}
+
+	@Override
+	public Pose getPose(){
+		return new Pose(pose.getX(), pose.getY(), pose.getHeading());}
+
+	@Override
+	public void setPose(Pose pose){
+		this.pose = new Pose(pose.getX(), pose.getY(), pose.getHeading());}
+
+	@Override
+	public void setTravelSpeed(double speed){
+		travelSpeed = speed;}
+
+	@Override
+	public double getTravelSpeed(){
+		return travelSpeed;}
+
+	@Override
+	public double getMaxTravelSpeed(){
+		return travelSpeed;}
+
+	@Override
+	public void setRotateSpeed(double speed){
+		rotateSpeed = speed;}
+
+	@Override
+	public double getRotateSpeed(){
+		return rotateSpeed;}
+
+	@Override
+	public double getRotateMaxSpeed(){
+		return rotateSpeed;}
+
+	@Override
+	public void forward(){
+		startTravelling(1);}
+
+	@Override
+	public void backward(){
+		startTravelling(-1);}
+
+	@Override
+	public void stop(){
+		stopTravelling();
+		isMoving();
+	}
+
+	/****
+	 * Start a continuous travel, ending the moves in progress first
+	 *
+	 * @param direction 1 to travel forward, -1 to travel backward
+	 */
+	private void startTravelling(int direction){
+		stopTravelling();
+		isMoving();
+		travelling = direction;
+		travelStart = clock;
+	}
+
+	/****
+	 * End the continuous travel in progress, if any, on the nearest tile. The clock is
+	 * advanced to when the travel to that tile would have ended, if it has not passed it.
+	 */
+	private void stopTravelling(){
+		if (travelling == 0) return;
+		double distance = getDistanceTravelled(), now = clock;
+		travelling = 0;
+		clock = travelStart;
+		travel(Main.TILE_WIDTH * Math.round(distance / Main.TILE_WIDTH));
+		clock = Math.max(clock, now);
+	}
+
+	/****
+	 * Check whether a move which returned immediately is still in progress. A rotation is
+	 * completed if the clock has passed the time it takes, and a continuous travel is in
+	 * progress until stopped.
+	 */
+	@Override
+	public boolean isMoving(){
+		if (travelling != 0){
+			// The robot has reached a tile once over halfway to it
+			long n = Math.round(Math.abs(getDistanceTravelled()) / Main.TILE_WIDTH);
+			for (int i = 1; i <= n; i++){
+				int tx = x + travelling * i * FORWARD_X[dir], ty = y + travelling * i * FORWARD_Y[dir];
+				if (isBlocked(tx, ty))
+					throw new RuntimeException("Collision at (" + tx + ", " + ty + ")");
+			}
+			return true;
+		}
+		if (turning == 0) return false;
+		if (clock < turnStart + turnTime) return true;
+
+		// Complete the rotation, keeping any time taken by readings after it ended
+		double angle = turning, now = clock;
+		turning = 0;
+		clock = turnStart;
+		rotate(angle);
+		clock = Math.max(clock, now);
+		return false;
+	}
+
+	@Override
+	public Move getMovement(){
+		if (travelling != 0)
+			return new Move(Move.MoveType.TRAVEL, (float)getDistanceTravelled(), 0, true);
+		return new Move(Move.MoveType.ROTATE, 0, (float)getAngleTurned(), turning != 0);
+	}
+
+	@Override
+	public void addMoveListener(MoveListener listener){}
+}
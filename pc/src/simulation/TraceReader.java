@@ -0,0 +1,163 @@
+package simulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import main.TraceRecorder;
+
+/*****
+ * Reads the records of a trace written by <code>TraceRecorder</code>, one at a time.
+ * <br><br>
+ * The file is memory mapped a window at a time rather than read through a stream, so
+ * traces of any length are read without copying and only the window being read is kept
+ * in memory. Times and tachometer counts, which the recorder lets wrap around, are
+ * unwrapped, so times keep increasing and counts are the total since the trace started.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class TraceReader {
+	private static final int WINDOW = 1 << 26;		// Bytes mapped at once, a whole number of records
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long length;			// Bytes of whole records in the file
+	private MappedByteBuffer buffer;
+	private long base;					// Offset in the file of the window mapped
+	private long offset;				// Offset in the file of the next record
+
+	private int kind, value;
+	private long time, epoch;			// Unwrapped time of the record, and the time at the last wrap
+	private int left, right;			// Light values or tachometer counts of the last LIGHT or TACHO record
+	private int tachoLeft, tachoRight;	// Unwrapped tachometer counts of the last TACHO record
+	private int lastLeft, lastRight;	// Tachometer counts as recorded in the last TACHO record
+	private boolean tachos;				// Whether a TACHO record has been read
+
+	/****
+	 * Open a trace, checking its header
+	 *
+	 * @param file The trace
+	 */
+	public TraceReader(File file){
+		this.file = file;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			channel = raf.getChannel();
+			length = channel.size() / TraceRecorder.RECORD_SIZE * TraceRecorder.RECORD_SIZE;
+		} catch (IOException e){
+			throw new RuntimeException("Could not open trace " + file, e);
+		}
+		if (length < TraceRecorder.RECORD_SIZE) throw new RuntimeException("Trace " + file + " has no header");
+		map(0);
+		if (buffer.getInt(0) != TraceRecorder.MAGIC) throw new RuntimeException(file + " is not a trace");
+		if (buffer.getInt(4) != TraceRecorder.VERSION) throw new RuntimeException("Trace " + file + " has unknown version " + buffer.getInt(4));
+		offset = TraceRecorder.RECORD_SIZE;
+	}
+
+	/****
+	 * Read the next record
+	 *
+	 * @return True iff there was another record
+	 */
+	public boolean next(){
+		if (offset >= length) return false;
+		if (offset - base >= buffer.limit()) map(offset);
+		int i = (int)(offset - base);
+		int word = buffer.getInt(i);
+		value = buffer.getInt(i + 4);
+		offset += TraceRecorder.RECORD_SIZE;
+
+		kind = word >>> 28;
+		long t = epoch + (word & TraceRecorder.TIME_MASK);
+		if (t < time){
+			epoch += TraceRecorder.TIME_MASK + 1L;
+			t += TraceRecorder.TIME_MASK + 1L;
+		}
+		time = t;
+
+		if (kind == TraceRecorder.LIGHT){
+			left = value >>> 16;
+			right = value & 0xFFFF;
+		} else if (kind == TraceRecorder.TACHO){
+			int l = (short)(value >>> 16), r = (short)value;
+			if (tachos){
+				tachoLeft += (short)(l - lastLeft);
+				tachoRight += (short)(r - lastRight);
+			} else {
+				tachoLeft = l;
+				tachoRight = r;
+				tachos = true;
+			}
+			lastLeft = l;
+			lastRight = r;
+			left = tachoLeft;
+			right = tachoRight;
+		}
+		return true;
+	}
+
+	/** Get the kind of the last record read, such as <code>TraceRecorder.LIGHT</code> */
+	public int getKind(){
+		return kind;}
+
+	/** Get the time of the last record read, in ms since recording started */
+	public long getTime(){
+		return time;}
+
+	/** Get the value of the last record read */
+	public int getValue(){
+		return value;}
+
+	/** Get the value of the last record read, for records of moves, speeds and poses */
+	public float getFloat(){
+		return Float.intBitsToFloat(value);}
+
+	/****
+	 * Get the left value of the last LIGHT or TACHO record read
+	 *
+	 * @return The normalized light value, or the tachometer count since the trace started
+	 */
+	public int getLeft(){
+		return left;}
+
+	/****
+	 * Get the right value of the last LIGHT or TACHO record read
+	 *
+	 * @return The normalized light value, or the tachometer count since the trace started
+	 */
+	public int getRight(){
+		return right;}
+
+	/****
+	 * Get the number of records in the trace, not counting the header
+	 *
+	 * @return The number of records
+	 */
+	public long getRecords(){
+		return length / TraceRecorder.RECORD_SIZE - 1;}
+
+	/****
+	 * Close the trace
+	 */
+	public void close(){
+		try {
+			raf.close();
+		} catch (IOException e){
+			throw new RuntimeException("Could not close trace " + file, e);
+		}
+	}
+
+	/** Map the window starting at an offset */
+	private void map(long start){
+		try {
+			base = start;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, length - start));
+		} catch (IOException e){
+			throw new RuntimeException("Could not map trace " + file, e);
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package simulation;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.BitSet;
+
+import lejos.robotics.navigation.Navigator;
+import lejos.robotics.navigation.Pose;
+import localization.LocalizationPolicy;
+import localization.Localizer;
+import localization.Position;
+import main.Main;
+import main.Maps;
+import main.TraceRecorder;
+import navigation.LineCrossing;
+import navigation.LineCrossings;
+import navigation.OdometryCorrection;
+import navigation.PoseEstimator;
+import blocks.BlockRescuer;
+
+/*****
+ * Replays a trace recorded on the robot by <code>TraceRecorder</code> through the classes which
+ * recorded it, faster than real time, so their parameters can be tuned against real readings.
+ * <br><br>
+ * Every replay reads the trace from the start with a <code>ReplayRobot</code>, feeding the light
+ * values to an <code>OdometryCorrection</code> throughout. Replays are:
+ * <ul>
+ * <li>LINES: the whole trace, once for every baseline rate and pair of entry and exit thresholds of
+ * the <code>LineDetector</code>s, reporting the lines crossed by both sensors, how many were crossed
+ * too far off the grid to correct from, and how far the heading and pose were off when crossing them</li>
+ * <li>LOCALIZE: a <code>Localizer</code> from every mark where localization started, reporting the
+ * starting position it finds, with a <code>PoseEstimator</code> as the odometer as on the robot</li>
+ * <li>BLOCK: <code>BlockRescuer.searchForBlock()</code> from every mark where a search started,
+ * reporting the distance to the block it finds</li>
+ * </ul>
+ * A LOCALIZE or BLOCK replay which asks for a different move or reading than was recorded next
+ * stops, as the trace no longer says what the robot would have read, and is reported as diverged.
+ * <br><br>
+ * Usage: <code>TraceReplay trace [-replays LINES,LOCALIZE,BLOCK] [-rates 0.05,...] [-thresholds 20:10,...]
+ * [-map n] [-mode POLICY] [-csv]</code>, where thresholds are entry and exit thresholds, and map and mode
+ * are those of the localizer.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class TraceReplay {
+	private static File file;
+	private static String[] replays = {"LINES"};
+	private static double[] rates = {0.05};
+	private static double[][] thresholds = {{20, 10}};
+	private static int map = 1;
+	private static Localizer.Mode mode = Localizer.Mode.POLICY;
+	private static boolean csv = false;
+
+	/***
+	 * Private constructor to prevent external instantiation
+	 */
+	private TraceReplay(){};
+
+	public static void main(String[] args){
+		for (int i = 0; i < args.length; i++){
+			String arg = args[i];
+			if (arg.equals("-csv")) csv = true;
+			else if (!arg.startsWith("-") && file == null) file = new File(arg);
+			else if (i + 1 >= args.length) usage();
+			else if (arg.equals("-replays")) replays = args[++i].toUpperCase().split(",");
+			else if (arg.equals("-rates")) rates = parseDoubles(args[++i]);
+			else if (arg.equals("-thresholds")) thresholds = parsePairs(args[++i]);
+			else if (arg.equals("-map")) map = Integer.parseInt(args[++i]);
+			else if (arg.equals("-mode")) mode = Localizer.Mode.valueOf(args[++i].toUpperCase());
+			else usage();
+		}
+		if (file == null) usage();
+
+		PrintStream out = System.out;
+		for (String replay : replays){
+			if (replay.equals("LINES")) lines(out);
+			else if (replay.equals("LOCALIZE")) localize(out);
+			else if (replay.equals("BLOCK")) block(out);
+			else throw new RuntimeException("Unknown replay " + replay);
+		}
+	}
+
+	/****
+	 * Replay the whole trace with every baseline rate and pair of thresholds
+	 */
+	private static void lines(PrintStream out){
+		if (csv)
+			out.println("rate,enter,exit,crossings,skewed,heading_mean,line_rms,line_max,trace_ms,replay_ms");
+		else
+			out.printf("%-6s %6s %6s %9s %7s  %-9s %-9s %-9s %s%n", "rate", "enter", "exit", "crossings", "skewed",
+					"|heading|", "line rms", "line max", "trace/replay ms");
+
+		for (double rate : rates)
+			for (double[] pair : thresholds){
+				TraceReader trace = new TraceReader(file);
+				final Crossings stats = new Crossings();
+				ReplayRobot robot = new ReplayRobot(trace){
+					@Override
+					protected void light(int left, int right, long time){
+						super.light(left, right, time);
+						stats.read();
+					}
+				};
+				OdometryCorrection correction = start(robot);
+				for (boolean left : new boolean[]{true, false}){
+					correction.getDetector(left).setBaselineRate((float)rate);
+					correction.getDetector(left).setThresholds((float)pair[0], (float)pair[1]);
+				}
+				stats.used = OdometryCorrection.getCrossings().getCount();
+
+				long begin = System.nanoTime();
+				robot.seek(-1);
+				long elapsed = (System.nanoTime() - begin) / 1000000;
+				trace.close();
+
+				if (csv)
+					out.printf("%.3f,%.1f,%.1f,%d,%d,%.2f,%.2f,%.2f,%d,%d%n", rate, pair[0], pair[1], stats.count, stats.skewed,
+							stats.headingMean(), stats.lineRms(), stats.lineMax, robot.getTime(), elapsed);
+				else
+					out.printf("%-6.3f %6.1f %6.1f %9d %7d  %-9.2f %-9.2f %-9.2f %d/%d%n", rate, pair[0], pair[1], stats.count, stats.skewed,
+							stats.headingMean(), stats.lineRms(), stats.lineMax, robot.getTime(), elapsed);
+			}
+	}
+
+	/****
+	 * Replay localization from every mark where it started
+	 */
+	private static void localize(PrintStream out){
+		BitSet tiles = (BitSet)Maps.get(map - 1).clone();
+		LocalizationPolicy policy = null;
+		TraceReader trace = new TraceReader(file);
+		ReplayRobot robot = new ReplayRobot(trace);
+		start(robot);
+		while (robot.seek(TraceRecorder.LOCALIZE)){
+			long time = robot.getTime();
+			PoseEstimator estimator = new PoseEstimator(robot, OdometryCorrection.getCrossings());
+			Localizer localizer = new Localizer(robot, robot, estimator, tiles);
+			localizer.setSounds(false);
+			localizer.setMode(mode);
+			if (mode == Localizer.Mode.POLICY){
+				if (policy == null)
+					policy = LocalizationPolicy.compile(tiles, Main.NUM_TILES, localizer.getMotionProfile(), 2);
+				localizer.setPolicy(policy);
+			}
+			try {
+				int observations = localizer.localize();
+				Position start = Localizer.getStartingPosition();
+				if (start == null) throw new RuntimeException("no starting position found");
+				Pose pose = estimator.getPose();
+				out.printf("LOCALIZE at %d ms: %d observations, started at (%d, %d) %s, ended at (%.1f, %.1f) %.0f, %d moves differed%n",
+						time, observations, start.getX(), start.getY(), start.getDir(), pose.getX(), pose.getY(), pose.getHeading(),
+						robot.getDivergences());
+			} catch (RuntimeException e){
+				out.printf("LOCALIZE at %d ms: %s%n", time, e.getMessage());
+			}
+		}
+		trace.close();
+	}
+
+	/****
+	 * Replay the search for a block from every mark where it started
+	 */
+	private static void block(PrintStream out){
+		TraceReader trace = new TraceReader(file);
+		ReplayRobot robot = new ReplayRobot(trace);
+		start(robot);
+		while (robot.seek(TraceRecorder.BLOCK_SEARCH)){
+			long time = robot.getTime();
+			BlockRescuer rescuer = new BlockRescuer(robot, new Navigator(robot, robot), robot, null);
+			try {
+				int distance = rescuer.searchForBlock();
+				out.printf("BLOCK at %d ms: block %d cm away, %d moves differed%n", time, distance, robot.getDivergences());
+			} catch (RuntimeException e){
+				out.printf("BLOCK at %d ms: %s%n", time, e.getMessage());
+			}
+		}
+		trace.close();
+	}
+
+	/****
+	 * Create an enabled odometry correction of the robot, which only records lines crossed
+	 */
+	private static OdometryCorrection start(ReplayRobot robot){
+		OdometryCorrection correction = new OdometryCorrection(robot, null, null);
+		OdometryCorrection.setPoseCorrection(false);
+		OdometryCorrection.enable();
+		robot.setCorrection(correction);
+		return correction;
+	}
+
+	private static double[] parseDoubles(String list){
+		String[] s = list.split(",");
+		double[] v = new double[s.length];
+		for (int i = 0; i < s.length; i++) v[i] = Double.parseDouble(s[i].trim());
+		return v;
+	}
+
+	private static double[][] parsePairs(String list){
+		String[] s = list.split(",");
+		double[][] v = new double[s.length][];
+		for (int i = 0; i < s.length; i++){
+			String[] pair = s[i].split(":");
+			if (pair.length != 2) usage();
+			v[i] = new double[]{Double.parseDouble(pair[0].trim()), Double.parseDouble(pair[1].trim())};
+		}
+		return v;
+	}
+
+	private static void usage(){
+		System.err.println("Usage: TraceReplay trace [-replays LINES,LOCALIZE,BLOCK] [-rates 0.05,...] [-thresholds 20:10,...]"
+				+ " [-map n] [-mode POLICY] [-csv]");
+		System.exit(1);
+	}
+
+	/*****
+	 * Statistics of the lines crossed during a replay, read from the buffer as they are published
+	 */
+	private static class Crossings {
+		private final LineCrossings crossings = OdometryCorrection.getCrossings();
+		private final LineCrossing crossing = new LineCrossing();
+		private int used;						// Number of crossings already read
+		private int count, skewed;
+		private double heading, line, lineMax;	// Sums of the absolute heading error and squared line error, and the largest line error
+
+		/** Read the crossings published since the last read */
+		private void read(){
+			for (int n = used; n < crossings.getCount(); n++){
+				if (!crossings.read(n, crossing)) continue;
+				count++;
+				heading += Math.abs(crossing.getHeadingError());
+				if (Float.isNaN(crossing.getLineError())) skewed++;
+				else {
+					line += crossing.getLineError() * crossing.getLineError();
+					lineMax = Math.max(lineMax, Math.abs(crossing.getLineError()));
+				}
+			}
+			used = crossings.getCount();
+		}
+
+		private double headingMean(){
+			return count == 0 ? 0 : heading / count;}
+
+		private double lineRms(){
+			return count == skewed ? 0 : Math.sqrt(line / (count - skewed));}
+	}
+}
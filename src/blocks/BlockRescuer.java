@@ -1,9 +1,11 @@
 package blocks;
 
 import lejos.nxt.UltrasonicSensor;
-import lejos.robotics.navigation.DifferentialPilot;
+import lejos.robotics.RangeFinder;
+import lejos.robotics.navigation.ArcRotateMoveController;
 import lejos.robotics.navigation.Navigator;
 import main.Main;
+import main.TraceRecorder;
 import navigation.OdometryCorrection;
 
 /*****
@@ -13,26 +15,36 @@ import navigation.OdometryCorrection;
  * @since v0
  */
 public class BlockRescuer {	
-	private DifferentialPilot pilot;
+	private ArcRotateMoveController pilot;
 	private final int THRESHOLD = 2, SWEEP = 35;
-	private UltrasonicSensor us;
+	private RangeFinder us;
 	private Arm arm;
 	private Navigator nav;
+	private TraceRecorder recorder;		// Recorder of the ultrasonic readings, if any
 	
 	/*****
 	 * Instantiate a new BlockRescuer with the following paramaters
 	 * 
-	 * @param pilot The <code>DifferentialPilot</code> controlling movement
-	 * @param us The <code>UltrasonicSensor</code> to use for detecting a block
+	 * @param pilot The pilot controlling movement, usually a <code>DifferentialPilot</code>
+	 * @param us The range finder to use for detecting a block, usually an <code>UltrasonicSensor</code>
 	 * @param arm The <code>Arm</code> that controls the claw
 	 */
-	public BlockRescuer(DifferentialPilot pilot, Navigator nav, UltrasonicSensor us, Arm arm){
+	public BlockRescuer(ArcRotateMoveController pilot, Navigator nav, RangeFinder us, Arm arm){
 		this.pilot = pilot;
 		this.us = us;
 		this.arm = arm;
 		this.nav = nav;
 	}
 	
+	/****
+	 * Set the recorder to record every reading of the ultrasonic sensor to, marking the start of
+	 * every search for a block so it can be replayed
+	 * 
+	 * @param recorder The recorder, or null to stop recording
+	 */
+	public void setRecorder(TraceRecorder recorder){
+		this.recorder = recorder;}
+	
 	/***
 	 * Rescue a block. It is assumed that the robot is currently
 	 * at the waypoint specified for the dropoff zone.
@@ -41,7 +53,8 @@ public class BlockRescuer {
 		double old_r = pilot.getRotateSpeed(), old_t = pilot.getTravelSpeed();
 
 		OdometryCorrection.disable();
-		us.continuous();
+		if (us instanceof UltrasonicSensor)
+			((UltrasonicSensor)us).continuous();
 		pilot.setTravelSpeed(7);
 		pilot.setRotateSpeed(35);
 		// Stage 1: Find block
@@ -63,10 +76,12 @@ public class BlockRescuer {
 	
 	/***
 	 * Search for a block, and once found, orient ourselves to pick it up.
+	 * Called by <code>rescueBlock()</code>, and on its own to replay a trace.
 	 * 
 	 * @return The distance from the block
 	 */
-	private int searchForBlock(){
+	public int searchForBlock(){
+		if (recorder != null) recorder.mark(TraceRecorder.BLOCK_SEARCH, nav.getPoseProvider().getPose());
 		int dist = 0;
 		int count = 0;
 		boolean foundBlock = false;
@@ -142,7 +157,11 @@ public class BlockRescuer {
 	private int getFilteredData() {
 		int dist;
 		// there will be a delay here
-		dist = us.getDistance();
+		if (us instanceof UltrasonicSensor)
+			dist = ((UltrasonicSensor)us).getDistance();
+		else
+			dist = (int)us.getRange();
+		if (recorder != null) recorder.recordRange(dist);
 		return (int) Math.min(dist, Main.TILE_WIDTH*.75);
 	}
 }
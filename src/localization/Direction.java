@@ -25,6 +25,35 @@ public enum Direction {
 	public final int v;					// # of left turns from up
 	private Direction(int i){ v = i; }	// Direction constructor
 	
+	// Lookup tables, indexed by v
+	private static final Direction[] VALUES = {UP, LEFT, DOWN, RIGHT};
+	private static final String[] CARDINAL = {"N", "W", "S", "E"}, SHORT = {"U", "L", "D", "R"};
+	
+	/****
+	 * Get the direction with a given number of left turns from up
+	 * 
+	 * @param v The number of left turns from up. Any integer is accepted, and is taken modulo 4
+	 * @return The direction 'v' left turns from up
+	 */
+	public static Direction fromValue(int v){
+		return VALUES[v & 3];}
+	
+	/****
+	 * Get the direction 1 left of this direction
+	 * 
+	 * @return The direction 1 left of this direction
+	 */
+	public Direction left(){
+		return VALUES[(v + 1) & 3];}
+	
+	/****
+	 * Get the direction 1 right of this direction
+	 * 
+	 * @return The direction 1 right of this direction
+	 */
+	public Direction right(){
+		return VALUES[(v + 3) & 3];}
+	
 	/****
 	 * Return the value of this Direction as a cardinal direction (i.e. N, S, E, W)
 	 * 
@@ -32,14 +61,7 @@ public enum Direction {
 	 * @return A string represnting this direction as a cardinal directoin
 	 */
 	public String asCardinal(){
-		switch(this){
-		case DOWN: 	return "S";
-		case LEFT: 	return "W";
-		case RIGHT: return "E";
-		case UP: 	return "N";
-		default: 	throw new RuntimeException("Shouldn't happen");
-		}
-	}
+		return CARDINAL[v];}
 	
 	/*****
 	 * Get the value of this direction as a single character U, D, L, R
@@ -48,12 +70,5 @@ public enum Direction {
 	 */
 	@Override
 	public String toString(){
-		switch(this){
-		case DOWN: 	return "D";
-		case LEFT: 	return "L";
-		case RIGHT: return "R";
-		case UP: 	return "U";
-		default: 	throw new RuntimeException("Shouldn't happen");
-		}
-	}
+		return SHORT[v];}
 }
\ No newline at end of file
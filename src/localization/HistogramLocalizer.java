@@ -0,0 +1,354 @@
+package localization;
+
+import java.util.BitSet;
+
+import lejos.nxt.UltrasonicSensor;
+import lejos.robotics.RangeFinder;
+import lejos.robotics.localization.OdometryPoseProvider;
+import lejos.robotics.localization.PoseProvider;
+import lejos.robotics.navigation.DifferentialPilot;
+import lejos.robotics.navigation.RotateMoveController;
+import main.Main;
+import navigation.MotionProfile;
+
+/*******
+ * Localize using a known map while tolerating incorrect readings from the ultrasonic sensor.
+ * <br><br>
+ * Rather than removing every starting state which disagrees with a reading, a probability
+ * is kept for every starting state (x, y, <code>Direction</code>). Each reading multiplies
+ * the probability of every starting state by the probability of that reading given the tile
+ * in front of the robot for that state, using the rate at which the sensor reports blocked when
+ * the tile is blocked and when it is free. A single wrong reading therefore only lowers the
+ * probability of the correct state, instead of removing it and forcing a restart.
+ * <br><br>
+ * Localization ends when one starting state reaches the configured probability, or
+ * after the configured maximum number of readings, in which case the most probable starting
+ * state is used.
+ *
+ * @author Scott Cooper
+ * @since v5
+ * @see Localizer
+ */
+public class HistogramLocalizer extends Localizer {
+	private static final float SAFE = 0.99f,	// Probability a tile must be free to travel to it
+							   LIKELY = 0.01f,	// Fraction of the highest probability a likely starting state has
+							   MIN_GAIN = 0.001f;// Information in bits a reading must be expected to give
+
+	private final int size;						// Number of tiles along each side of the map
+	private final float[] weights;				// Probability of each starting state, index = (dir * size + x) * size + y
+	private float[] prior;						// Probability of each starting state before any readings, null if uniform
+	private BitSet map;
+	private HypothesisSet likely;				// Likely starting states, when searching for a pose to read from
+	private PoseSearch search;
+
+	private float hit = 0.9f,					// Probability of reading blocked when blocked
+				  falseAlarm = 0.1f,			// Probability of reading blocked when free
+				  threshold = 0.95f,			// Probability a starting state must reach
+				  confidence;					// Probability of the most probable starting state
+	private int maxObservations = 60;
+
+	/****
+	 * Create a new histogram localizer
+	 *
+	 * @param pilot The DifferentialPilot used to move
+	 * @param us_scanner The UltrasonicSensor used to check if the robot is blocked
+	 * @param odo The OdometryPoseProvider to correct
+	 */
+	public HistogramLocalizer(DifferentialPilot pilot, UltrasonicSensor us_scanner, OdometryPoseProvider odo){
+		this(pilot, us_scanner, odo, null);}
+
+	/****
+	 * Create a new histogram localizer for a fixed map, using any pilot, range finder
+	 * and pose provider
+	 * 
+	 * @param pilot The pilot used to move
+	 * @param us_scanner The range finder used to check if the robot is blocked
+	 * @param odo The pose provider to correct
+	 * @param map The map to localize on, or null to use the current map
+	 */
+	public HistogramLocalizer(RotateMoveController pilot, RangeFinder us_scanner, PoseProvider odo, BitSet map){
+		this(pilot, us_scanner, odo, map, Main.NUM_TILES);}
+	
+	/****
+	 * Create a new histogram localizer for a fixed map of any size, using any pilot, 
+	 * range finder and pose provider
+	 * 
+	 * @param pilot The pilot used to move
+	 * @param us_scanner The range finder used to check if the robot is blocked
+	 * @param odo The pose provider to correct
+	 * @param map The map to localize on, where the value at (X, Y) is at <code>X * size + Y</code>, 
+	 * or null to use the current map
+	 * @param size The number of tiles along each side of the map
+	 */
+	public HistogramLocalizer(RotateMoveController pilot, RangeFinder us_scanner, PoseProvider odo, BitSet map, int size){
+		super(pilot, us_scanner, odo, map, size);
+		this.size = size;
+		this.weights = new float[4 * size * size];
+	}
+
+	/****
+	 * Set the model of the ultrasonic sensor used to weight each reading
+	 *
+	 * @param hit The probability of reading blocked when the tile in front is blocked
+	 * @param falseAlarm The probability of reading blocked when the tile in front is free
+	 */
+	public void setSensorModel(float hit, float falseAlarm){
+		this.hit = hit;
+		this.falseAlarm = falseAlarm;
+	}
+
+	/****
+	 * Set when localization ends
+	 *
+	 * @param threshold The probability the most probable starting state must reach
+	 * @param maxObservations The maximum number of readings to take
+	 */
+	public void setConvergence(float threshold, int maxObservations){
+		this.threshold = threshold;
+		this.maxObservations = maxObservations;
+	}
+
+	/****
+	 * Set the probability of starting at a set of known starting states, such as the corners
+	 * of the competition area. The remaining probability is spread over every other
+	 * starting state.
+	 *
+	 * @param starts The likely starting states. A null direction means any direction.
+	 * @param probability The total probability of starting in one of the likely starting states,
+	 * or a negative value to remove the prior
+	 */
+	public void setPrior(Position[] starts, float probability){
+		if (probability < 0 || starts == null || starts.length == 0){
+			prior = null;
+			return;
+		}
+
+		prior = new float[weights.length];
+		int likely = 0;
+		for (Position p : starts){
+			for (int d = 0; d < 4; d++){
+				int i = (d * size + p.getX()) * size + p.getY();
+				if ((p.getDir() == null || p.getDir().v == d) && prior[i] == 0){
+					prior[i] = 1;
+					likely++;
+				}
+			}
+		}
+		for (int i = 0; i < prior.length; i++)
+			prior[i] = prior[i] != 0 ? probability / likely : (1 - probability) / (prior.length - likely);
+	}
+
+	/****
+	 * Get the probability of the starting state chosen by the last localization
+	 *
+	 * @return The probability of the starting position
+	 */
+	public float getConfidence(){
+		return confidence;}
+
+	/********
+	 * Perform Localization using a known map. Each move is the rotation, or rotation followed
+	 * by a travel of 1 tile, whose reading is expected to give the most information per second
+	 * of motion.
+	 *
+	 * @return Number of observations made
+	 */
+	@Override
+	public int localize(){
+		map = getMap();
+		likely = generatePossibleStates();
+		if (search == null) search = new PoseSearch(size);
+		reset();
+		relX = relY = 0;
+		relDir = Direction.UP;
+
+		int observations = 0;
+		while (observations < maxObservations){
+			boolean isBlocked = getBlockedStatus();
+			if (isBlocked)
+				buzz();
+			observations++;
+			update(isBlocked);
+			if (best() >= threshold) break;
+
+			move();
+		}
+
+		int start = 0;
+		for (int i = 1; i < weights.length; i++)
+			if (weights[i] > weights[start]) start = i;
+		confidence = weights[start];
+
+		int d = start / (size * size), x = start / size % size, y = start % size;
+		setStartingPoint(new Position(x, y, Direction.fromValue(d), false), relX, relY, relDir);
+		return observations;
+	}
+
+	/****
+	 * Set the probability of every starting state to the prior, or a uniform
+	 * probability if there is no prior. Starting states on blocked tiles are not possible.
+	 */
+	private void reset(){
+		float total = 0;
+		for (int i = 0; i < weights.length; i++){
+			int x = i / size % size, y = i % size;
+			weights[i] = map.get(x * size + y) ? 0 : prior == null ? 1 : prior[i];
+			total += weights[i];
+		}
+		for (int i = 0; i < weights.length; i++)
+			weights[i] /= total;
+	}
+
+	/****
+	 * Update the probability of every starting state using a reading at the current pose
+	 *
+	 * @param isBlocked Whether the robot read that it is blocked
+	 */
+	private void update(boolean isBlocked){
+		float total = 0;
+		for (int i = 0; i < weights.length; i++){
+			if (weights[i] == 0) continue;
+
+			int t = truth(i, relX, relY, relDir);
+			if (t < 0) weights[i] = 0;
+			else if (t == 1) weights[i] *= isBlocked ? hit : 1 - hit;
+			else weights[i] *= isBlocked ? falseAlarm : 1 - falseAlarm;
+			total += weights[i];
+		}
+
+		// Every starting state is impossible, the robot can't have moved where we think it has
+		if (total == 0){
+			reset();
+			return;
+		}
+		for (int i = 0; i < weights.length; i++)
+			weights[i] /= total;
+	}
+
+	/****
+	 * Get the probability of the most probable starting state
+	 *
+	 * @return The highest probability of any starting state
+	 */
+	private float best(){
+		float best = 0;
+		for (float w : weights)
+			if (w > best) best = w;
+		return best;
+	}
+
+	/****
+	 * Take the rotation, or rotation and travel of 1 tile, whose reading gives the
+	 * most information per second of motion. The robot only travels to a tile which is
+	 * free with high probability. If none of these readings give any information, move
+	 * to the closest pose where a reading does.
+	 */
+	private void move(){
+		MotionProfile profile = getMotionProfile();
+		float quarterTurn = profile.rotateTime(90), halfTurn = profile.rotateTime(180),
+			tile = profile.travelTime(Main.TILE_WIDTH), sense = profile.senseTime();
+		float best = 0;
+		int bestTurn = 0;
+		boolean bestTravel = false;
+
+		for (int turn = -1; turn <= 2; turn++){
+			Direction d = Direction.fromValue(relDir.v + turn);
+			for (int travel = 0; travel < 2; travel++){
+				int x = relX + travel * Position.FORWARD_X[d.v], y = relY + travel * Position.FORWARD_Y[d.v];
+
+				// Mass of starting states for which the tile sensed is blocked, or free,
+				// and for which the tile travelled to is free
+				float blocked = 0, free = 0, clear = 0;
+				for (int i = 0; i < weights.length; i++){
+					if (weights[i] == 0) continue;
+					if (travel == 1 && truth(i, relX, relY, d) == 0) clear += weights[i];
+					int t = truth(i, x, y, d);
+					if (t == 1) blocked += weights[i];
+					else if (t == 0) free += weights[i];
+				}
+				if (travel == 1 && clear < SAFE) continue;
+
+				float total = blocked + free;
+				if (total == 0) continue;
+				float p = (blocked * hit + free * falseAlarm) / total;
+				float gain = entropy(p) - (blocked * entropy(hit) + free * entropy(falseAlarm)) / total;
+				if (gain < MIN_GAIN) continue;
+				float time = (turn == 0 ? 0 : turn == 2 ? halfTurn : quarterTurn) + travel * tile + sense;
+				if (gain / time > best){
+					best = gain / time;
+					bestTurn = turn;
+					bestTravel = travel == 1;
+				}
+			}
+		}
+
+		if (best == 0){
+			moveToInformative(quarterTurn, halfTurn, tile);
+			return;
+		}
+		turn(bestTurn);
+		if (bestTravel) travelTile();
+	}
+
+	/****
+	 * Move to the closest pose where the likely starting states disagree on the reading,
+	 * travelling only through tiles which are free for every likely starting state
+	 * 
+	 * @param quarterTurn Expected time to rotate 90 degrees
+	 * @param halfTurn Expected time to rotate 180 degrees
+	 * @param tile Expected time to travel 1 tile
+	 */
+	private void moveToInformative(float quarterTurn, float halfTurn, float tile){
+		float best = best();
+		likely.clear();
+		for (int i = 0; i < weights.length; i++)
+			if (weights[i] > 0 && weights[i] >= best * LIKELY)
+				likely.add(i / size % size, i % size, Direction.fromValue(i / (size * size)));
+		
+		int n = likely.size();
+		search.search(likely, relX, relY, relDir, quarterTurn, halfTurn, tile);
+		for (int i = 0; i < search.settled(); i++){
+			int s = search.settled(i);
+			int blocked = likely.count(search.getX(s), search.getY(s), search.getDir(s), true);
+			if (blocked != 0 && blocked != n){
+				moveTo(search, s);
+				return;
+			}
+		}
+		
+		// Likely starting states can't be told apart from anywhere reachable
+		turn(1);
+	}
+
+	/****
+	 * Get the status of the tile in front of a pose relative to where we started, for a
+	 * starting state
+	 *
+	 * @param state The index of the starting state
+	 * @param x X coordinate relative to where we started
+	 * @param y Y coordinate relative to where we started
+	 * @param dir Direction relative to where we started
+	 * @return -1 if the pose is not possible for the starting state, 1 if the tile in front is blocked, 0 if it is free
+	 */
+	private int truth(int state, int x, int y, Direction dir){
+		int d = state / (size * size), sx = state / size % size, sy = state % size;
+		int ax = sx + Position.REL_X_X[d] * x + Position.REL_X_Y[d] * y,
+			ay = sy + Position.REL_Y_X[d] * x + Position.REL_Y_Y[d] * y;
+		if (ax < 0 || ay < 0 || ax >= size || ay >= size || map.get(ax * size + ay)) return -1;
+
+		int a = (d + dir.v) & 3;
+		int nx = ax + Position.FORWARD_X[a], ny = ay + Position.FORWARD_Y[a];
+		return nx < 0 || ny < 0 || nx >= size || ny >= size || map.get(nx * size + ny) ? 1 : 0;
+	}
+
+	/****
+	 * Get the entropy of a reading which is blocked with probability p
+	 *
+	 * @param p The probability of reading blocked
+	 * @return The entropy in bits
+	 */
+	private static float entropy(float p){
+		if (p <= 0 || p >= 1) return 0;
+		return (float)(-(p * Math.log(p) + (1 - p) * Math.log(1 - p)) / Math.log(2));
+	}
+}
@@ -0,0 +1,395 @@
+package localization;
+
+import java.util.BitSet;
+
+/*******
+ * Packed set of possible starting states used during localization.
+ * <br><br>
+ * A state is a tile (x, y) together with the <code>Direction</code> the robot
+ * was facing when it started. For every starting direction the set holds one
+ * bit per tile, stored column by column (one column = all y values for a fixed x)
+ * in <code>long</code> words. An observation made relative to where the robot
+ * started always corresponds to the same tile offset and the same absolute direction
+ * for every state sharing a starting direction, so filtering the whole set is a
+ * word-wide AND of each column against a precomputed mask, shifted by that offset.
+ * <br><br>
+ * The masks are computed once per map; observing does not allocate. Columns are
+ * independent of each other, so both computing the masks and filtering can be split
+ * into ranges of columns (see <code>ParallelHypothesisSet</code> on the PC).
+ *
+ * @author Scott Cooper
+ * @since v5
+ * @see Localizer
+ */
+public class HypothesisSet {
+	private static final Direction[] DIRECTIONS = {Direction.UP, Direction.LEFT, Direction.DOWN, Direction.RIGHT};
+	private static final int BLOCKED = 0, OPEN = 1, FREE = 2,	// Tests which can be applied to a tile
+							 RANGE = 3, AT_LEAST = 4;
+
+	final int size;					// Number of tiles along each side of the map
+	final int words;				// Number of longs used to store a single column
+	private final long[] free;		// free[x*words + w] - tile is not blocked
+	private final long[][] blocked;	// blocked[d.v][x*words + w] - free tile is blocked in absolute direction d
+	private final long[][] states;	// states[d.v][x*words + w] - states starting in direction d still possible
+	private final byte[][] run;		// run[d.v][x*size + y] - number of free tiles in absolute direction d from a tile, at most 127
+	private final long[] scratch;	// Observation mask for a single column, reused by every observation
+
+	/****
+	 * Create a new set containing every starting state possible on the provided map,
+	 * that is all 4 directions on every tile which is not blocked.
+	 *
+	 * @param map The map to localize on, where the value at (X, Y) is at <code>X * size + Y</code>
+	 * @param size The number of tiles along each side of the map
+	 */
+	public HypothesisSet(BitSet map, int size){
+		this(size);
+		initColumns(map, 0, size);
+		initRows(map, 0, size);
+		reset();
+	}
+
+	/****
+	 * Create a new set with no masks computed and no possible starting states. The
+	 * masks must be computed with {@link #initColumns(BitSet, int, int)} and
+	 * {@link #initRows(BitSet, int, int)} for every column and row before use.
+	 *
+	 * @param size The number of tiles along each side of the map
+	 */
+	HypothesisSet(int size){
+		this.size = size;
+		this.words = (size + 63) >>> 6;
+		this.free = new long[size * words];
+		this.blocked = new long[4][size * words];
+		this.states = new long[4][size * words];
+		this.scratch = new long[words];
+		this.run = new byte[4][size * size];
+	}
+
+	/****
+	 * Compute the masks, and the number of free tiles up and down from every tile,
+	 * for a range of columns
+	 *
+	 * @param map The map to localize on
+	 * @param from The first column
+	 * @param to The column after the last column
+	 */
+	void initColumns(BitSet map, int from, int to){
+		for (int x = from; x < to; x++){
+			for (int y = 0; y < size; y++){
+				if (map.get(x * size + y)) continue;
+
+				int i = x * words + (y >>> 6);
+				long bit = 1L << (y & 63);
+				free[i] |= bit;
+				if (y + 1 == size || map.get(x * size + y + 1)) blocked[Direction.UP.v][i] |= bit;
+				if (y == 0 || map.get(x * size + y - 1)) blocked[Direction.DOWN.v][i] |= bit;
+				if (x + 1 == size || map.get((x + 1) * size + y)) blocked[Direction.RIGHT.v][i] |= bit;
+				if (x == 0 || map.get((x - 1) * size + y)) blocked[Direction.LEFT.v][i] |= bit;
+			}
+
+			// Free tiles in each direction, counted back from the tile before the wall or a blocked tile
+			for (int b = 1; b < size; b++){
+				if (!map.get(x * size + size - b) && !map.get(x * size + size - b - 1))
+					run[Direction.UP.v][x * size + size - b - 1] = next(run[Direction.UP.v][x * size + size - b]);
+				if (!map.get(x * size + b) && !map.get(x * size + b - 1))
+					run[Direction.DOWN.v][x * size + b] = next(run[Direction.DOWN.v][x * size + b - 1]);
+			}
+		}
+	}
+
+	/****
+	 * Compute the number of free tiles left and right from every tile for a range of rows
+	 *
+	 * @param map The map to localize on
+	 * @param from The first row
+	 * @param to The row after the last row
+	 */
+	void initRows(BitSet map, int from, int to){
+		for (int y = from; y < to; y++){
+			for (int b = 1; b < size; b++){
+				if (!map.get((size - b) * size + y) && !map.get((size - b - 1) * size + y))
+					run[Direction.RIGHT.v][(size - b - 1) * size + y] = next(run[Direction.RIGHT.v][(size - b) * size + y]);
+				if (!map.get(b * size + y) && !map.get((b - 1) * size + y))
+					run[Direction.LEFT.v][b * size + y] = next(run[Direction.LEFT.v][(b - 1) * size + y]);
+			}
+		}
+	}
+
+	/** Get the number of free tiles from a tile, given the number from the tile in front of it */
+	private static byte next(byte n){
+		return n == Byte.MAX_VALUE ? n : (byte)(n + 1);}
+
+	/****
+	 * Create a copy of another set of starting states. The masks of the
+	 * map are shared between both sets.
+	 *
+	 * @param other The set to copy
+	 */
+	public HypothesisSet(HypothesisSet other){
+		this.size = other.size;
+		this.words = other.words;
+		this.free = other.free;
+		this.blocked = other.blocked;
+		this.run = other.run;
+		this.states = new long[4][];
+		for (int d = 0; d < 4; d++)
+			this.states[d] = other.states[d].clone();
+		this.scratch = new long[words];
+	}
+
+	/****
+	 * Reset this set so that every starting state on the map is possible again
+	 */
+	public void reset(){
+		for (int d = 0; d < 4; d++)
+			System.arraycopy(free, 0, states[d], 0, free.length);
+	}
+
+	/****
+	 * Make the possible starting states the same as another set for the same map
+	 *
+	 * @param other The set to copy the possible starting states of
+	 */
+	void set(HypothesisSet other){
+		for (int d = 0; d < 4; d++)
+			System.arraycopy(other.states[d], 0, states[d], 0, states[d].length);
+	}
+
+	/****
+	 * Remove every starting state, so that only states added afterwards are possible
+	 */
+	void clear(){
+		for (int d = 0; d < 4; d++)
+			for (int i = 0; i < states[d].length; i++)
+				states[d][i] = 0;
+	}
+
+	/****
+	 * Make a starting state possible again. The tile must not be blocked.
+	 *
+	 * @param x X coordinate of the starting tile
+	 * @param y Y coordinate of the starting tile
+	 * @param d Direction faced at the start
+	 */
+	void add(int x, int y, Direction d){
+		states[d.v][x * words + (y >>> 6)] |= 1L << (y & 63);}
+
+	/****
+	 * Remove every starting state which is inconsistent with an observation.
+	 * The observation is relative to where the robot started (i.e. the robot started
+	 * at (0, 0) facing UP).
+	 *
+	 * @param x X coordinate of the observation relative to the start
+	 * @param y Y coordinate of the observation relative to the start
+	 * @param dir Direction faced during the observation relative to the start
+	 * @param isBlocked Whether the tile in front of the robot was observed to be blocked
+	 * @return The number of starting states still possible
+	 */
+	public int observe(int x, int y, Direction dir, boolean isBlocked){
+		return filter(x, y, dir, isBlocked ? BLOCKED : OPEN, 0, true);
+	}
+
+	/****
+	 * Remove every starting state which is inconsistent with a reading of the number of
+	 * free tiles in front of the robot. The observation is relative to where the robot
+	 * started (i.e. the robot started at (0, 0) facing UP).
+	 *
+	 * @param x X coordinate of the observation relative to the start
+	 * @param y Y coordinate of the observation relative to the start
+	 * @param dir Direction faced during the observation relative to the start
+	 * @param free The number of free tiles read in front of the robot
+	 * @param atLeast Whether the reading was out of range, i.e. there are at least <code>free</code> free tiles
+	 * @return The number of starting states still possible
+	 */
+	public int observe(int x, int y, Direction dir, int free, boolean atLeast){
+		return filter(x, y, dir, atLeast ? AT_LEAST : RANGE, free, true);
+	}
+
+	/****
+	 * Get the number of starting states which would remain after an observation,
+	 * without removing any of them.
+	 *
+	 * @param x X coordinate of the observation relative to the start
+	 * @param y Y coordinate of the observation relative to the start
+	 * @param dir Direction faced during the observation relative to the start
+	 * @param isBlocked Whether the tile in front of the robot would be blocked
+	 * @return The number of starting states consistent with the observation
+	 */
+	public int count(int x, int y, Direction dir, boolean isBlocked){
+		return filter(x, y, dir, isBlocked ? BLOCKED : OPEN, 0, false);
+	}
+
+	/****
+	 * Get the number of starting states which would remain after a reading of the
+	 * number of free tiles in front of the robot, without removing any of them.
+	 *
+	 * @param x X coordinate of the observation relative to the start
+	 * @param y Y coordinate of the observation relative to the start
+	 * @param dir Direction faced during the observation relative to the start
+	 * @param free The number of free tiles in front of the robot
+	 * @param atLeast Whether to count states with at least <code>free</code> free tiles
+	 * @return The number of starting states consistent with the reading
+	 */
+	public int count(int x, int y, Direction dir, int free, boolean atLeast){
+		return filter(x, y, dir, atLeast ? AT_LEAST : RANGE, free, false);
+	}
+
+	/****
+	 * Check whether a tile relative to the start is free for every starting state
+	 * still possible, i.e. the robot can safely travel there.
+	 *
+	 * @param x X coordinate of the tile relative to the start
+	 * @param y Y coordinate of the tile relative to the start
+	 * @return True iff the tile is on the map and not blocked for every possible starting state
+	 */
+	public boolean isFree(int x, int y){
+		return filter(x, y, Direction.UP, FREE, 0, false) == size();
+	}
+
+	/****
+	 * Apply a test to the tile at (x, y) relative to the start for every starting state,
+	 * counting (and optionally keeping only) the states which pass.
+	 *
+	 * @param x X coordinate relative to the start
+	 * @param y Y coordinate relative to the start
+	 * @param dir Direction faced relative to the start
+	 * @param test One of <code>BLOCKED</code>, <code>OPEN</code>, <code>FREE</code>, <code>RANGE</code> or <code>AT_LEAST</code>
+	 * @param k The number of free tiles in front for <code>RANGE</code> and <code>AT_LEAST</code>
+	 * @param remove Whether to remove the states which fail the test
+	 * @return The number of starting states which pass the test
+	 */
+	int filter(int x, int y, Direction dir, int test, int k, boolean remove){
+		return filter(x, y, dir, test, k, remove, 0, size, scratch);
+	}
+
+	/****
+	 * Apply a test to the tile at (x, y) relative to the start for the starting states
+	 * in a range of columns. Ranges which don't overlap can be filtered at the same time,
+	 * each using its own scratch space.
+	 *
+	 * @param x X coordinate relative to the start
+	 * @param y Y coordinate relative to the start
+	 * @param dir Direction faced relative to the start
+	 * @param test One of <code>BLOCKED</code>, <code>OPEN</code>, <code>FREE</code>, <code>RANGE</code> or <code>AT_LEAST</code>
+	 * @param k The number of free tiles in front for <code>RANGE</code> and <code>AT_LEAST</code>
+	 * @param remove Whether to remove the states which fail the test
+	 * @param from The first starting column
+	 * @param to The starting column after the last starting column
+	 * @param scratch Space for the mask of a single column
+	 * @return The number of starting states in the range which pass the test
+	 */
+	int filter(int x, int y, Direction dir, int test, int k, boolean remove, int from, int to, long[] scratch){
+		int count = 0;
+		for (Direction start : DIRECTIONS){
+			// Offset of the observed tile from the starting tile, and the absolute direction
+			// observed, for every state which started facing 'start'
+			int dx = Position.REL_X_X[start.v] * x + Position.REL_X_Y[start.v] * y,
+				dy = Position.REL_Y_X[start.v] * x + Position.REL_Y_Y[start.v] * y;
+			long[] wall = blocked[(start.v + dir.v) & 3];
+			byte[] ahead = run[(start.v + dir.v) & 3];
+			long[] possible = states[start.v];
+
+			for (int sx = from; sx < to; sx++){
+				int ox = sx + dx, offset = sx * words;
+				if (ox < 0 || ox >= size || dy <= -size || dy >= size){
+					// Observed tile is off the map for the entire column
+					if (remove)
+						for (int w = 0; w < words; w++)
+							possible[offset + w] = 0;
+					continue;
+				}
+
+				if (test >= RANGE){
+					// Free tile counts aren't stored as masks, build the mask tile by tile
+					for (int w = 0; w < words; w++)
+						scratch[w] = 0;
+					for (int oy = 0; oy < size; oy++){
+						int n = ahead[ox * size + oy];
+						if (n == k || (test == AT_LEAST && n > k))
+							scratch[oy >>> 6] |= 1L << (oy & 63);
+					}
+					for (int w = 0; w < words; w++)
+						scratch[w] &= free[ox * words + w];
+				} else {
+					for (int w = 0; w < words; w++){
+						long f = free[ox * words + w];
+						switch (test){
+						case BLOCKED: 	scratch[w] = f & wall[ox * words + w]; break;
+						case OPEN: 		scratch[w] = f & ~wall[ox * words + w]; break;
+						default: 		scratch[w] = f;
+						}
+					}
+				}
+				for (int w = 0; w < words; w++){
+					long kept = possible[offset + w] & shifted(scratch, w, dy);
+					if (remove) possible[offset + w] = kept;
+					count += Long.bitCount(kept);
+				}
+			}
+		}
+		return count;
+	}
+
+	/****
+	 * Get word <code>w</code> of the mask in <code>scratch</code> shifted by <code>dy</code>,
+	 * so that bit y of the result is bit (y + dy) of the mask. Bits shifted in from outside
+	 * of the column are 0.
+	 *
+	 * @param scratch The mask of a single column
+	 * @param w The word of the column to get
+	 * @param dy The number of tiles the observed tile is above the starting tile
+	 * @return The shifted word
+	 */
+	private long shifted(long[] scratch, int w, int dy){
+		int wordShift = (dy < 0 ? -dy : dy) >>> 6, bitShift = (dy < 0 ? -dy : dy) & 63;
+		long m;
+		if (dy >= 0){
+			// Read from higher bits
+			int src = w + wordShift;
+			m = src < words ? scratch[src] >>> bitShift : 0;
+			if (bitShift != 0 && src + 1 < words)
+				m |= scratch[src + 1] << (64 - bitShift);
+		} else {
+			// Read from lower bits
+			int src = w - wordShift;
+			m = src >= 0 ? scratch[src] << bitShift : 0;
+			if (bitShift != 0 && src - 1 >= 0)
+				m |= scratch[src - 1] >>> (64 - bitShift);
+		}
+		return m;
+	}
+
+	/****
+	 * Get the number of starting states which are still possible
+	 *
+	 * @return The number of possible starting states
+	 */
+	public int size(){
+		int count = 0;
+		for (int d = 0; d < 4; d++)
+			for (long l : states[d])
+				count += Long.bitCount(l);
+		return count;
+	}
+
+	/****
+	 * Get the first starting state which is still possible, or null if
+	 * there are none. The <code>isBlocked</code> flag of the returned
+	 * position is the status of the tile in front of the starting state.
+	 *
+	 * @return The first possible starting state
+	 */
+	public Position first(){
+		for (Direction d : DIRECTIONS){
+			long[] possible = states[d.v];
+			for (int i = 0; i < possible.length; i++){
+				if (possible[i] != 0){
+					int bit = Long.numberOfTrailingZeros(possible[i]);
+					int x = i / words, y = ((i % words) << 6) + bit;
+					return new Position(x, y, d, (blocked[d.v][i] & (1L << bit)) != 0);
+				}
+			}
+		}
+		return null;
+	}
+}
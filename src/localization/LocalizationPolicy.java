@@ -0,0 +1,145 @@
+package localization;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+
+import navigation.MotionProfile;
+
+/*******
+ * Precomputed localization policy for a single map, stored as a decision tree.
+ * <br><br>
+ * Every node of the tree is a single action. Turns and travels have a single
+ * following node, while a sense has one following node for each possible reading.
+ * Walking the tree from node 0 until a <code>DONE</code> node is reached leaves
+ * exactly one possible starting state, provided the readings were correct.
+ * A <code>FAIL</code> node is reached if the remaining starting states can not be
+ * told apart from anywhere the robot can safely travel.
+ * <br><br>
+ * A policy is compiled with {@link #compile(BitSet, int, MotionProfile, int)} at boot,
+ * or compiled offline and saved with {@link #write(DataOutputStream)}.
+ *
+ * @author Scott Cooper
+ * @since v5
+ * @see PolicyCompiler
+ */
+public class LocalizationPolicy {
+	/** One possible starting state remains */
+	public static final byte DONE = 0;
+	/** The remaining starting states can not be told apart */
+	public static final byte FAIL = 1;
+	/** Check whether the robot is blocked in the forward direction */
+	public static final byte SENSE = 2;
+	/** Rotate 90 degrees left */
+	public static final byte TURN_LEFT = 3;
+	/** Rotate 90 degrees right */
+	public static final byte TURN_RIGHT = 4;
+	/** Rotate 180 degrees */
+	public static final byte TURN_AROUND = 5;
+	/** Travel forward 1 tile */
+	public static final byte TRAVEL = 6;
+
+	private static final int MAGIC = 0x4C504F4C;	// Identifies a saved policy
+
+	private final byte[] actions;		// Action performed at every node
+	private final short[] first, second;// Next node, or next node if free / if blocked after a sense
+
+	/****
+	 * Create a new policy from a compiled table
+	 *
+	 * @param actions The action of every node
+	 * @param first The next node, or the next node if free for a sense
+	 * @param second The next node if blocked for a sense, unused otherwise
+	 */
+	LocalizationPolicy(byte[] actions, short[] first, short[] second){
+		this.actions = actions;
+		this.first = first;
+		this.second = second;
+	}
+
+	/****
+	 * Compile the policy with the lowest expected time to localize on a map
+	 *
+	 * @param map The map to compile a policy for
+	 * @param size The number of tiles along each side of the map
+	 * @param costs The expected time of every action
+	 * @param lookahead The number of senses to look ahead when choosing each sense
+	 * @return The compiled policy
+	 */
+	public static LocalizationPolicy compile(BitSet map, int size, MotionProfile costs, int lookahead){
+		return new PolicyCompiler(map, size, costs, lookahead).compile();}
+
+	/****
+	 * Get the number of nodes in this policy
+	 *
+	 * @return The number of nodes
+	 */
+	public int size(){
+		return actions.length;}
+
+	/****
+	 * Get the action to perform at a node
+	 *
+	 * @param node The current node
+	 * @return The action to perform
+	 */
+	public byte getAction(int node){
+		return actions[node];}
+
+	/****
+	 * Get the node following a turn or travel
+	 *
+	 * @param node The current node
+	 * @return The next node
+	 */
+	public int next(int node){
+		return first[node] & 0xFFFF;}
+
+	/****
+	 * Get the node following a sense
+	 *
+	 * @param node The current node
+	 * @param isBlocked The result of the sense
+	 * @return The next node
+	 */
+	public int next(int node, boolean isBlocked){
+		return (isBlocked ? second[node] : first[node]) & 0xFFFF;}
+
+	/****
+	 * Save this policy
+	 *
+	 * @param out The stream to write to
+	 * @throws IOException If the policy could not be written
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(actions.length);
+		for (int i = 0; i < actions.length; i++){
+			out.writeByte(actions[i]);
+			out.writeShort(first[i]);
+			out.writeShort(second[i]);
+		}
+		out.flush();
+	}
+
+	/****
+	 * Load a policy previously saved with {@link #write(DataOutputStream)}
+	 *
+	 * @param in The stream to read from
+	 * @return The policy read
+	 * @throws IOException If the stream does not contain a valid policy
+	 */
+	public static LocalizationPolicy read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) throw new IOException("Not a localization policy");
+		int length = in.readInt();
+		byte[] actions = new byte[length];
+		short[] first = new short[length], second = new short[length];
+		for (int i = 0; i < length; i++){
+			actions[i] = in.readByte();
+			first[i] = in.readShort();
+			second[i] = in.readShort();
+		}
+		return new LocalizationPolicy(actions, first, second);
+	}
+}
@@ -1,16 +1,21 @@
 package localization;
 
-import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.Iterator;
 
 import lejos.nxt.Sound;
 import lejos.nxt.UltrasonicSensor;
+import lejos.robotics.RangeFinder;
 import lejos.robotics.localization.OdometryPoseProvider;
+import lejos.robotics.localization.PoseProvider;
 import lejos.robotics.navigation.DifferentialPilot;
 import lejos.robotics.navigation.Pose;
+import lejos.robotics.navigation.RotateMoveController;
 import main.Main;
+import main.TraceRecorder;
+import navigation.LineCrossing;
+import navigation.MotionProfile;
 import navigation.OdometryCorrection;
+import navigation.PoseEstimator;
 
 /*******
  * Localize using a known map. Once completed, the <code>OdometeryPoseProvider</code> passed in
@@ -21,11 +26,53 @@ import navigation.OdometryCorrection;
  *
  */
 public class Localizer {
-	private UltrasonicSensor us_scanner;
-	private DifferentialPilot pilot;	// Pilot controlling movement
-	private OdometryPoseProvider odo;
+	
+	/*****
+	 * Enum representing how the robot decides where to sense and move next
+	 * 
+	 * @author Scott Cooper
+	 * @since v5
+	 */
+	public static enum Mode {
+		/** Fixed rules: sense forward, right and left, then move to a tile not yet visited */
+		GREEDY,
+		/** Walk a precomputed <code>LocalizationPolicy</code>, or GREEDY if none is set */
+		POLICY,
+		/** Take the rotation or rotation and 1 tile travel which removes the most starting states per second */
+		INFORMATION_GAIN,
+		/** Read all four directions during a single rotation, then travel to the tile whose sweep removes the most starting states per second */
+		SWEEP}
+	
+	private static final float SWEEP_WINDOW = 15;	// Degrees either side of a direction whose sweep samples are used
+	private static final int SWEEP_SAMPLES = 256,	// Most samples kept from a single sweep
+							 SWEEP_PERIOD = 15;		// ms between samples from the ultrasonic sensor in continuous mode
+	
+	private RangeFinder us_scanner;
+	private RotateMoveController pilot;	// Pilot controlling movement
+	private PoseProvider odo;
 	private static Position startingPoint;
-	private BitSet map;
+	private BitSet map;					// Map to localize on, or null to use the current map
+	private final int size;				// Number of tiles along each side of the map
+	private boolean sounds = true,		// Whether to beep and buzz on readings
+					correction = true;	// Whether to correct using OdometryCorrection after travelling
+	private float pingBlocked,			// Change in log likelihood ratio of blocked for a ping reading blocked
+				  pingFree,				// Change in log likelihood ratio of blocked for a ping reading free
+				  decide;				// Log likelihood ratio at which to decide
+	private int maxSamples;				// Pings after which to decide regardless
+	private int rangeTiles;				// Most free tiles read reliably in front, 0 to only read blocked or free
+	private int[] rangeVotes;			// Pings reading each number of free tiles, reused by every reading
+	private SamplingStatistics sampling;
+	private final float[] sweepAngles = new float[SWEEP_SAMPLES],	// Angle turned when each sample of the last sweep was taken
+						  sweepRanges = new float[SWEEP_SAMPLES];	// Range read by each sample of the last sweep
+	private int sweepSize;				// Number of samples taken by the last sweep
+	private MotionProfile profile;		// Measured time taken by each action
+	private Mode mode;
+	private LocalizationPolicy policy;
+	private final LineCrossing crossing = new LineCrossing();	// Last line crossed
+	private int crossings;				// Number of lines crossed already used to correct
+	private TraceRecorder recorder;		// Recorder of the ultrasonic readings, if any
+	int relX, relY;						// Current X and Y relative to where we started
+	Direction relDir;					// Current direction relative to where we started
 	
 	/****
 	 * Create a new localizer. The class extends MCLPoseProvider by 
@@ -36,12 +83,142 @@ public class Localizer {
 	 * @param odo The OdometryPoseProvider to correct
 	 */
 	public Localizer(DifferentialPilot pilot, UltrasonicSensor us_scanner, OdometryPoseProvider odo) {
+		this(pilot, us_scanner, odo, null);}
+	
+	/****
+	 * Create a new localizer for a fixed map, using any pilot, range finder and pose provider.
+	 * Allows localization to be run against a simulated robot.
+	 * 
+	 * @param pilot The pilot used to move
+	 * @param us_scanner The range finder used to check if the robot is blocked
+	 * @param odo The pose provider to correct
+	 * @param map The map to localize on, or null to use the current map
+	 * @since v5
+	 */
+	public Localizer(RotateMoveController pilot, RangeFinder us_scanner, PoseProvider odo, BitSet map) {
+		this(pilot, us_scanner, odo, map, Main.NUM_TILES);}
+	
+	/****
+	 * Create a new localizer for a fixed map of any size, using any pilot, range finder 
+	 * and pose provider.
+	 * 
+	 * @param pilot The pilot used to move
+	 * @param us_scanner The range finder used to check if the robot is blocked
+	 * @param odo The pose provider to correct
+	 * @param map The map to localize on, where the value at (X, Y) is at <code>X * size + Y</code>, 
+	 * or null to use the current map
+	 * @param size The number of tiles along each side of the map
+	 * @since v5
+	 */
+	public Localizer(RotateMoveController pilot, RangeFinder us_scanner, PoseProvider odo, BitSet map, int size) {
 		this.pilot = pilot;
 		this.odo = odo;
 		this.us_scanner = us_scanner;
-		this.map = Main.getCurrentMap();
+		this.map = map;
+		this.size = size;
+		this.profile = new MotionProfile(pilot);
+		this.mode = Mode.GREEDY;
+		setPingModel(0.95f, 0.05f);
+		setSampling(0.99f, 9);
 		startingPoint = null;
 	}
+	
+	/****
+	 * Set how the robot decides where to sense and move next
+	 * 
+	 * @param mode The mode to localize with
+	 */
+	public void setMode(Mode mode){
+		this.mode = mode;}
+	
+	/****
+	 * Set the policy used when localizing in <code>Mode.POLICY</code>. The policy
+	 * must have been compiled for the current map.
+	 * 
+	 * @param policy The policy to walk, or null to localize using GREEDY
+	 */
+	public synchronized void setPolicy(LocalizationPolicy policy){
+		this.policy = policy;}
+	
+	/****
+	 * Get the measured time taken by each action performed while localizing
+	 * 
+	 * @return The motion profile of this localizer
+	 */
+	public MotionProfile getMotionProfile(){
+		return profile;}
+	
+	/****
+	 * Set the model of a single ping of the ultrasonic sensor, used to decide when
+	 * enough pings have been taken to know whether the robot is blocked
+	 * 
+	 * @param hit The probability a ping reads blocked when the tile in front is blocked
+	 * @param falseAlarm The probability a ping reads blocked when the tile in front is free
+	 */
+	public void setPingModel(float hit, float falseAlarm){
+		pingBlocked = (float)Math.log(hit / falseAlarm);
+		pingFree = (float)Math.log((1 - hit) / (1 - falseAlarm));
+	}
+	
+	/****
+	 * Set when to stop pinging to decide whether the robot is blocked
+	 * 
+	 * @param confidence The probability of the decision being correct at which to stop
+	 * @param maxSamples The number of pings after which to decide regardless
+	 */
+	public void setSampling(float confidence, int maxSamples){
+		this.decide = (float)Math.log(confidence / (1 - confidence));
+		this.maxSamples = Math.max(1, maxSamples);
+		this.sampling = new SamplingStatistics(this.maxSamples);
+	}
+	
+	/****
+	 * Set whether readings in <code>Mode.INFORMATION_GAIN</code> are the number of free
+	 * tiles in front of the robot, checked against the number of free tiles in front of
+	 * every starting state on the map, rather than only whether the robot is blocked.
+	 * 
+	 * @param maxTiles The largest number of free tiles the ultrasonic sensor can read
+	 * reliably, or 0 to only read whether the robot is blocked
+	 */
+	public void setRangeObservations(int maxTiles){
+		this.rangeTiles = Math.max(0, maxTiles);
+		this.rangeVotes = new int[rangeTiles + 1];
+	}
+	
+	/****
+	 * Get the number of pings and time taken by every decision of whether the
+	 * robot is blocked
+	 * 
+	 * @return The sampling statistics of this localizer
+	 */
+	public SamplingStatistics getSamplingStatistics(){
+		return sampling;}
+	
+	/****
+	 * Set whether the robot beeps and buzzes while localizing
+	 * 
+	 * @param sounds True to play sounds
+	 */
+	public void setSounds(boolean sounds){
+		this.sounds = sounds;}
+	
+	/****
+	 * Set whether the robot corrects its position using the last line crossed
+	 * after travelling a tile. Disable when <code>OdometryCorrection</code> is not running.
+	 * 
+	 * @param correction True to correct after travelling
+	 */
+	public void setCorrection(boolean correction){
+		this.correction = correction;}
+	
+	/****
+	 * Set the recorder to record every reading of the ultrasonic sensor to, marking the start of
+	 * every localization so it can be replayed
+	 * 
+	 * @param recorder The recorder, or null to stop recording
+	 */
+	public void setRecorder(TraceRecorder recorder){
+		this.recorder = recorder;}
 
 	/***
 	 * Get the starting pose or null if it has not yet been determined
@@ -52,49 +229,30 @@ public class Localizer {
 			return startingPoint;}
 	
 	/****
-	 * Check whether a position is blocked 
-	 * 
-	 * @param d The direction to check in
-	 * @param x The X coordinate of the position to check
-	 * @param y The Y coordinate of the position to check
-	 * @return True iff the position represented by d, x, y is blocked
-	 */
-	private boolean isBlocked(Direction d, byte x, byte y){
-		switch(d){
-		case UP: return (y + 1) == Main.NUM_TILES || map.get(x+Main.NUM_TILES + y + 1);
-		case DOWN:
-			return y == 0 || map.get(x+Main.NUM_TILES + y - 1);
-		case RIGHT:
-			return ((x+1) == Main.NUM_TILES || map.get((x+1)*Main.NUM_TILES + y));
-		case LEFT:
-			return (x == 0 || map.get((x-1)*Main.NUM_TILES + y));
-		default:
-			throw new RuntimeException("Invalid direction");
-		}
-		
+	 * Generate the set of all possible states. It is assumed that
+	 * the map has already be set.
+	 * 
+	 * @return A set of all possible starting positions
+	 */
+	HypothesisSet generatePossibleStates(){
+		return new HypothesisSet(getMap(), size);
 	}
 	
 	/****
-	 * Generate the list of all possible states. It is assumed that
-	 * the map has already be set.
+	 * Get the number of tiles along each side of the map
 	 * 
-	 * @return An arraylist of all possible starting positions
-	 */
-	private ArrayList<Position> generatePossibleStates(){
-		this.map = Main.getCurrentMap();
-		ArrayList<Position> possible = new ArrayList<Position>();
-		// Initialize possible states based on map
-		for (byte x = 0; x < Main.NUM_TILES; x++){
-			for(byte y = 0; y < Main.NUM_TILES; y++){
-				if (!map.get(x*Main.NUM_TILES + y)){
-					possible.add(new Position(x, y, Direction.UP, isBlocked(Direction.UP, x, y)));
-					possible.add(new Position(x, y, Direction.DOWN, isBlocked(Direction.DOWN, x, y)));
-					possible.add(new Position(x, y, Direction.RIGHT, isBlocked(Direction.RIGHT, x, y)));
-					possible.add(new Position(x, y, Direction.LEFT, isBlocked(Direction.LEFT, x, y)));}
-			}
-		}
-		return possible;
-	}
+	 * @return The size of the map
+	 */
+	int getSize(){
+		return size;}
+	
+	/****
+	 * Get the map to localize on
+	 * 
+	 * @return The map passed in during instantiation, or the current map if none was
+	 */
+	BitSet getMap(){
+		return map != null ? map : Main.getCurrentMap();}
 	
 	
 	/*******
@@ -104,28 +262,62 @@ public class Localizer {
 	 * @return A filtered value of the distance from the wall
 	 */
 	private int getFilteredData() {
-		int dist;
-		// do a ping
-		us_scanner.ping();
-		// wait for the ping to complete
-		try {
-			Thread.sleep(25);
-		} catch (InterruptedException e) {
-		}
-
-		// there will be a delay here
-		dist = us_scanner.getDistance();
+		int dist = getRawData();
 		return dist > 50 ? 50 : dist;
 	}
+	
+	/*******
+	 * Get a single ping from the ultrasonic sensor for the current distance from the
+	 * wall
+	 * 
+	 * @return The distance from the wall, 255 if there was no echo
+	 */
+	private int getRawData() {
+		int dist;
+		if (us_scanner instanceof UltrasonicSensor){
+			UltrasonicSensor us = (UltrasonicSensor)us_scanner;
+			// do a ping
+			us.ping();
+			
+			// getDistance waits until the ping has completed, so there
+			// will be a delay here only as long as the sensor needs
+			dist = us.getDistance();
+		} else
+			dist = (int)us_scanner.getRange();
+		if (recorder != null) recorder.recordRange(dist);
+		return dist;
+	}
 	/********
-	 * Perform Localization using a known map
+	 * Perform Localization using a known map, using the current <code>Mode</code>
 	 * 
 	 * @return Number of observations made
 	 * @since v4
 	 */
 	public int localize(){
-		ArrayList<Position> seen = new ArrayList<Position>();		// All of the places we've been
-		ArrayList<Position> possible = generatePossibleStates(); 	// All possible starting points left
+		LocalizationPolicy policy;
+		synchronized (this) {
+			policy = this.policy;}
+		if (recorder != null) recorder.mark(TraceRecorder.LOCALIZE, odo.getPose());
+		
+		if (mode == Mode.POLICY && policy != null)
+			return localize(policy);
+		if (mode == Mode.INFORMATION_GAIN)
+			return localizeInformationGain();
+		if (mode == Mode.SWEEP)
+			return localizeSweep();
+		return localizeGreedy();
+	}
+	
+	/********
+	 * Perform Localization using a known map, deciding where to move using
+	 * fixed rules
+	 * 
+	 * @return Number of observations made
+	 * @since v4
+	 */
+	private int localizeGreedy(){
+		BitSet seen = new BitSet();		// All of the places we've been
+		HypothesisSet possible = generatePossibleStates(); 	// All possible starting points left
 		
 		// Current direction relative to where we started
 		Direction current = Direction.UP;	
@@ -137,20 +329,20 @@ public class Localizer {
 		while (possible.size() > 1) { // Narrow down list of states until we know where we started
 			
 			// Check if we've been where we are before, if so, try to find a new location
-			if (contains(seen, new Position(x, y, null, false))){
+			if (contains(seen, Position.pack(x, y, current, false))){
 				boolean isBlocked = getBlockedStatus();
 				
-				if (isBlocked || (contains(seen, forward(new Position(x, y, current, false))) && !secondPass)){
-					pilot.rotate(-90);
+				if (isBlocked || (contains(seen, Position.forward(Position.pack(x, y, current, false))) && !secondPass)){
+					rotate(-90);
 					current = Position.rotateRight(current);
 					isBlocked = getBlockedStatus();
-					if (isBlocked || (contains(seen, forward(new Position(x, y, current, false))) && !secondPass)){
-						pilot.rotate(180);
+					if (isBlocked || (contains(seen, Position.forward(Position.pack(x, y, current, false))) && !secondPass)){
+						rotate(180);
 						current = Position.rotateLeft(Position.rotateLeft(current));
 						isBlocked = getBlockedStatus();
 						if (isBlocked && !secondPass){
 							secondPass = true;
-							pilot.rotate(-90);
+							rotate(-90);
 							current = Position.rotateRight(current);
 							continue;
 						} else if (isBlocked && secondPass){
@@ -158,15 +350,10 @@ public class Localizer {
 						}
 					}
 				}
-				pilot.travel(Main.TILE_WIDTH);
-				switch(current){
-					case DOWN: y--; break;
-					case LEFT: x--; break;
-					case RIGHT: x++; break;
-					case UP: y++; break;
-					default: throw new RuntimeException("Shouldn't Happen");
-				}
-				if (possible.size() != 1) correct();
+				travel(Main.TILE_WIDTH);
+				x += Position.FORWARD_X[current.v];
+				y += Position.FORWARD_Y[current.v];
+				if (possible.size() != 1 && correction) correct();
 			}
 			secondPass = false;
 			
@@ -175,15 +362,9 @@ public class Localizer {
 			
 			// Check forward
 			if (isBlocked)
-				Sound.buzz();
+				buzz();
 			observations++;
-			Position me = new Position(x, y, current, isBlocked);
-			Iterator<Position> iter = possible.iterator();
-			
-			while (iter.hasNext()){
-				if(!valid(iter.next(), me))
-					iter.remove();
-			}
+			possible.observe(x, y, current, isBlocked);
 			
 			if (possible.size() == 1) break;
 			else if (possible.size() < 1) localize();
@@ -191,21 +372,15 @@ public class Localizer {
 			/********************************************/
 			
 			// Check right
-			pilot.rotate(-90);
+			rotate(-90);
 			current = Position.rotateRight(current);
 			rightBlocked = getBlockedStatus();
 			
 			if (rightBlocked)
-				Sound.buzz();
+				buzz();
 			
 			observations++;
-			me = new Position(x, y, current, rightBlocked);
-			iter = possible.iterator();
-			
-			while (iter.hasNext()){
-				if(!valid(iter.next(), me))
-					iter.remove();
-			}
+			possible.observe(x, y, current, rightBlocked);
 			
 			if (possible.size() == 1) break;
 			else if (possible.size() < 1) localize();
@@ -213,20 +388,15 @@ public class Localizer {
 			
 			/********************************************/
 			// Check left
-			pilot.rotate(180);
+			rotate(180);
 			current = Position.rotateLeft(Position.rotateLeft(current));
 			leftBlocked = getBlockedStatus();
 			
 			if (leftBlocked)
-				Sound.buzz();
+				buzz();
 			
 			observations++;
-			me = new Position(x, y, current, leftBlocked);
-			iter = possible.iterator();
-			while (iter.hasNext()){
-				if(!valid(iter.next(), me))
-					iter.remove();
-			}
+			possible.observe(x, y, current, leftBlocked);
 			
 			if (possible.size() == 1) break;
 			else if (possible.size() < 1) localize();
@@ -234,36 +404,416 @@ public class Localizer {
 			/********************************************/
 			// Decide where to move
 			
-			if (!leftBlocked && !contains(seen, forward(new Position(x, y, current, false))));
-			else if (!isBlocked && !contains(seen, forward(new Position(x, y, Position.rotateRight(current), false)))){
-				pilot.rotate(-90);
+			if (!leftBlocked && !contains(seen, Position.forward(Position.pack(x, y, current, false))));
+			else if (!isBlocked && !contains(seen, Position.forward(Position.pack(x, y, Position.rotateRight(current), false)))){
+				rotate(-90);
 				current = Position.rotateRight(current);
-			} else if (!rightBlocked && !contains(seen, forward(new Position(x, y, Position.rotateRight(Position.rotateRight(current)), false)))){
-				pilot.rotate(-180);
+			} else if (!rightBlocked && !contains(seen, Position.forward(Position.pack(x, y, Position.rotateRight(Position.rotateRight(current)), false)))){
+				rotate(-180);
 				current = Position.rotateRight(Position.rotateRight(current));
 			} else {
-				pilot.rotate(90);
+				rotate(90);
 				current = Position.rotateLeft(current);
 			}
 
-			seen.add(new Position(x, y, null, false));
-			pilot.travel(Main.TILE_WIDTH);
-			switch(current){
-				case DOWN: y--; break;
-				case LEFT: x--; break;
-				case RIGHT: x++; break;
-				case UP: y++; break;
-				default: throw new RuntimeException("Shouldn't Happen");
-			}
-			if (possible.size() != 1) correct();
+			add(seen, Position.pack(x, y, current, false));
+			travel(Main.TILE_WIDTH);
+			x += Position.FORWARD_X[current.v];
+			y += Position.FORWARD_Y[current.v];
+			if (possible.size() != 1 && correction) correct();
 		}
 
 		if (possible.size() != 1) localize();		// restart if error
 		
-		startingPoint = possible.get(0);
+		setStartingPoint(possible.first(), x, y, current);
+		return observations;	
+	}
+	
+	/********
+	 * Perform Localization using a known map by walking a precomputed policy.
+	 * If a reading contradicts every remaining starting state, localization restarts
+	 * from the current position.
+	 * 
+	 * @param policy The policy compiled for the current map
+	 * @return Number of observations made
+	 * @since v5
+	 */
+	private int localize(LocalizationPolicy policy){
+		HypothesisSet possible = generatePossibleStates(); 	// All possible starting points left
+		int observations = 0, node = 0;						// # of observations, current node of the policy
+		relX = relY = 0;
+		relDir = Direction.UP;
 		
-		float real_x = Position.relativeX(startingPoint, new Position(x, y, current, false));
-		float real_y = Position.relativeY(startingPoint, new Position(x, y, current, false));
+		while (true){
+			switch (policy.getAction(node)){
+			case LocalizationPolicy.TURN_LEFT:
+				turn(1);
+				node = policy.next(node);
+				break;
+			case LocalizationPolicy.TURN_RIGHT:
+				turn(-1);
+				node = policy.next(node);
+				break;
+			case LocalizationPolicy.TURN_AROUND:
+				turn(2);
+				node = policy.next(node);
+				break;
+			case LocalizationPolicy.TRAVEL:
+				travelTile();
+				node = policy.next(node);
+				break;
+			case LocalizationPolicy.SENSE:
+				boolean isBlocked = getBlockedStatus();
+				if (isBlocked)
+					buzz();
+				observations++;
+				if (possible.observe(relX, relY, relDir, isBlocked) < 1)
+					return observations + localize();		// restart if error
+				node = policy.next(node, isBlocked);
+				break;
+			case LocalizationPolicy.DONE:
+				if (possible.size() != 1)
+					return observations + localize();		// restart if error
+				setStartingPoint(possible.first(), relX, relY, relDir);
+				return observations;
+			default:
+				// Remaining states can't be told apart by the policy
+				return observations + localizeGreedy();
+			}
+		}
+	}
+	
+	/********
+	 * Perform Localization using a known map. Each move is the rotation, or rotation
+	 * followed by a travel of 1 tile, whose sense is expected to remove the most possible 
+	 * starting states per second of motion. If no such move removes any starting states,
+	 * the robot moves to the closest pose where a sense does.
+	 * 
+	 * @return Number of observations made
+	 * @since v5
+	 */
+	private int localizeInformationGain(){
+		HypothesisSet possible = generatePossibleStates(); 	// All possible starting points left
+		PoseSearch search = new PoseSearch(size);
+		int observations = 0;
+		relX = relY = 0;
+		relDir = Direction.UP;
+		
+		observations++;
+		int n = observe(possible);
+		
+		while (n > 1) {
+			float quarterTurn = profile.rotateTime(90), halfTurn = profile.rotateTime(180),
+				tile = profile.travelTime(Main.TILE_WIDTH), sense = profile.senseTime();
+			
+			// Score every rotation, with and without travelling 1 tile after it
+			float best = 0;
+			int bestTurn = 0;
+			boolean bestTravel = false;
+			for (int turn = -1; turn <= 2; turn++){
+				Direction d = Direction.fromValue(relDir.v + turn);
+				
+				for (int travel = 0; travel < 2; travel++){
+					int x = relX, y = relY;
+					if (travel == 1){
+						x += Position.FORWARD_X[d.v];
+						y += Position.FORWARD_Y[d.v];
+						if (!possible.isFree(x, y)) continue;
+					}
+					
+					float removed = n - remaining(possible, x, y, d, n) / n;
+					float time = (turn == 0 ? 0 : turn == 2 ? halfTurn : quarterTurn) + travel * tile + sense;
+					if (removed / time > best){
+						best = removed / time;
+						bestTurn = turn;
+						bestTravel = travel == 1;
+					}
+				}
+			}
+			
+			if (best > 0){
+				turn(bestTurn);
+				if (bestTravel) travelTile();
+			} else {
+				// Nothing nearby removes any states, move to the closest pose that does
+				search.search(possible, relX, relY, relDir, quarterTurn, halfTurn, tile);
+				int target = -1;
+				for (int i = 0; i < search.settled() && target < 0; i++){
+					int s = search.settled(i);
+					if (remaining(possible, search.getX(s), search.getY(s), search.getDir(s), n) < n * (float)n)
+						target = s;
+				}
+				// Remaining states can't be told apart from anywhere reachable
+				if (target < 0) return observations + localizeGreedy();
+				moveTo(search, target);
+			}
+			
+			observations++;
+			n = observe(possible);
+			if (n < 1)
+				return observations + localize();		// restart if error
+		}
+		
+		setStartingPoint(possible.first(), relX, relY, relDir);
+		return observations;
+	}
+	
+	/********
+	 * Perform Localization using a known map, reading all four directions at every tile
+	 * during a single rotation with the ultrasonic sensor in continuous mode, instead of
+	 * stopping for every reading. After each sweep the robot travels to the adjacent tile
+	 * whose sweep is expected to remove the most possible starting states per second, or
+	 * to the closest tile where a sweep removes any if none of the adjacent tiles do.
+	 * 
+	 * @return Number of observations made
+	 * @since v5
+	 */
+	private int localizeSweep(){
+		HypothesisSet possible = generatePossibleStates(); 	// All possible starting points left
+		HypothesisSet[] partition = new HypothesisSet[5];	// Starting states left after each direction of a sweep
+		for (int i = 0; i < partition.length; i++)
+			partition[i] = new HypothesisSet(possible);
+		PoseSearch search = new PoseSearch(size);
+		byte[] status = new byte[4];
+		int observations = 0, n;
+		relX = relY = 0;
+		relDir = Direction.UP;
+		
+		while (true) {
+			sweep(status);
+			for (int k = 0; k < 4; k++){
+				if (status[k] < 0) continue;		// No samples in this direction
+				if (status[k] == 1)
+					buzz();
+				observations++;
+				possible.observe(relX, relY, Direction.fromValue(relDir.v + k), status[k] == 1);
+			}
+			
+			n = possible.size();
+			if (n < 1)
+				return observations + localize();		// restart if error
+			if (n == 1) break;
+			
+			float quarterTurn = profile.rotateTime(90), halfTurn = profile.rotateTime(180),
+				tile = profile.travelTime(Main.TILE_WIDTH), sweep = profile.rotateTime(360);
+			
+			// Score travelling to every adjacent tile and sweeping there
+			float best = 0;
+			int bestTurn = -2;
+			for (int turn = -1; turn <= 2; turn++){
+				Direction d = Direction.fromValue(relDir.v + turn);
+				int x = relX + Position.FORWARD_X[d.v], y = relY + Position.FORWARD_Y[d.v];
+				if (!possible.isFree(x, y)) continue;
+				
+				partition[0].set(possible);
+				float removed = n - remaining(partition, 0, x, y) / n;
+				float time = (turn == 0 ? 0 : turn == 2 ? halfTurn : quarterTurn) + tile + sweep;
+				if (removed / time > best){
+					best = removed / time;
+					bestTurn = turn;
+				}
+			}
+			
+			if (bestTurn > -2){
+				turn(bestTurn);
+				travelTile();
+			} else {
+				// No adjacent sweep removes any states, move to the closest tile where one does
+				search.search(possible, relX, relY, relDir, quarterTurn, halfTurn, tile);
+				int target = -1;
+				for (int i = 0; i < search.settled() && target < 0; i++){
+					int s = search.settled(i);
+					for (int k = 0; k < 4 && target < 0; k++){
+						int blocked = possible.count(search.getX(s), search.getY(s), Direction.fromValue(k), true);
+						if (blocked != 0 && blocked != n)
+							target = s;
+					}
+				}
+				// Remaining states can't be told apart from anywhere reachable
+				if (target < 0) return observations + localizeGreedy();
+				moveTo(search, target);
+			}
+		}
+		
+		setStartingPoint(possible.first(), relX, relY, relDir);
+		return observations;
+	}
+	
+	/****
+	 * Get the sum of the squares of the number of starting states left for every
+	 * possible result of a sweep, that is the expected number of starting states left
+	 * after the sweep times the number before it
+	 * 
+	 * @param partition The starting states before the sweep at index <code>depth</code>, 
+	 * and space for the states left after each following direction
+	 * @param depth The number of directions of the sweep already applied
+	 * @param x X coordinate of the sweep relative to the start
+	 * @param y Y coordinate of the sweep relative to the start
+	 * @return The sum of the squares of the number of starting states left
+	 */
+	private float remaining(HypothesisSet[] partition, int depth, int x, int y){
+		int n = partition[depth].size();
+		if (depth == 4 || n <= 1) return n * (float)n;
+		
+		float sum = 0;
+		for (int r = 0; r < 2; r++){
+			partition[depth + 1].set(partition[depth]);
+			if (partition[depth + 1].observe(x, y, Direction.fromValue(depth), r == 0) > 0)
+				sum += remaining(partition, depth + 1, x, y);
+		}
+		return sum;
+	}
+	
+	/****
+	 * Rotate 360 degrees while reading the ultrasonic sensor in continuous mode, recording
+	 * the angle turned when each sample was taken, and decide whether the robot is blocked
+	 * in each direction from the samples taken within a window of that direction
+	 * 
+	 * @param status Set to 1 if blocked, 0 if free or -1 if no samples were taken in each
+	 * direction, indexed by the number of left turns from the current direction
+	 */
+	void sweep(byte[] status){
+		long start = System.currentTimeMillis();
+		UltrasonicSensor us = us_scanner instanceof UltrasonicSensor ? (UltrasonicSensor)us_scanner : null;
+		if (us != null)
+			us.continuous();
+		
+		sweepSize = 0;
+		pilot.rotate(360, true);
+		while (pilot.isMoving()){
+			if (sweepSize < SWEEP_SAMPLES){
+				// The sample is taken between the two headings
+				float before = pilot.getMovement().getAngleTurned();
+				float range = us_scanner.getRange();
+				if (recorder != null) recorder.recordRange((int)range);
+				sweepAngles[sweepSize] = (before + pilot.getMovement().getAngleTurned()) / 2f;
+				sweepRanges[sweepSize++] = range;
+			}
+			if (us != null){
+				try {
+					Thread.sleep(SWEEP_PERIOD);
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+		profile.recordRotation(360, System.currentTimeMillis() - start);
+		
+		for (int k = 0; k < 4; k++){
+			int samples = 0, blocked = 0;
+			for (int i = 0; i < sweepSize; i++){
+				float offset = Math.abs(((sweepAngles[i] - 90 * k) % 360 + 540) % 360 - 180);
+				if (offset > SWEEP_WINDOW) continue;
+				samples++;
+				if (Math.min(sweepRanges[i], 50) < Main.TILE_WIDTH * 2f/3f)
+					blocked++;
+			}
+			status[k] = (byte)(samples == 0 ? -1 : 2 * blocked > samples ? 1 : 0);
+		}
+	}
+	
+	/****
+	 * Take a reading at the current pose and remove every starting state inconsistent with it,
+	 * reading the number of free tiles in front if range observations are enabled
+	 * 
+	 * @param possible The remaining starting states
+	 * @return The number of starting states still possible
+	 */
+	private int observe(HypothesisSet possible){
+		if (rangeTiles == 0){
+			boolean isBlocked = getBlockedStatus();
+			if (isBlocked)
+				buzz();
+			return possible.observe(relX, relY, relDir, isBlocked);
+		}
+		
+		int free = getFreeTiles();
+		if (free == 0)
+			buzz();
+		return possible.observe(relX, relY, relDir, free, free == rangeTiles);
+	}
+	
+	/****
+	 * Get the sum of the squares of the number of starting states left for every possible
+	 * reading at a pose, that is the expected number of starting states left after the reading
+	 * times the number before it
+	 * 
+	 * @param possible The remaining starting states
+	 * @param x X coordinate of the reading relative to the start
+	 * @param y Y coordinate of the reading relative to the start
+	 * @param d Direction faced during the reading relative to the start
+	 * @param n The number of remaining starting states
+	 * @return The sum of the squares of the number of starting states left
+	 */
+	private float remaining(HypothesisSet possible, int x, int y, Direction d, int n){
+		if (rangeTiles == 0){
+			int blocked = possible.count(x, y, d, true), free = n - blocked;
+			return blocked * (float)blocked + free * (float)free;
+		}
+		
+		float sum = 0;
+		for (int k = 0; k <= rangeTiles; k++){
+			int c = possible.count(x, y, d, k, k == rangeTiles);
+			sum += c * (float)c;
+		}
+		return sum;
+	}
+	
+	/****
+	 * Perform the moves found by a search to reach a pose
+	 * 
+	 * @param search The search from the current pose
+	 * @param target The state of the pose to move to
+	 */
+	void moveTo(PoseSearch search, int target){
+		int length = 0;
+		for (int s = target; search.previous(s) >= 0; s = search.previous(s)) length++;
+		int[] path = new int[length + 1];
+		for (int s = target, i = length; i >= 0; s = search.previous(s), i--) path[i] = s;
+		
+		for (int i = 1; i <= length; i++){
+			int from = path[i - 1] & 3, to = path[i] & 3;
+			if (from == to) travelTile();
+			else turn(to - from == 2 || from - to == 2 ? 2 : ((to - from) & 3) == 1 ? 1 : -1);
+		}
+	}
+	
+	/****
+	 * Rotate in place by a number of quarter turns and update the current direction
+	 * relative to where we started
+	 * 
+	 * @param quarters The number of quarter turns, positive is left
+	 */
+	void turn(int quarters){
+		if (quarters == 0) return;
+		rotate(quarters == 2 ? 180 : 90 * quarters);
+		relDir = Direction.fromValue(relDir.v + quarters);
+	}
+	
+	/****
+	 * Travel 1 tile forward, update the current position relative to where we started
+	 * and correct using the line crossed
+	 */
+	void travelTile(){
+		travel(Main.TILE_WIDTH);
+		relX += Position.FORWARD_X[relDir.v];
+		relY += Position.FORWARD_Y[relDir.v];
+		if (correction) correct();
+	}
+	
+	/****
+	 * Set the starting point once it is known, and correct the odometer to the
+	 * current position on the map.
+	 * 
+	 * @param start The starting position
+	 * @param x X coordinate relative to where we started
+	 * @param y Y coordinate relative to where we started
+	 * @param current Direction relative to where we started
+	 */
+	void setStartingPoint(Position start, int x, int y, Direction current){
+		startingPoint = start;
+		
+		float real_x = Position.relativeX(startingPoint, x, y);
+		float real_y = Position.relativeY(startingPoint, x, y);
 		Direction real = startingPoint.getDir();
 		for (int i = 0; i < current.v; i++)
 			real = Position.rotateLeft(real);
@@ -279,29 +829,102 @@ public class Localizer {
 		
 		odo.setPose(new Pose(real_x * Main.TILE_WIDTH - Main.TILE_WIDTH /2f, real_y * Main.TILE_WIDTH - Main.TILE_WIDTH /2f, heading));
 		
-		Sound.beep();
-		return observations;	
+		if (sounds)
+			Sound.beep();
+	}
+	
+	/****
+	 * Signal that the robot read that it is blocked
+	 */
+	void buzz(){
+		if (sounds)
+			Sound.buzz();}
+	
+	/****
+	 * Rotate in place, recording the time taken
+	 * 
+	 * @param angle The angle to rotate, positive is left
+	 */
+	private void rotate(double angle){
+		long start = System.currentTimeMillis();
+		pilot.rotate(angle);
+		profile.recordRotation(angle, System.currentTimeMillis() - start);
+	}
+	
+	/****
+	 * Travel in a straight line, recording the time taken
+	 * 
+	 * @param distance The distance to travel
+	 */
+	private void travel(double distance){
+		long start = System.currentTimeMillis();
+		pilot.travel(distance);
+		profile.recordTravel(distance, System.currentTimeMillis() - start);
 	}
 	
 	/****
 	 * Method to return whether the robot is currently blocked in the forward direction.
 	 * Factored out to allow for changing of threshold in a central location.
+	 * <br><br>
+	 * Pings are taken until the decision reaches the confidence set with
+	 * {@link #setSampling(float, int)}, so clean readings stop after as few pings as
+	 * possible while disagreeing readings take more.
 	 * 
 	 * @since v4
 	 * 
 	 * @see #getFilteredData()
 	 * @return true iff the robot is currently blocked in the forward direction.
 	 */
-	private boolean getBlockedStatus() {
-		for (int i = 0; i < 4; i++){
-			boolean ping1 = getFilteredData() < Main.TILE_WIDTH * 2f/3f;
-			boolean ping2 = getFilteredData() < Main.TILE_WIDTH * 2f/3f;
-			
-			if (ping1 == ping2)
-				return ping1;
+	boolean getBlockedStatus() {
+		long start = System.currentTimeMillis();
+		
+		// Sequential probability ratio test: ping until the log likelihood ratio of
+		// blocked against free is beyond the confidence set in either direction
+		float ratio = 0;
+		int samples = 0;
+		while (samples < maxSamples && ratio < decide && ratio > -decide){
+			ratio += getFilteredData() < Main.TILE_WIDTH * 2f/3f ? pingBlocked : pingFree;
+			samples++;
 		}
 		
-		return getFilteredData() < Main.TILE_WIDTH * 2f / 3f;
+		long ms = System.currentTimeMillis() - start;
+		profile.recordSense(ms);
+		sampling.record(samples, ms);
+		return ratio > 0;
+	}
+
+	/****
+	 * Get the number of free tiles in front of the robot. Pings are taken until two of them
+	 * read the same number of free tiles, or the maximum number of pings set with
+	 * {@link #setSampling(float, int)} is reached, in which case the most common number is used.
+	 * A ping reads blocked (0 free tiles) under the same threshold as {@link #getBlockedStatus()},
+	 * and each further tile adds one tile width.
+	 * 
+	 * @return The number of free tiles in front of the robot, at most the number set with
+	 * {@link #setRangeObservations(int)}
+	 */
+	int getFreeTiles(){
+		long start = System.currentTimeMillis();
+		for (int k = 0; k <= rangeTiles; k++)
+			rangeVotes[k] = 0;
+		
+		int samples = 0, free = -1;
+		while (samples < maxSamples && free < 0){
+			int k = Math.min(rangeTiles, (int)((getRawData() + Main.TILE_WIDTH / 3f) / Main.TILE_WIDTH));
+			samples++;
+			if (++rangeVotes[k] == 2)
+				free = k;
+		}
+		if (free < 0){
+			free = 0;
+			for (int k = 1; k <= rangeTiles; k++)
+				if (rangeVotes[k] > rangeVotes[free]) free = k;
+		}
+		
+		long ms = System.currentTimeMillis() - start;
+		profile.recordSense(ms);
+		sampling.record(samples, ms);
+		return free;
 	}
 
 	/********
@@ -311,28 +934,23 @@ public class Localizer {
 	 * @deprecated
 	 */
 	public int localize_old() {
-		ArrayList<Position> seen = new ArrayList<Position>();
+		BitSet seen = new BitSet();
 		
-		ArrayList<Position> possible = generatePossibleStates();
+		HypothesisSet possible = generatePossibleStates();
 		// Current direction relative to where we started
 		Direction current = Direction.UP;	
 		// Current X and Y relative to where we started, # of observations
 		int x = 0, y = 0, observations = 0;	
 		
 		while (possible.size() > 1) { // Narrow down list of states until we know where we started
-			seen.add(new Position(x, y, null, false));
+			add(seen, Position.pack(x, y, current, false));
 			boolean isBlocked = true;
 			for (byte i = 0; i < 4 && possible.size() > 1; i++){
 				isBlocked = getFilteredData() < (Main.TILE_WIDTH);
 				observations++;
-				Position me = new Position(x, y, current, isBlocked);
-				Iterator<Position> iter = possible.iterator();
-				while (iter.hasNext()){
-					if(!valid(iter.next(), me))
-						iter.remove();
-				}
+				possible.observe(x, y, current, isBlocked);
 				if (i != 3){
-					pilot.rotate(-90, false);
+					rotate(-90);
 					current = Position.rotateRight(current);}
 			}
 			
@@ -342,25 +960,20 @@ public class Localizer {
 				
 				while (!foundNewSpot){
 					int checkCount = 0;
-					while (isBlocked && !contains(seen, forward(new Position(x, y, current, false))) && ++checkCount < 4){
-						pilot.rotate(-90, false);
+					while (isBlocked && !contains(seen, Position.forward(Position.pack(x, y, current, false))) && ++checkCount < 4){
+						rotate(-90);
 						current = Position.rotateRight(current);
 						isBlocked = getFilteredData() < Main.TILE_WIDTH;
 					}
 				
-					pilot.travel(Main.TILE_WIDTH);
-					switch(current){
-					case DOWN: y--; break;
-					case LEFT: x--; break;
-					case RIGHT: x++; break;
-					case UP: y++; break;
-					default: throw new RuntimeException("Shouldn't Happen");
-					}
+					travel(Main.TILE_WIDTH);
+					x += Position.FORWARD_X[current.v];
+					y += Position.FORWARD_Y[current.v];
 					
-					if (!contains(seen, new Position(x, y, null, false)))
+					if (!contains(seen, Position.pack(x, y, current, false)))
 						foundNewSpot = true;
 					
-					if (possible.size() != 1) correct();
+					if (possible.size() != 1 && correction) correct();
 				}
 			lejos.util.Delay.msDelay(300);
 			}	
@@ -369,106 +982,43 @@ public class Localizer {
 		if (possible.size() != 1)
 			throw new RuntimeException("No possible states");
 		
-		startingPoint = possible.get(0);
-		
-		float real_x = Position.relativeX(startingPoint, new Position(x, y, current, false));
-		float real_y = Position.relativeY(startingPoint, new Position(x, y, current, false));
-		Direction real = startingPoint.getDir();
-		for (int i = 0; i < current.v; i++)
-			real = Position.rotateLeft(real);
-		
-		float heading = 0;
-		switch (real){
-			case UP: heading = 90f; break;
-			case DOWN: heading = -90f; break;
-			case RIGHT: heading = 0f; break;
-			case LEFT: heading = 180f; break;
-			default: throw new RuntimeException("Invalid direction");
-		}
-		
-		odo.setPose(new Pose(real_x * Main.TILE_WIDTH - Main.TILE_WIDTH /2f, real_y * Main.TILE_WIDTH - Main.TILE_WIDTH /2f, heading));
-		
-		Sound.beep();
+		setStartingPoint(possible.first(), x, y, current);
 		return observations;	
 	}
 
 
 
-	/****
-	 * Check whether a position r is possible from position s
-	 * @param s The starting position to use as a 'base'
-	 * @param r Where the robot is relative to where it started (current observation)
-	 * @see Position
-	 * @return True iff the position the position r is possible relative to position s
-	 */
-	private boolean valid(Position s, Position r){
-		// Get real direction to check based on Position checking and 
-		// where we are facing based on where we started
-		Direction correctedDir = s.getDir();
-		for (int i = 0; i < r.getDir().v; i++)
-			correctedDir = Position.rotateLeft(correctedDir);
-		
-		// Get position
-		byte x = Position.relativeX(s, r);
-		byte y = Position.relativeY(s, r);
-		
-		if (x < 0 || x > (Main.NUM_TILES - 1) || y < 0 || y > (Main.NUM_TILES - 1) || map.get(x*Main.NUM_TILES + y)) return false;
-		
-		
-		switch(correctedDir){
-		case UP:
-			if (r.isBlocked())
-				return (y == (Main.NUM_TILES - 1) || map.get(x*Main.NUM_TILES + y + 1));
-			else
-				return (y < (Main.NUM_TILES - 1) && !map.get(x*Main.NUM_TILES + y + 1));
-		case DOWN:
-			if (r.isBlocked())
-				return (y == 0 || map.get(x*Main.NUM_TILES + y - 1));
-			else
-				return (y > 0 && !map.get(x*Main.NUM_TILES + y - 1));
-		case LEFT:
-			if (r.isBlocked())
-				return (x == 0 || map.get((x-1)*Main.NUM_TILES + y));
-			else
-				return (x > 0 && !map.get((x-1)*Main.NUM_TILES + y));
-		case RIGHT:
-			if (r.isBlocked())
-				return (x == (Main.NUM_TILES - 1) || map.get((x+1)*Main.NUM_TILES + y));
-			else
-				return (x < (Main.NUM_TILES - 1) && !map.get((x+1)*Main.NUM_TILES + y));}
-		return true;
+	/***
+	 * Check whether the tile of the packed position p has been seen. Tiles are indexed
+	 * by their X and Y coordinates relative to where we started.
+	 * @param seen The bitmap of tiles seen
+	 * @param p The packed position to check for
+	 * @return true iff the tile of p has been seen, otherwise false
+	 */
+	private boolean contains(BitSet seen, int p){
+		int i = seenIndex(p);
+		return i >= 0 && seen.get(i);
 	}
 	
-	/****
-	 * Get the position 1 forward from the position p. No error checking on the
-	 * validity of the position is performed. 
-	 * @see Position
-	 * @param p The starting position
-	 * @return The position 1 forward from p
-	 */
-	private static Position forward(Position p){
-		switch(p.getDir()){
-		case DOWN: return new Position(p.getX(), p.getY() - 1, null, false);
-		case LEFT: return new Position(p.getX() - 1, p.getY(), null, false);
-		case RIGHT: return new Position(p.getX() + 1, p.getY(), null, false);
-		case UP: return new Position(p.getX(), p.getY() + 1, null, false);
-		default: throw new RuntimeException("Invalid direction in Localizer.forward()");
-		}
+	/***
+	 * Mark the tile of the packed position p as seen
+	 * @param seen The bitmap of tiles seen
+	 * @param p The packed position to add
+	 */
+	private void add(BitSet seen, int p){
+		int i = seenIndex(p);
+		if (i >= 0) seen.set(i);
 	}
 	
 	/***
-	 * Check whether the Position p is containined in the ArrayList seen. A
-	 * position is considered contained within seen iff the X and Y coordinates
-	 * are equal
-	 * @param seen The arraylist of positions to check from
-	 * @param p The position to check for
-	 * @return true iff the p is contained with seen, otherwise false
-	 */
-	private static boolean contains(ArrayList<Position> seen, Position p){
-		for (Position q : seen)
-			if (q.getX() == p.getX() && q.getY() == p.getY())
-				return true;
-		return false;
+	 * Get the index of the tile of a packed relative position in a bitmap of tiles seen
+	 * @param p The packed position
+	 * @return The index of the tile, or -1 if the tile can't be on the map
+	 */
+	private int seenIndex(int p){
+		int x = Position.getX(p) + size - 1, y = Position.getY(p) + size - 1;
+		if (x < 0 || y < 0 || x > 2 * size - 2 || y > 2 * size - 2) return -1;
+		return x * (2 * size - 1) + y;
 	}
 	
 	/*****
@@ -478,9 +1028,16 @@ public class Localizer {
 	 * @see OdometryCorrection
 	 */
 	private void correct(){
+		if (odo instanceof PoseEstimator) return;		// Already corrected by the lines crossed
 		Pose current = odo.getPose();
-		double ang = OdometryCorrection.lastHeadingCorrection();
-		double dist = OdometryCorrection.lastDistanceCorrection();
+		double ang = 0, dist = 0;
+		if (OdometryCorrection.getCrossings().readLatest(crossings, crossing)){
+			crossings = crossing.getNumber() + 1;
+			if (!crossing.isCorrected()){
+				ang = crossing.getHeadingError();
+				dist = OdometryCorrection.distanceCorrection(crossing, current);
+			}
+		}
 		
 		
 		if (dist > 0){
@@ -0,0 +1,235 @@
+package localization;
+
+import java.util.BitSet;
+
+import main.Main;
+import navigation.MotionProfile;
+
+/*******
+ * Compiles a <code>LocalizationPolicy</code> for a map.
+ * <br><br>
+ * Starting with every possible starting state, the compiler searches every pose the
+ * robot can safely reach (tiles which are free for every remaining starting state)
+ * in order of expected time to get there, and chooses the pose and sense which minimizes
+ * the expected time until a single starting state remains. The remaining time after
+ * a sense is estimated as the time needed to halve the remaining states once per
+ * bit of information still missing, or by searching the result of the sense again
+ * up to <code>lookahead</code> senses deep. The chosen moves and sense are written
+ * to the table and both possible readings are compiled the same way.
+ *
+ * @author Scott Cooper
+ * @since v5
+ * @see LocalizationPolicy
+ */
+class PolicyCompiler {
+	private static final int BREADTH = 6;		// Number of candidates refined when looking ahead
+
+	private final BitSet map;
+	private final int size, lookahead;
+	private final float quarterTurn, halfTurn, tile, sense, bit;	// Expected time of each action in ms
+	private final PoseSearch search;
+	private int bestTarget;
+
+	// Table being compiled
+	private byte[] actions = new byte[64];
+	private short[] first = new short[64], second = new short[64];
+	private int nodes;
+
+	/****
+	 * Create a new compiler
+	 *
+	 * @param map The map to compile a policy for
+	 * @param size The number of tiles along each side of the map
+	 * @param costs The expected time of every action
+	 * @param lookahead The number of senses to look ahead when choosing each sense
+	 */
+	PolicyCompiler(BitSet map, int size, MotionProfile costs, int lookahead){
+		this.map = map;
+		this.size = size;
+		this.lookahead = Math.max(1, lookahead);
+		this.quarterTurn = costs.rotateTime(90);
+		this.halfTurn = costs.rotateTime(180);
+		this.tile = costs.travelTime(Main.TILE_WIDTH);
+		this.sense = costs.senseTime();
+		this.bit = sense + quarterTurn;
+		this.search = new PoseSearch(size);
+	}
+
+	/****
+	 * Compile the policy
+	 *
+	 * @return The compiled policy
+	 */
+	LocalizationPolicy compile(){
+		nodes = 0;
+		build(new HypothesisSet(map, size), 0, 0, Direction.UP);
+
+		byte[] a = new byte[nodes];
+		short[] f = new short[nodes], s = new short[nodes];
+		System.arraycopy(actions, 0, a, 0, nodes);
+		System.arraycopy(first, 0, f, 0, nodes);
+		System.arraycopy(second, 0, s, 0, nodes);
+		return new LocalizationPolicy(a, f, s);
+	}
+
+	/****
+	 * Compile the subtree which localizes from a pose, given the remaining starting states.
+	 * The set of states passed in is modified.
+	 *
+	 * @param possible The remaining starting states
+	 * @param x X coordinate relative to the start
+	 * @param y Y coordinate relative to the start
+	 * @param d Direction relative to the start
+	 * @return The index of the root of the subtree
+	 */
+	private int build(HypothesisSet possible, int x, int y, Direction d){
+		int n = possible.size();
+		if (n <= 1) return emit(n == 1 ? LocalizationPolicy.DONE : LocalizationPolicy.FAIL);
+
+		evaluate(possible, n, x, y, d, lookahead);
+		int target = bestTarget;
+		if (target < 0) return emit(LocalizationPolicy.FAIL);
+
+		// Rebuild the search tree (overwritten while looking ahead) to find the moves to the target
+		search.search(possible, x, y, d, quarterTurn, halfTurn, tile);
+		int length = 0;
+		for (int s = target; search.previous(s) >= 0; s = search.previous(s)) length++;
+		int[] path = new int[length + 1];
+		for (int s = target, i = length; i >= 0; s = search.previous(s), i--) path[i] = s;
+
+		int root = nodes;
+		for (int i = 1; i <= length; i++){
+			int from = path[i - 1] & 3, to = path[i] & 3;
+			if (from == to) emit(LocalizationPolicy.TRAVEL);
+			else if (to == ((from + 1) & 3)) emit(LocalizationPolicy.TURN_LEFT);
+			else if (to == ((from + 3) & 3)) emit(LocalizationPolicy.TURN_RIGHT);
+			else emit(LocalizationPolicy.TURN_AROUND);
+		}
+		int node = emit(LocalizationPolicy.SENSE);
+
+		int tx = search.getX(target), ty = search.getY(target);
+		Direction td = search.getDir(target);
+		HypothesisSet blocked = new HypothesisSet(possible);
+		blocked.observe(tx, ty, td, true);
+		possible.observe(tx, ty, td, false);
+
+		int ifBlocked = build(blocked, tx, ty, td);
+		int ifFree = build(possible, tx, ty, td);
+		first[node] = (short)ifFree;
+		second[node] = (short)ifBlocked;
+		return root;
+	}
+
+	/****
+	 * Find the expected time to localize from a pose. The state to sense from
+	 * next is stored in <code>bestTarget</code>, or -1 if no reachable sense
+	 * can reduce the remaining starting states.
+	 *
+	 * @param possible The remaining starting states
+	 * @param n The number of remaining starting states
+	 * @param x X coordinate relative to the start
+	 * @param y Y coordinate relative to the start
+	 * @param d Direction relative to the start
+	 * @param depth The number of senses to look ahead
+	 * @return The expected time in ms
+	 */
+	private float evaluate(HypothesisSet possible, int n, int x, int y, Direction d, int depth){
+		search.search(possible, x, y, d, quarterTurn, halfTurn, tile);
+
+		// Keep the best candidates, sorted by score
+		int m = depth > 1 ? BREADTH : 1, found = 0;
+		int[] target = new int[m];
+		float[] score = new float[m], pathCost = new float[m];
+		for (int i = 0; i < search.settled(); i++){
+			int s = search.settled(i);
+			float c = search.cost(s);
+			if (found == m && c + sense >= score[m - 1]) break;	// Settled in order of cost
+
+			int blocked = possible.count(search.getX(s), search.getY(s), search.getDir(s), true);
+			if (blocked == 0 || blocked == n) continue;
+
+			float v = c + sense + (blocked * estimate(blocked) + (n - blocked) * estimate(n - blocked)) / n;
+			if (found < m) found++;
+			else if (v >= score[m - 1]) continue;
+			int j = found - 1;
+			while (j > 0 && score[j - 1] > v){
+				score[j] = score[j - 1];
+				target[j] = target[j - 1];
+				pathCost[j] = pathCost[j - 1];
+				j--;
+			}
+			score[j] = v;
+			target[j] = s;
+			pathCost[j] = c;
+		}
+
+		if (found == 0){
+			bestTarget = -1;
+			return Float.MAX_VALUE;
+		}
+		if (depth <= 1){
+			bestTarget = target[0];
+			return score[0];
+		}
+
+		// Refine the best candidates by searching the result of each possible reading,
+		// finding the poses of the candidates first as searching again moves the window
+		int[] poses = new int[found];
+		for (int i = 0; i < found; i++)
+			poses[i] = Position.pack(search.getX(target[i]), search.getY(target[i]), search.getDir(target[i]), false);
+		float best = Float.MAX_VALUE;
+		int bestState = target[0];
+		for (int i = 0; i < found; i++){
+			int s = target[i], tx = Position.getX(poses[i]), ty = Position.getY(poses[i]);
+			Direction td = Position.getDir(poses[i]);
+			float v = pathCost[i] + sense;
+			for (int r = 0; r < 2 && v < best; r++){
+				HypothesisSet child = new HypothesisSet(possible);
+				int k = child.observe(tx, ty, td, r == 0);
+				if (k > 1){
+					float e = evaluate(child, k, tx, ty, td, depth - 1);
+					v += k * (e == Float.MAX_VALUE ? estimate(k) : e) / n;
+				}
+			}
+			if (v < best){
+				best = v;
+				bestState = s;
+			}
+		}
+		bestTarget = bestState;
+		return best;
+	}
+
+	/****
+	 * Estimate the time to localize with k remaining starting states, without searching
+	 *
+	 * @param k The number of remaining starting states
+	 * @return The expected time in ms
+	 */
+	private float estimate(int k){
+		return k <= 1 ? 0 : (float)(Math.log(k) / Math.log(2)) * bit;}
+
+	/****
+	 * Add a node to the table
+	 *
+	 * @param action The action of the node
+	 * @return The index of the node
+	 */
+	private int emit(byte action){
+		if (nodes == 0xFFFF) throw new RuntimeException("Policy too large");
+		if (nodes == actions.length){
+			byte[] a = new byte[nodes * 2];
+			short[] f = new short[nodes * 2], s = new short[nodes * 2];
+			System.arraycopy(actions, 0, a, 0, nodes);
+			System.arraycopy(first, 0, f, 0, nodes);
+			System.arraycopy(second, 0, s, 0, nodes);
+			actions = a;
+			first = f;
+			second = s;
+		}
+		actions[nodes] = action;
+		first[nodes] = (short)(nodes + 1);
+		second[nodes] = 0;
+		return nodes++;
+	}
+}
@@ -0,0 +1,209 @@
+package localization;
+
+import navigation.IndexedHeap;
+
+/*******
+ * Search over poses relative to where the robot started, travelling only through
+ * tiles which are free for every remaining starting state (i.e. tiles the robot
+ * can safely travel to without knowing where it started).
+ * <br><br>
+ * Poses are settled in order of expected time to reach them, rotating in place
+ * or travelling forward 1 tile at a time. After a search, the settled poses, the
+ * expected time to reach each of them and the moves to get there are available.
+ * <br><br>
+ * A tile free for every starting state is on the map for any one of them, so each
+ * search only covers the window of <code>size</code> by <code>size</code> tiles which
+ * is on the map for the first remaining starting state, rather than every tile
+ * relative to the start. States are only valid until the next search, as the window
+ * moves with the starting states. The search keeps 29 bytes for each of the 4 poses
+ * on every tile of the window, including a heap of at most one entry per pose, which
+ * is about 17 KB on a 12 by 12 map. All arrays are allocated once, so a search does
+ * not allocate apart from finding the first starting state.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+class PoseSearch {
+	private static final Direction[] DIRECTIONS = {Direction.UP, Direction.LEFT, Direction.DOWN, Direction.RIGHT};
+
+	private final int size;
+	private int minX, minY;				// Coordinates relative to the start of the corner of the window
+
+	// index = ((x - minX) * size + y - minY) * 4 + dir
+	private final float[] cost;
+	private final int[] prev, order;
+	private final boolean[] settled;
+	private final byte[] tiles;			// 0 = not checked, 1 = free, 2 = not free
+	private final IndexedHeap open;
+	private int orderSize;
+
+	/****
+	 * Create a new search
+	 *
+	 * @param size The number of tiles along each side of the map
+	 */
+	PoseSearch(int size){
+		this.size = size;
+
+		int states = size * size * 4;
+		cost = new float[states];
+		prev = new int[states];
+		order = new int[states];
+		settled = new boolean[states];
+		tiles = new byte[size * size];
+		open = new IndexedHeap(states);
+	}
+
+	/****
+	 * Find the expected time to reach every pose from a pose, which must be on the
+	 * map for every remaining starting state
+	 *
+	 * @param possible The remaining starting states
+	 * @param x X coordinate relative to the start
+	 * @param y Y coordinate relative to the start
+	 * @param d Direction relative to the start
+	 * @param quarterTurn Expected time to rotate 90 degrees
+	 * @param halfTurn Expected time to rotate 180 degrees
+	 * @param tile Expected time to travel 1 tile
+	 */
+	void search(HypothesisSet possible, int x, int y, Direction d, float quarterTurn, float halfTurn, float tile){
+		for (int i = 0; i < cost.length; i++){
+			cost[i] = Float.MAX_VALUE;
+			prev[i] = -1;
+			settled[i] = false;
+		}
+		for (int i = 0; i < tiles.length; i++)
+			tiles[i] = 0;
+		orderSize = 0;
+		open.clear();
+		window(possible, x, y);
+
+		int start = state(x, y, d);
+		cost[start] = 0;
+		open.put(start, 0);
+		while (!open.isEmpty()){
+			int s = open.pop();
+			settled[s] = true;
+			order[orderSize++] = s;
+
+			int sx = getX(s), sy = getY(s), dir = s & 3;
+			relax(s, s - dir + ((dir + 1) & 3), quarterTurn);
+			relax(s, s - dir + ((dir + 3) & 3), quarterTurn);
+			relax(s, s - dir + ((dir + 2) & 3), halfTurn);
+
+			switch (DIRECTIONS[dir]){
+			case UP: 	sy++; break;
+			case DOWN: 	sy--; break;
+			case LEFT: 	sx--; break;
+			case RIGHT: sx++; break;
+			}
+			if (isFree(possible, sx, sy))
+				relax(s, state(sx, sy, DIRECTIONS[dir]), tile);
+		}
+	}
+
+	/****
+	 * Get the number of poses settled by the last search
+	 *
+	 * @return The number of poses which can be reached
+	 */
+	int settled(){
+		return orderSize;}
+
+	/****
+	 * Get a pose settled by the last search. Poses are settled in order of cost.
+	 *
+	 * @param i The index of the pose, less than {@link #settled()}
+	 * @return The state representing the pose
+	 */
+	int settled(int i){
+		return order[i];}
+
+	/****
+	 * Get the expected time to reach a pose found by the last search
+	 *
+	 * @param s The state representing the pose
+	 * @return The expected time to reach the pose
+	 */
+	float cost(int s){
+		return cost[s];}
+
+	/****
+	 * Get the pose preceding a pose on the fastest way to reach it
+	 *
+	 * @param s The state representing the pose
+	 * @return The previous state, or -1 for the pose searched from
+	 */
+	int previous(int s){
+		return prev[s];}
+
+	/** Get the state representing a pose relative to the start, within the window of the last search */
+	int state(int x, int y, Direction d){
+		return ((x - minX) * size + y - minY) * 4 + d.v;}
+
+	/** Get the X coordinate of a state relative to the start */
+	int getX(int s){
+		return s / 4 / size + minX;}
+
+	/** Get the Y coordinate of a state relative to the start */
+	int getY(int s){
+		return s / 4 % size + minY;}
+
+	/****
+	 * Place the window on the tiles which are on the map for the first remaining starting
+	 * state, which are the only tiles which can be free for all of them
+	 *
+	 * @param possible The remaining starting states
+	 * @param x X coordinate relative to the start of the pose searched from
+	 * @param y Y coordinate relative to the start of the pose searched from
+	 */
+	private void window(HypothesisSet possible, int x, int y){
+		Position first = possible.first();
+		if (first == null){
+			// No starting state remains, so there is nowhere to go
+			minX = x;
+			minY = y;
+			return;
+		}
+
+		// Relative coordinates of the corners of the map, rotating back from the starting direction
+		int d = first.getDir().v;
+		int ax = -first.getX(), ay = -first.getY(), bx = size - 1 - first.getX(), by = size - 1 - first.getY();
+		int x0 = Position.REL_X_X[d] * ax + Position.REL_Y_X[d] * ay, x1 = Position.REL_X_X[d] * bx + Position.REL_Y_X[d] * by,
+			y0 = Position.REL_X_Y[d] * ax + Position.REL_Y_Y[d] * ay, y1 = Position.REL_X_Y[d] * bx + Position.REL_Y_Y[d] * by;
+		minX = Math.min(x0, x1);
+		minY = Math.min(y0, y1);
+	}
+
+	/** Get the direction of a state relative to the start */
+	Direction getDir(int s){
+		return DIRECTIONS[s & 3];}
+
+	/****
+	 * Check (once per search) whether a tile is free for every remaining starting state
+	 *
+	 * @param possible The remaining starting states
+	 * @param x X coordinate relative to the start
+	 * @param y Y coordinate relative to the start
+	 * @return True iff the robot can safely travel to the tile
+	 */
+	private boolean isFree(HypothesisSet possible, int x, int y){
+		if (x < minX || x >= minX + size || y < minY || y >= minY + size) return false;
+		int i = (x - minX) * size + y - minY;
+		if (tiles[i] == 0)
+			tiles[i] = (byte)(possible.isFree(x, y) ? 1 : 2);
+		return tiles[i] == 1;
+	}
+
+	/****
+	 * Update the cost of reaching state 'to' through state 'from'
+	 */
+	private void relax(int from, int to, float c){
+		c += cost[from];
+		if (!settled[to] && c < cost[to]){
+			cost[to] = c;
+			prev[to] = from;
+			open.put(to, Float.floatToIntBits(c));
+		}
+	}
+}
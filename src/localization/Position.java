@@ -7,16 +7,29 @@ package localization;
  * is absolute, relative to the origin (0,0) 
  * with UP = NORTH = positive Y direction
  * <br><br>
- * X and Y coordinates are stored as bytes to reduce
- * memory necessary, thus this class should be modified
- * in the event that (x or y) < -127 or (x or y) > 128 
+ * X and Y coordinates are stored as ints so that positions
+ * can be used on maps of any size.
+ * <br><br>
+ * Where positions are created in a loop, a position can instead be
+ * packed into a single <code>int</code> using {@link #pack(int, int, Direction, boolean)}
+ * and manipulated with the static methods of this class without allocating.
+ * Packed coordinates must be between -8192 and 8191.
  * 
  * @author Scott Cooper
  * @since v1
  * @see Localizer
  */
 public class Position {
-	private byte x, y;			// X and Y coordinates
+	// Packed layout: x in bits 18-31, y in bits 4-17, blocked in bit 2, direction in bits 0-1
+	private static final int X_SHIFT = 18, Y_SHIFT = 4, BLOCKED = 4, COORD_MASK = 0x3FFF;
+	
+	// Transforms indexed by Direction.v: 1 tile forward, and the absolute X and Y offsets of
+	// the relative X and Y axes of a start facing that direction
+	static final int[] FORWARD_X = {0, -1, 0, 1}, FORWARD_Y = {1, 0, -1, 0},
+		REL_X_X = {1, 0, -1, 0}, REL_X_Y = {0, -1, 0, 1},
+		REL_Y_X = {0, 1, 0, -1}, REL_Y_Y = {1, 0, -1, 0};
+	
+	private int x, y;			// X and Y coordinates
 	private Direction dir; 		// UP = North, DOWN = South, etc.
 	private boolean isBlocked;	// Whether we are blocked
 
@@ -28,34 +41,24 @@ public class Position {
 	 * @param dir Direction relative to start
 	 * @param blocked Whether this position is blocked
 	 */
-	public Position(byte x, byte y, Direction dir, boolean blocked) {
+	public Position(int x, int y, Direction dir, boolean blocked) {
 		this.x = x;
 		this.y = y;
 		this.dir = dir;
 		this.isBlocked = blocked;}
 
-	/*****
-	 * Alternate constructor to all passing in paramaters as integers
-	 * @param x X coordinate in current system
-	 * @param y Y coordinate in current system
-	 * @param dir Direction relative to start
-	 * @param isBlocked Whether this position is blocked
-	 */
-	public Position(int x, int y, Direction dir, boolean isBlocked) {
-		this((byte)x, (byte)y, dir, isBlocked);}
-
 	/***
 	 * Get the X coordinate of this position
 	 * @return X coordinate of this position
 	 */
-	public byte getX() {
+	public int getX() {
 		return x;}
 
 	/****
 	 * Get the Y coordinate of this position
 	 * @return Y coordinate of this position
 	 */
-	public byte getY() {
+	public int getY() {
 		return y;}
 
 	/****
@@ -82,18 +85,7 @@ public class Position {
 	 * UP -> LEFT
 	 */
 	public static Direction rotateLeft(Direction d) {
-		switch (d) {
-		case UP:
-			return Direction.LEFT;
-		case LEFT:
-			return Direction.DOWN;
-		case DOWN:
-			return Direction.RIGHT;
-		case RIGHT:
-			return Direction.UP;
-		default:
-			throw new RuntimeException("Shouldn't happen");}
-	}
+		return d.left();}
 
 	/****
 	 * Rotate a direction 1 right
@@ -105,18 +97,7 @@ public class Position {
 	 * UP -> RIGHT
 	 */
 	public static Direction rotateRight(Direction d) {
-		switch (d) {
-		case UP:
-			return Direction.RIGHT;
-		case LEFT:
-			return Direction.UP;
-		case DOWN:
-			return Direction.LEFT;
-		case RIGHT:
-			return Direction.DOWN;
-		default:
-			throw new RuntimeException("Shouldn't happen");}
-	}
+		return d.right();}
 
 	/****
 	 * Get the absolute X coordinate of the location of the
@@ -127,19 +108,8 @@ public class Position {
 	 * @param r The relative position to where we started
 	 * @return	The relative X coordinate based on start and r
 	 */
-	public static byte relativeX(Position start, Position r) {
-		switch (start.getDir()) {
-		case UP:
-			return (byte) (start.getX() + r.getX());
-		case DOWN:
-			return (byte) (start.getX() - r.getX());
-		case RIGHT:
-			return (byte) (start.getX() + r.getY());
-		case LEFT:
-			return (byte) (start.getX() - r.getY()); 
-		default:
-			throw new RuntimeException("Shouldn't happen");}
-	}
+	public static int relativeX(Position start, Position r) {
+		return relativeX(start, r.getX(), r.getY());}
 
 	/****
 	 * Get the absolute Y coordinate of the location of the
@@ -150,19 +120,131 @@ public class Position {
 	 * @param r The relative position to where we started
 	 * @return	The relative Y coordinate based on start and r
 	 */
-	public static byte relativeY(Position start, Position r) {
-		switch (start.getDir()) {
-		case LEFT:
-			return (byte) (start.getY() + r.getX());
-		case RIGHT:
-			return (byte) (start.getY() - r.getX());
-		case UP:
-			return (byte) (start.getY() + r.getY());
-		case DOWN:
-			return (byte) (start.getY() - r.getY());
-		default:
-			throw new RuntimeException("Shouldn't happen");}
-	}
+	public static int relativeY(Position start, Position r) {
+		return relativeY(start, r.getX(), r.getY());}
+	
+	/****
+	 * Get the absolute X coordinate of a location relative to the start
+	 * 
+	 * @param start The starting position to get information relative to
+	 * @param x X coordinate relative to where we started
+	 * @param y Y coordinate relative to where we started
+	 * @return The absolute X coordinate
+	 */
+	public static int relativeX(Position start, int x, int y) {
+		int d = start.getDir().v;
+		return start.getX() + REL_X_X[d] * x + REL_X_Y[d] * y;}
+	
+	/****
+	 * Get the absolute Y coordinate of a location relative to the start
+	 * 
+	 * @param start The starting position to get information relative to
+	 * @param x X coordinate relative to where we started
+	 * @param y Y coordinate relative to where we started
+	 * @return The absolute Y coordinate
+	 */
+	public static int relativeY(Position start, int x, int y) {
+		int d = start.getDir().v;
+		return start.getY() + REL_Y_X[d] * x + REL_Y_Y[d] * y;}
+	
+	/****
+	 * Pack a position into a single integer
+	 * 
+	 * @param x X coordinate
+	 * @param y Y coordinate
+	 * @param dir Direction
+	 * @param isBlocked Whether the position is blocked
+	 * @return The packed position
+	 */
+	public static int pack(int x, int y, Direction dir, boolean isBlocked) {
+		return (x << X_SHIFT) | ((y & COORD_MASK) << Y_SHIFT) | (isBlocked ? BLOCKED : 0) | dir.v;}
+	
+	/****
+	 * Pack a position into a single integer
+	 * 
+	 * @param p The position to pack
+	 * @return The packed position
+	 */
+	public static int pack(Position p) {
+		return pack(p.getX(), p.getY(), p.getDir() == null ? Direction.UP : p.getDir(), p.isBlocked());}
+	
+	/****
+	 * Unpack a packed position
+	 * 
+	 * @param p The packed position
+	 * @return A new position equal to the packed position
+	 */
+	public static Position unpack(int p) {
+		return new Position(getX(p), getY(p), getDir(p), isBlocked(p));}
+	
+	/** @return The X coordinate of the packed position p */
+	public static int getX(int p) {
+		return p >> X_SHIFT;}
+	
+	/** @return The Y coordinate of the packed position p */
+	public static int getY(int p) {
+		return (p << (32 - Y_SHIFT - 14)) >> (32 - 14);}
+	
+	/** @return The direction of the packed position p */
+	public static Direction getDir(int p) {
+		return Direction.fromValue(p);}
+	
+	/** @return Whether the packed position p is blocked */
+	public static boolean isBlocked(int p) {
+		return (p & BLOCKED) != 0;}
+	
+	/****
+	 * Get the packed position 1 forward from the packed position p, facing
+	 * the same direction and not blocked
+	 * 
+	 * @param p The packed position
+	 * @return The packed position 1 tile forward from p
+	 */
+	public static int forward(int p) {
+		int d = p & 3;
+		return pack(getX(p) + FORWARD_X[d], getY(p) + FORWARD_Y[d], Direction.fromValue(d), false);}
+	
+	/****
+	 * Rotate a packed position 1 left
+	 * 
+	 * @param p The packed position
+	 * @return The packed position p, facing 1 left
+	 */
+	public static int rotateLeft(int p) {
+		return (p & ~3) | ((p + 1) & 3);}
+	
+	/****
+	 * Rotate a packed position 1 right
+	 * 
+	 * @param p The packed position
+	 * @return The packed position p, facing 1 right
+	 */
+	public static int rotateRight(int p) {
+		return (p & ~3) | ((p + 3) & 3);}
+	
+	/****
+	 * Get the absolute X coordinate of the packed relative position r, based on the
+	 * packed starting position start
+	 * 
+	 * @param start The packed starting position to get information relative to
+	 * @param r The packed position relative to where we started
+	 * @return The absolute X coordinate
+	 */
+	public static int relativeX(int start, int r) {
+		int d = start & 3;
+		return getX(start) + REL_X_X[d] * getX(r) + REL_X_Y[d] * getY(r);}
+	
+	/****
+	 * Get the absolute Y coordinate of the packed relative position r, based on the
+	 * packed starting position start
+	 * 
+	 * @param start The packed starting position to get information relative to
+	 * @param r The packed position relative to where we started
+	 * @return The absolute Y coordinate
+	 */
+	public static int relativeY(int start, int r) {
+		int d = start & 3;
+		return getY(start) + REL_Y_X[d] * getX(r) + REL_Y_Y[d] * getY(r);}
 	
 	/*****
 	 * Check if two positions are equal
@@ -0,0 +1,81 @@
+package localization;
+
+/*****
+ * Statistics of the readings taken to decide whether the robot is blocked: the number
+ * of pings each decision needed and how long each decision took.
+ *
+ * @author Scott Cooper
+ * @since v5
+ * @see Localizer#getSamplingStatistics()
+ */
+public class SamplingStatistics {
+	private final int[] histogram;		// histogram[n] - number of decisions which took n pings
+	private int calls, samples, maxSamples;
+	private long latency, maxLatency;	// Total and longest time taken by a decision in ms
+
+	/****
+	 * Create new empty statistics
+	 *
+	 * @param maxSamples The largest number of pings a single decision can take
+	 */
+	SamplingStatistics(int maxSamples){
+		this.histogram = new int[maxSamples + 1];}
+
+	/****
+	 * Record a decision
+	 *
+	 * @param samples The number of pings taken
+	 * @param ms The time taken in ms
+	 */
+	synchronized void record(int samples, long ms){
+		calls++;
+		this.samples += samples;
+		latency += ms;
+		if (samples > maxSamples) maxSamples = samples;
+		if (ms > maxLatency) maxLatency = ms;
+		histogram[Math.min(samples, histogram.length - 1)]++;
+	}
+
+	/****
+	 * Remove every recorded decision
+	 */
+	public synchronized void reset(){
+		calls = samples = maxSamples = 0;
+		latency = maxLatency = 0;
+		for (int i = 0; i < histogram.length; i++)
+			histogram[i] = 0;
+	}
+
+	/** Get the number of decisions recorded */
+	public synchronized int getCalls(){
+		return calls;}
+
+	/** Get the total number of pings taken */
+	public synchronized int getSamples(){
+		return samples;}
+
+	/** Get the average number of pings per decision */
+	public synchronized float getMeanSamples(){
+		return calls == 0 ? 0 : samples / (float)calls;}
+
+	/** Get the largest number of pings a single decision took */
+	public synchronized int getMaxSamples(){
+		return maxSamples;}
+
+	/****
+	 * Get the number of decisions which took a number of pings
+	 *
+	 * @param samples The number of pings
+	 * @return The number of decisions which took exactly that many pings
+	 */
+	public synchronized int getCalls(int samples){
+		return samples < 0 || samples >= histogram.length ? 0 : histogram[samples];}
+
+	/** Get the average time taken by a decision in ms */
+	public synchronized float getMeanLatency(){
+		return calls == 0 ? 0 : latency / (float)calls;}
+
+	/** Get the longest time taken by a decision in ms */
+	public synchronized long getMaxLatency(){
+		return maxLatency;}
+}
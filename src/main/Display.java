@@ -13,7 +13,7 @@ import localization.Position;
  * @since v0
  *
  */
-public class Display extends Thread {
+public class Display extends PeriodicTask {
 	
 	/*****
 	 * Enum representing the current action the robot is performing
@@ -44,7 +44,7 @@ public class Display extends Thread {
 	}
 	
 	private static boolean clear, paused;
-	private static final int DELAY = 100;
+	private static final int DELAY = 100;		// ms between updates of the screen
 	private static Action currentAction = null;
 	private PoseProvider poseProvider;
 	
@@ -54,32 +54,23 @@ public class Display extends Thread {
 	 * @param poseProvider The pose provider to use in updating the display
 	 */
 	public Display(PoseProvider poseProvider){
+		super(DELAY, Thread.MIN_PRIORITY);
 		this.poseProvider = poseProvider;
 		clear = true;
 		paused = false;
 	}
 	
 	@Override
-	public void run(){
-
-		float x, y, h;
-		String posStr = "";
-		while(true){
-			if (!paused){
-				if (clear) LCD.clear();
-				x = poseProvider.getPose().getX();
-				y = poseProvider.getPose().getY();
-				h = poseProvider.getPose().getHeading();
-				
-				LCD.drawString("X: " + Display.formattedDoubleToString(x, 2) + posStr, 0, 0);
-				LCD.drawString("Y: " + Display.formattedDoubleToString(y, 2) + posStr, 0, 1);
-				LCD.drawString("H: " + Display.formattedDoubleToString(h, 2) + posStr, 0, 2);
-				LCD.drawString(currentAction == null ? "" : currentAction.toString(), 0, 3);
-				LCD.drawString("Start: " + startingPointAsString(), 0, 4);
-			}
-			try{
-				Thread.sleep(DELAY);
-			}catch(Exception e){}
+	protected void step(){
+		if (!paused){
+			if (clear) LCD.clear();
+			Pose p = poseProvider.getPose();
+			
+			LCD.drawString("X: " + Display.formattedDoubleToString(p.getX(), 2), 0, 0);
+			LCD.drawString("Y: " + Display.formattedDoubleToString(p.getY(), 2), 0, 1);
+			LCD.drawString("H: " + Display.formattedDoubleToString(p.getHeading(), 2), 0, 2);
+			LCD.drawString(currentAction == null ? "" : currentAction.toString(), 0, 3);
+			LCD.drawString("Start: " + startingPointAsString(), 0, 4);
 		}
 	}
 	
@@ -1,5 +1,10 @@
 package main;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.BitSet;
 
 import lejos.nxt.Button;
@@ -11,12 +16,15 @@ import lejos.nxt.NXTRegulatedMotor;
 import lejos.nxt.SensorPort;
 import lejos.nxt.UltrasonicSensor;
 import lejos.robotics.localization.OdometryPoseProvider;
+import lejos.robotics.localization.PoseProvider;
 import lejos.robotics.navigation.DifferentialPilot;
 import lejos.robotics.navigation.Navigator;
 import lejos.robotics.navigation.Waypoint;
+import localization.LocalizationPolicy;
 import localization.Localizer;
 import navigation.MovementController;
 import navigation.OdometryCorrection;
+import navigation.PoseEstimator;
 import blocks.Arm;
 import blocks.BlockRescuer;
 
@@ -42,10 +50,12 @@ public class Main {
 	private static MovementController moveController;	// MovementController for pathfinding
 	private static BlockRescuer blockRescuer;	
 	private static OdometryPoseProvider odo;			// Odometer
+	private static PoseProvider pose;					// Pose navigated by, the odometer or a PoseEstimator
 	private static Localizer localizer;					
 	private static Display display;						
 	private static OdometryCorrection odoCorrection;
 	private static Arm arm;
+	private static TraceRecorder recorder;				// Recorder of the sensors and moves, if TRACE_FILE is set
 	
 	// Robot paramaters
 	public static final float	 
@@ -58,16 +68,37 @@ public class Main {
 	public static final int
 		NUM_TILES = 12;
 	
-	// List of maps for use in competition
-	// usage: maps[map_number][x][y]
-	private static final BitSet[] maps;
-
+	// Speeds of the pilot, in cm/s and deg/s
+	public static final int
+		TRAVEL_SPEED = 20,
+		ROTATE_SPEED = 90;
+	
 	// Number of maps
-	private static final int NUM_MAPS = 6;
+	private static final int NUM_MAPS = Maps.NUM_MAPS;
+	
+	// File to record a trace of the sensors and moves to for TraceReplay, or null not to record
+	private static final String TRACE_FILE = null;
+	private static final int TRACE_CAPACITY = 256;		// Records in each buffer of the recorder
+	
+	// Localization mode. POLICY needs the policy<n>.dat files written by CompilePolicies on the robot.
+	private static final Localizer.Mode LOCALIZATION_MODE = Localizer.Mode.GREEDY;
+	
+	// Route planner, A* over the mesh unless another has been validated on the robot
+	private static final MovementController.Planner PLANNER = MovementController.Planner.ASTAR;
+	
+	// How routes are driven, stopping at every tile unless another mode has been validated on the robot
+	private static final MovementController.Execution EXECUTION = MovementController.Execution.STEP;
+	
+	// Whether to correct the odometer with a PoseEstimator rather than by manoeuvring, once validated on the robot
+	private static final boolean POSE_ESTIMATOR = false;
 	
 	// Current map number
 	private static int mapNumber = 0;
 	
+	// Snapshot of the current map, replaced with a new snapshot every time it changes
+	private static volatile MapSnapshot map = new MapSnapshot(Maps.get(0), NUM_TILES, 0);
+	private static final Object mapLock = new Object();		// Held while changing the map
+	
 	// Block dropoff point
 	private static Waypoint dropoff = null;
 	
@@ -80,8 +111,8 @@ public class Main {
 		// Instantiate a new DifferentialPilot to control movement
 		pilot = new DifferentialPilot(LEFT_WHEEL_D, RIGHT_WHEEL_D, WHEEL_BASE, MOTOR_LEFT, MOTOR_RIGHT, false);
 		pilot.setAcceleration(15);
-		pilot.setTravelSpeed(20);
-		pilot.setRotateSpeed(90);
+		pilot.setTravelSpeed(TRAVEL_SPEED);
+		pilot.setRotateSpeed(ROTATE_SPEED);
 
 		// Instantiate a new OdometryPoseProvider, of maintaining current pose
 		odo = new OdometryPoseProvider(pilot);
@@ -89,16 +120,23 @@ public class Main {
 		// Instantiate a new OdometryCorrection and disable it
 		odoCorrection = new OdometryCorrection(odo, COLORSENSOR_LEFT, COLORSENSOR_RIGHT);
 		
-		display = new Display(odo);
+		// Instantiate a new PoseEstimator if enabled, which corrects the odometer without moving
+		pose = POSE_ESTIMATOR ? new PoseEstimator(odo, OdometryCorrection.getCrossings()) : odo;
+		
+		display = new Display(pose);
 		
 		// Instantiate a new Localizer
-		localizer = new Localizer(pilot, ULTRASONIC, odo);
+		localizer = new Localizer(pilot, ULTRASONIC, pose, null);
+		localizer.setMode(LOCALIZATION_MODE);
 		
 		// Instantiate a new Navigator to control movement
-		nav = new Navigator(pilot, odo);
+		nav = new Navigator(pilot, pose);
 		
 		// Instantiate a new MovementController for travelling to waypoints
 		moveController = new MovementController(nav);
+		moveController.setMotionProfile(localizer.getMotionProfile());
+		moveController.setPlanner(PLANNER);
+		moveController.setExecution(EXECUTION);
 
 		// Instantiate a new Arm for controlling claw movement
 		ARM.setAcceleration(200);
@@ -108,13 +146,25 @@ public class Main {
 		// Instantiate a new blockRescuer
 		blockRescuer = new BlockRescuer(pilot, nav, ULTRASONIC, arm);
 		
+		// Record the sensors and moves, if a trace file is set
+		if (TRACE_FILE != null){
+			try {
+				recorder = new TraceRecorder(new FileOutputStream(new File(TRACE_FILE)), TRACE_CAPACITY, MOTOR_LEFT, MOTOR_RIGHT);
+				pilot.addMoveListener(recorder);
+				OdometryCorrection.setRecorder(recorder);
+				localizer.setRecorder(recorder);
+				blockRescuer.setRecorder(recorder);
+			} catch (IOException e) {}
+		}
+		
 		setup();		
 		LCD.clear();
 		
 		// Display current map befor starting
+		MapSnapshot current = getMap();
 		for (int x = 0; x < Main.NUM_TILES; x++){
 			for (int y = 0; y < Main.NUM_TILES; y++){
-				if (getCurrentMap().get(x * Main.NUM_TILES + y))
+				if (current.isBlocked(x, y))
 					LCD.drawChar('X', x, Main.NUM_TILES - 1 - y);
 			}
 		}
@@ -145,7 +195,7 @@ public class Main {
 				}
 			}).start();
 			
-			pilot.travel(odo.getPose().getY() - Main.TILE_WIDTH);	// Move to top of current tile
+			pilot.travel(nav.getPoseProvider().getPose().getY() - Main.TILE_WIDTH);	// Move to top of current tile
 			
 			Display.setCurrentAction(Display.Action.BLOCK_ACTION);
 			blockRescuer.rescueBlock();
@@ -167,6 +217,8 @@ public class Main {
 			if (time == -1)
 				time = 2 * (System.currentTimeMillis() - x);
 		}
+		if (recorder != null)
+			recorder.close();
 		System.exit(0);
 	}
 
@@ -191,18 +243,37 @@ public class Main {
 		return mapNumber;}
 	
 	/****
-	 * Get the current map as a bitset where TRUE represents that
+	 * Get a copy of the current map as a bitset where TRUE represents that
 	 * position being blocked. The value at position (X, Y) should be accessed
-	 * via <pre><code>getCurrentMap().get( X * Main.TILE_WIDTH + Y);</code></pre>
+	 * via <pre><code>getCurrentMap().get( X * Main.NUM_TILES + Y);</code></pre>
 	 * 
 	 * @return The bitset representing the current map
 	 */
 	public static BitSet getCurrentMap(){
-		return maps[getMapNumber()];
+		return map.toBitSet();
 	}
 	
+	/****
+	 * Get the current map as an immutable snapshot, which stays consistent while
+	 * the map is changed on another thread
+	 * 
+	 * @return The snapshot of the current map
+	 */
+	public static MapSnapshot getMap(){
+		return map;}
+	
+	/****
+	 * Get the version of the current map, which changes every time a tile is
+	 * blocked or unblocked or a different map is selected. Anything computed
+	 * from the map is still valid while the version is the same.
+	 * 
+	 * @return The version of the current map
+	 */
+	public static int getMapVersion(){
+		return map.getVersion();}
+	
 	/***
-	 * Initialization of maps prior to starting
+	 * Initialization prior to starting
 	 */
 	static {		
 		// Add button listener to escape button to allow for exiting at any time
@@ -214,183 +285,19 @@ public class Main {
 		
 					@Override
 					public void buttonReleased(Button b) {}});
-		
-		maps = new BitSet[Main.NUM_MAPS];
-		
-		for (int i = 0; i < Main.NUM_MAPS; i++){
-			for (int x = 0; x < Main.NUM_TILES; x++){
-				for (int y = 0; y < Main.NUM_TILES; y++){
-					maps[i] = new BitSet(Main.NUM_TILES * Main.NUM_TILES);
-					maps[i].clear();}}}
-	
-	/**************************************************
-	 * The follow maps are for the FINAL DEMONSTRATION
-	 * 
-	 * setBlock(map #, x, y, isBlocked);
-	 ************************************************/
-		
-		
-		// Map 1
-		setBlock(0, 0, 6, true); //
-		setBlock(0, 0, 9, true); //
-		setBlock(0, 1, 3, true); //
-		setBlock(0, 2, 2, true); //
-		setBlock(0, 2, 11, true); //
-		setBlock(0, 3, 5, true); //
-		setBlock(0, 3, 10, true); //
-		setBlock(0, 4, 4, true); //
-		setBlock(0, 4, 7, true); //
-		setBlock(0, 5, 0, true); //
-		setBlock(0, 5, 2, true); //
-		setBlock(0, 6, 3, true); //
-		setBlock(0, 7, 7, true); //
-		setBlock(0, 8, 0, true); //
-		setBlock(0, 8, 1, true); //
-		setBlock(0, 8, 6, true); //
-		setBlock(0, 9, 4, true); //
-		setBlock(0, 9, 7, true); //
-		setBlock(0, 9, 9, true); //
-		setBlock(0, 10, 2, true);// 
-		setBlock(0, 10, 6, true);//
-		setBlock(0, 11, 1, true);//
-		
-		// Map 2
-		setBlock(1, 0, 4, true); //
-		setBlock(1, 0, 5, true); //
-		setBlock(1, 3, 2, true); //
-		setBlock(1, 3, 5, true); //
-		setBlock(1, 3, 6, true); //
-		setBlock(1, 3, 9, true); //
-		setBlock(1, 4, 5, true); //
-		setBlock(1, 4, 9, true); //
-		setBlock(1, 4, 10, true); //
-		setBlock(1, 5, 5, true); //
-		setBlock(1, 6, 8, true); //
-		setBlock(1, 6, 9, true); //
-		setBlock(1, 7, 0, true); //
-		setBlock(1, 8, 4, true); //
-		setBlock(1, 8, 5, true); //
-		setBlock(1, 8, 10, true); //
-		setBlock(1, 9, 1, true); //
-		setBlock(1, 9, 11, true); //
-		setBlock(1, 10, 7, true); //
-		setBlock(1, 11, 2, true); //
-		setBlock(1, 11, 5, true); //
-		setBlock(1, 11, 8, true); //
-
-		// Map 3
-		setBlock(2, 0, 3, true);
-		setBlock(2, 0, 8, true);
-		setBlock(2, 2, 3, true);
-		setBlock(2, 2, 6, true);
-		setBlock(2, 3, 2, true);
-		setBlock(2, 3, 4, true);
-		setBlock(2, 3, 10, true);
-		setBlock(2, 4, 1, true);
-		setBlock(2, 4, 5, true);
-		setBlock(2, 4, 6, true);
-		setBlock(2, 4, 7, true);
-		setBlock(2, 6, 6, true);
-		setBlock(2, 6, 8, true);
-		setBlock(2, 7, 0, true);
-		setBlock(2, 7, 11, true);
-		setBlock(2, 9, 6, true);
-		setBlock(2, 10, 0, true);
-		setBlock(2, 10, 3, true);
-		setBlock(2, 10, 4, true);
-		setBlock(2, 10, 9, true);
-		setBlock(2, 11, 2, true);
-		setBlock(2, 11, 11, true);
-
-		// Map 4
-		setBlock(3, 0, 2, true);
-		setBlock(3, 0, 3, true);
-		setBlock(3, 0, 4, true);
-		setBlock(3, 0, 8, true);
-		setBlock(3, 1, 4, true);
-		setBlock(3, 2, 0, true);
-		setBlock(3, 2, 5, true);
-		setBlock(3, 2, 10, true);
-		setBlock(3, 3, 2, true);
-		setBlock(3, 3, 9, true);
-		setBlock(3, 3, 11, true);
-		setBlock(3, 4, 3, true);
-		setBlock(3, 5, 10, true);
-		setBlock(3, 6, 4, true);
-		setBlock(3, 8, 4, true);
-		setBlock(3, 8, 8, true);
-		setBlock(3, 9, 0, true);
-		setBlock(3, 9, 4, true);
-		setBlock(3, 9, 6, true);
-		setBlock(3, 11, 1, true);
-		setBlock(3, 11, 5, true);
-		setBlock(3, 11, 10, true);
-		
-		// Map 5
-		setBlock(4, 0, 3, true);
-		setBlock(4, 0, 5, true);
-		setBlock(4, 0, 8, true);
-		setBlock(4, 3, 1, true);
-		setBlock(4, 3, 3, true);
-		setBlock(4, 3, 10, true);
-		setBlock(4, 4, 3, true);
-		setBlock(4, 4, 6, true);
-		setBlock(4, 4, 7, true);
-		setBlock(4, 4, 10, true);
-		setBlock(4, 5, 8, true);
-		setBlock(4, 6, 10, true);
-		setBlock(4, 7, 6, true);
-		setBlock(4, 7, 7, true);
-		setBlock(4, 8, 1, true);
-		setBlock(4, 8, 5, true);
-		setBlock(4, 8, 10, true);
-		setBlock(4, 9, 2, true);
-		setBlock(4, 9, 6, true);
-		setBlock(4, 10, 10, true);
-		setBlock(4, 11, 2, true);
-		setBlock(4, 11, 9, true);
-		
-		// Map 6
-		setBlock(5, 0, 10, true); //
-		setBlock(5, 1, 5, true); //
-		setBlock(5, 2, 3, true); //
-		setBlock(5, 3, 2, true); //
-		setBlock(5, 3, 10, true); //
-		setBlock(5, 4, 2, true); //
-		setBlock(5, 4, 7, true); //
-		setBlock(5, 5, 2, true); //
-		setBlock(5, 5, 4, true); //
-		setBlock(5, 5, 6, true); // it was setBlock(5, 5, 7, true); 
-		setBlock(5, 5, 11, true); //
-		setBlock(5, 6, 5, true);  //
-		setBlock(5, 6, 9, true); //
-		setBlock(5, 7, 6, true); //
-		setBlock(5, 7, 8, true); //
-		setBlock(5, 8, 2, true); //
-		setBlock(5, 8, 10, true); //
-		setBlock(5, 9, 0, true); //
-		setBlock(5, 9, 4, true); //
-		setBlock(5, 9, 8, true); //
-		setBlock(5, 10, 5, true); //
-		setBlock(5, 10, 10, true); //
-		
-		/*************************************/
-		
 	}
 
-	/*****
-	 * Set the status of a coordinate for a given map
+	/****
+	 * Select a competition map as the current map, publishing a new snapshot
 	 * 
-	 * @param map The map number of this point
-	 * @param x The x coordinate of this point
-	 * @param y The y coordinate of this point
-	 * @param v The value at this point. True implies blocked, false implies not blocked.
+	 * @param number The map number
 	 */
-	private static void setBlock(int map, int x, int y, boolean v){
-		if (maps==null) throw new RuntimeException("Maps not initialized");
-		if (map >= maps.length) throw new RuntimeException("Invalid map number");
-		
-		maps[map].set(x * Main.NUM_TILES + y, v);}
+	private static void selectMap(int number){
+		synchronized (mapLock){
+			mapNumber = number;
+			map = new MapSnapshot(Maps.get(number), NUM_TILES, map.getVersion() + 1);
+		}
+	}
 	
 	/****
 	 * Get the <code>DifferentialPilot</code> used by the robot
@@ -410,19 +317,27 @@ public class Main {
 			LCD.drawString("Map: " + (mapNumber + 1), 0, 0);
 			option = Button.waitForAnyPress();
 			switch (option){
-			case Button.ID_LEFT: mapNumber = (mapNumber + (Main.NUM_MAPS - 1)) % Main.NUM_MAPS; break;
-			case Button.ID_RIGHT: mapNumber = (mapNumber + 1) % Main.NUM_MAPS; break;
+			case Button.ID_LEFT: selectMap((mapNumber + (Main.NUM_MAPS - 1)) % Main.NUM_MAPS); break;
+			case Button.ID_RIGHT: selectMap((mapNumber + 1) % Main.NUM_MAPS); break;
 			default: break;
 			}
 			
 		} while (option != Button.ID_ENTER);
 		
 		blockPickupArea();
-		new Thread(new Runnable(){
+		
+		// Build the route table while the dropoff point is entered, as it is needed to choose the side to drop off from
+		Thread planning = new Thread(new Runnable(){
 			public void run(){
 				moveController.regenerate();
+				moveController.buildRouteTable(1);	// The NXT has a single processor
 			}
-		}).start();
+		});
+		planning.start();
+		
+		// Load the localization policy compiled offline for the map
+		if (LOCALIZATION_MODE == Localizer.Mode.POLICY)
+			localizer.setPolicy(loadPolicy());
 		
 		do {
 			LCD.clear();
@@ -449,15 +364,50 @@ public class Main {
 		} while (option != Button.ID_ENTER);
 		
 		
-		if (x-1 >= 0 && !maps[mapNumber].get((x-1)*Main.NUM_TILES + y))
-			dropoff = new Waypoint(x-1, y, 0); // ang = 0;
-		else if (x + 1 < Main.NUM_TILES && !maps[mapNumber].get((x+1)*Main.NUM_TILES + y))
-			dropoff = new Waypoint(x+1, y, 180); // ang = 180;
-		else if (y - 1 >= 0 && !maps[mapNumber].get(x*Main.NUM_TILES + y - 1))
-			dropoff = new Waypoint(x, y-1, 90); // ang = 90;
-		else
-			dropoff = new Waypoint(x, y+1, -90); // ang = -90;
+		// Wait for the route table, so the side is always chosen from the same distances
+		try {
+			planning.join();
+		} catch (InterruptedException e) {}
 		
+		// Drop off from the free side closest to the pickup area, facing the dropoff point
+		Waypoint[] sides = {new Waypoint(x-1, y, 0), new Waypoint(x+1, y, 180),
+							new Waypoint(x, y-1, 90), new Waypoint(x, y+1, -90)};
+		int best = -1;
+		MapSnapshot current = getMap();
+		for (Waypoint side : sides){
+			int sx = (int)side.getX(), sy = (int)side.getY();
+			if (sx < 0 || sx >= Main.NUM_TILES || sy < 0 || sy >= Main.NUM_TILES || current.isBlocked(sx, sy))
+				continue;
+			int d = moveController.getDistance(1, 2, sx, sy);
+			if (dropoff == null || (d >= 0 && (best < 0 || d < best))){
+				dropoff = side;
+				best = d;
+			}
+		}
+		if (dropoff == null)
+			dropoff = sides[3];
+		
+	}
+	
+	/****
+	 * Load the localization policy for the current map, compiled offline by
+	 * <code>CompilePolicies</code> and uploaded to the robot. Compiling it here
+	 * would take too long and too much memory on the NXT.
+	 * 
+	 * @return The localization policy for the current map, or null to localize
+	 * using GREEDY if none was uploaded
+	 */
+	private static LocalizationPolicy loadPolicy() {
+		File file = new File("policy" + mapNumber + ".dat");
+		if (file.exists()){
+			try {
+				DataInputStream in = new DataInputStream(new FileInputStream(file));
+				LocalizationPolicy policy = LocalizationPolicy.read(in);
+				in.close();
+				return policy;
+			} catch (IOException e) {}
+		}
+		return null;
 	}
 	
 	/***
@@ -465,20 +415,24 @@ public class Main {
 	 * from moving through the pickup area.
 	 */
 	private static void blockPickupArea() {
-		setBlock(Main.getMapNumber(), 0, 0, true);
-		setBlock(Main.getMapNumber(), 0, 1, true);
-		setBlock(Main.getMapNumber(), 1, 0, true);
-		setBlock(Main.getMapNumber(), 1, 1, true);
-	}
+		setPickupArea(true);}
 	
 	/***
 	 * Mark the pickup area as unblocked. Necessary to allow
 	 * pathfinding from within the pickup area.
 	 */
 	private static void unblockPickupArea() {
-		setBlock(Main.getMapNumber(), 0, 0, false);
-		setBlock(Main.getMapNumber(), 0, 1, false);
-		setBlock(Main.getMapNumber(), 1, 0, false);
-		setBlock(Main.getMapNumber(), 1, 1, false);
+		setPickupArea(false);}
+	
+	/***
+	 * Set the status of every tile of the pickup area, publishing them
+	 * as a single snapshot so no plan sees the area partly blocked
+	 * 
+	 * @param v True implies blocked, false implies not blocked.
+	 */
+	private static void setPickupArea(boolean v) {
+		synchronized (mapLock){
+			map = map.with(Maps.PICKUP_AREA, v);
+		}
 	}
 }
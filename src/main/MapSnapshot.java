@@ -0,0 +1,102 @@
+package main;
+
+import java.util.BitSet;
+
+/*****
+ * An immutable version of a map, where the value at (X, Y) is TRUE if that tile is blocked.
+ * <br><br>
+ * A snapshot never changes once created. Changing a tile creates a new snapshot with the next
+ * version number, copying the tiles, which the writer then publishes in place of the old one
+ * (see <code>Main.getMap()</code>). Readers which take a snapshot once and use it throughout
+ * therefore always see a consistent map, without locking, while the map is being changed on
+ * another thread. Maps are small, so copying on every change is cheap.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public final class MapSnapshot {
+	private final BitSet blocked;		// Never modified after construction
+	private final int size;
+	private final int version;
+
+	/****
+	 * Create a snapshot of a map
+	 *
+	 * @param map The map where the value at (X, Y) is at <code>X * size + Y</code>, which is copied
+	 * @param size The number of tiles along each side of the map
+	 * @param version The version of the map
+	 */
+	public MapSnapshot(BitSet map, int size, int version){
+		this.blocked = (BitSet)map.clone();
+		this.size = size;
+		this.version = version;
+	}
+
+	/****
+	 * Get the version of this snapshot, which is greater than that of every snapshot it was created from
+	 *
+	 * @return The version
+	 */
+	public int getVersion(){
+		return version;}
+
+	/****
+	 * Get the number of tiles along each side of the map
+	 *
+	 * @return The size of the map
+	 */
+	public int getSize(){
+		return size;}
+
+	/****
+	 * Check whether a tile is blocked
+	 *
+	 * @param x The X coordinate of the tile
+	 * @param y The Y coordinate of the tile
+	 * @return True iff the tile is blocked
+	 */
+	public boolean isBlocked(int x, int y){
+		return blocked.get(x * size + y);}
+
+	/****
+	 * Get a copy of the map, which may be modified without affecting this snapshot
+	 *
+	 * @return The map as a bitset, where the value at (X, Y) is at <code>X * size + Y</code>
+	 */
+	public BitSet toBitSet(){
+		return (BitSet)blocked.clone();}
+
+	/****
+	 * Create a new snapshot with a tile changed
+	 *
+	 * @param x The X coordinate of the tile
+	 * @param y The Y coordinate of the tile
+	 * @param v True if the tile is blocked, false if it is not
+	 * @return The new snapshot, with the next version, or this snapshot if the tile is unchanged
+	 */
+	public MapSnapshot with(int x, int y, boolean v){
+		if (isBlocked(x, y) == v) return this;
+		MapSnapshot next = new MapSnapshot(blocked, size, version + 1);
+		next.blocked.set(x * size + y, v);
+		return next;
+	}
+
+	/****
+	 * Create a new snapshot with several tiles changed at once, so no reader sees only some of them changed
+	 *
+	 * @param tiles The tiles, where (X, Y) is <code>X * size + Y</code>
+	 * @param v True if the tiles are blocked, false if they are not
+	 * @return The new snapshot, with the next version, or this snapshot if every tile is unchanged
+	 */
+	public MapSnapshot with(int[] tiles, boolean v){
+		boolean changed = false;
+		for (int tile : tiles)
+			if (blocked.get(tile) != v) changed = true;
+		if (!changed) return this;
+
+		MapSnapshot next = new MapSnapshot(blocked, size, version + 1);
+		for (int tile : tiles)
+			next.blocked.set(tile, v);
+		return next;
+	}
+}
@@ -0,0 +1,220 @@
+package main;
+
+import java.util.BitSet;
+
+/*****
+ * The maps used in competition. Each map is a bitset where TRUE represents that
+ * position being blocked, with the value at (X, Y) at index <code>X * Main.NUM_TILES + Y</code>.
+ * <br><br>
+ * Kept separate from <code>Main</code> so the maps can be loaded without initializing
+ * any of the robot's hardware.
+ * 
+ * @author Scott Cooper
+ * @since v5
+ */
+public class Maps {
+	
+	// Number of maps
+	public static final int NUM_MAPS = 6;
+	
+	// Tiles of the pickup area, at X * Main.NUM_TILES + Y, blocked on every map except while picking up a block
+	public static final int[] PICKUP_AREA = {0 * Main.NUM_TILES + 0, 0 * Main.NUM_TILES + 1,
+											 1 * Main.NUM_TILES + 0, 1 * Main.NUM_TILES + 1};
+	
+	// List of maps for use in competition
+	// usage: maps[map_number][x][y]
+	private static final BitSet[] maps;
+	
+	/***
+	 * Private constructor to prevent external instantiation
+	 */
+	private Maps(){};
+	
+	/****
+	 * Get a map as a bitset where TRUE represents that position being blocked
+	 * 
+	 * @param map The map number
+	 * @return The bitset representing the map
+	 */
+	public static BitSet get(int map){
+		if (map < 0 || map >= maps.length) throw new RuntimeException("Invalid map number");
+		return maps[map];
+	}
+	
+	/*****
+	 * Set the status of a coordinate for a given map
+	 * 
+	 * @param map The map number of this point
+	 * @param x The x coordinate of this point
+	 * @param y The y coordinate of this point
+	 * @param v The value at this point. True implies blocked, false implies not blocked.
+	 */
+	private static void set(int map, int x, int y, boolean v){
+		if (maps==null) throw new RuntimeException("Maps not initialized");
+		if (map >= maps.length) throw new RuntimeException("Invalid map number");
+		
+		maps[map].set(x * Main.NUM_TILES + y, v);}
+	
+	/***
+	 * Initialization of maps
+	 */
+	static {
+		maps = new BitSet[NUM_MAPS];
+		
+		for (int i = 0; i < NUM_MAPS; i++)
+			maps[i] = new BitSet(Main.NUM_TILES * Main.NUM_TILES);
+		
+	/**************************************************
+	 * The follow maps are for the FINAL DEMONSTRATION
+	 * 
+	 * set(map #, x, y, isBlocked);
+	 ************************************************/
+		
+		
+		// Map 1
+		set(0, 0, 6, true); //
+		set(0, 0, 9, true); //
+		set(0, 1, 3, true); //
+		set(0, 2, 2, true); //
+		set(0, 2, 11, true); //
+		set(0, 3, 5, true); //
+		set(0, 3, 10, true); //
+		set(0, 4, 4, true); //
+		set(0, 4, 7, true); //
+		set(0, 5, 0, true); //
+		set(0, 5, 2, true); //
+		set(0, 6, 3, true); //
+		set(0, 7, 7, true); //
+		set(0, 8, 0, true); //
+		set(0, 8, 1, true); //
+		set(0, 8, 6, true); //
+		set(0, 9, 4, true); //
+		set(0, 9, 7, true); //
+		set(0, 9, 9, true); //
+		set(0, 10, 2, true);// 
+		set(0, 10, 6, true);//
+		set(0, 11, 1, true);//
+		
+		// Map 2
+		set(1, 0, 4, true); //
+		set(1, 0, 5, true); //
+		set(1, 3, 2, true); //
+		set(1, 3, 5, true); //
+		set(1, 3, 6, true); //
+		set(1, 3, 9, true); //
+		set(1, 4, 5, true); //
+		set(1, 4, 9, true); //
+		set(1, 4, 10, true); //
+		set(1, 5, 5, true); //
+		set(1, 6, 8, true); //
+		set(1, 6, 9, true); //
+		set(1, 7, 0, true); //
+		set(1, 8, 4, true); //
+		set(1, 8, 5, true); //
+		set(1, 8, 10, true); //
+		set(1, 9, 1, true); //
+		set(1, 9, 11, true); //
+		set(1, 10, 7, true); //
+		set(1, 11, 2, true); //
+		set(1, 11, 5, true); //
+		set(1, 11, 8, true); //
+
+		// Map 3
+		set(2, 0, 3, true);
+		set(2, 0, 8, true);
+		set(2, 2, 3, true);
+		set(2, 2, 6, true);
+		set(2, 3, 2, true);
+		set(2, 3, 4, true);
+		set(2, 3, 10, true);
+		set(2, 4, 1, true);
+		set(2, 4, 5, true);
+		set(2, 4, 6, true);
+		set(2, 4, 7, true);
+		set(2, 6, 6, true);
+		set(2, 6, 8, true);
+		set(2, 7, 0, true);
+		set(2, 7, 11, true);
+		set(2, 9, 6, true);
+		set(2, 10, 0, true);
+		set(2, 10, 3, true);
+		set(2, 10, 4, true);
+		set(2, 10, 9, true);
+		set(2, 11, 2, true);
+		set(2, 11, 11, true);
+
+		// Map 4
+		set(3, 0, 2, true);
+		set(3, 0, 3, true);
+		set(3, 0, 4, true);
+		set(3, 0, 8, true);
+		set(3, 1, 4, true);
+		set(3, 2, 0, true);
+		set(3, 2, 5, true);
+		set(3, 2, 10, true);
+		set(3, 3, 2, true);
+		set(3, 3, 9, true);
+		set(3, 3, 11, true);
+		set(3, 4, 3, true);
+		set(3, 5, 10, true);
+		set(3, 6, 4, true);
+		set(3, 8, 4, true);
+		set(3, 8, 8, true);
+		set(3, 9, 0, true);
+		set(3, 9, 4, true);
+		set(3, 9, 6, true);
+		set(3, 11, 1, true);
+		set(3, 11, 5, true);
+		set(3, 11, 10, true);
+		
+		// Map 5
+		set(4, 0, 3, true);
+		set(4, 0, 5, true);
+		set(4, 0, 8, true);
+		set(4, 3, 1, true);
+		set(4, 3, 3, true);
+		set(4, 3, 10, true);
+		set(4, 4, 3, true);
+		set(4, 4, 6, true);
+		set(4, 4, 7, true);
+		set(4, 4, 10, true);
+		set(4, 5, 8, true);
+		set(4, 6, 10, true);
+		set(4, 7, 6, true);
+		set(4, 7, 7, true);
+		set(4, 8, 1, true);
+		set(4, 8, 5, true);
+		set(4, 8, 10, true);
+		set(4, 9, 2, true);
+		set(4, 9, 6, true);
+		set(4, 10, 10, true);
+		set(4, 11, 2, true);
+		set(4, 11, 9, true);
+		
+		// Map 6
+		set(5, 0, 10, true); //
+		set(5, 1, 5, true); //
+		set(5, 2, 3, true); //
+		set(5, 3, 2, true); //
+		set(5, 3, 10, true); //
+		set(5, 4, 2, true); //
+		set(5, 4, 7, true); //
+		set(5, 5, 2, true); //
+		set(5, 5, 4, true); //
+		set(5, 5, 6, true); // it was set(5, 5, 7, true); 
+		set(5, 5, 11, true); //
+		set(5, 6, 5, true);  //
+		set(5, 6, 9, true); //
+		set(5, 7, 6, true); //
+		set(5, 7, 8, true); //
+		set(5, 8, 2, true); //
+		set(5, 8, 10, true); //
+		set(5, 9, 0, true); //
+		set(5, 9, 4, true); //
+		set(5, 9, 8, true); //
+		set(5, 10, 5, true); //
+		set(5, 10, 10, true); //
+		
+		/*************************************/
+	}
+}
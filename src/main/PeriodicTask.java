@@ -0,0 +1,124 @@
+package main;
+
+/*****
+ * Thread which runs a step of work at a fixed rate and priority, instead of spinning or
+ * sleeping a fixed time after each step.
+ * <br><br>
+ * Each step is started a whole number of periods after the first, so the time a step takes
+ * does not delay the ones after it. If a step takes longer than a period, the missed periods
+ * are counted as overruns and skipped, rather than run back to back to catch up. The actual
+ * time between the starts of steps is recorded, so the rate a task really ran at can be checked.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public abstract class PeriodicTask extends Thread {
+	private final int period;				// ms between the starts of steps
+	private volatile boolean cancelled;
+	private volatile int runs, overruns;	// Number of steps run, and steps which took longer than a period
+	private volatile long total;			// Sum of the time between the starts of steps, in ms
+	private volatile int jitter;			// Largest difference between the time between steps and the period, in ms
+
+	/****
+	 * Create a new periodic task
+	 *
+	 * @param period The time between the starts of steps in ms
+	 * @param priority The priority of the thread, between <code>Thread.MIN_PRIORITY</code> and <code>Thread.MAX_PRIORITY</code>
+	 */
+	public PeriodicTask(int period, int priority){
+		if (period <= 0) throw new RuntimeException("Period must be positive");
+		this.period = period;
+		setPriority(priority);
+	}
+
+	/****
+	 * Run a single step of the task. Called once every period until cancelled.
+	 */
+	protected abstract void step();
+
+	/****
+	 * Prepare to run, called once on the task's thread before the first step
+	 */
+	protected void begin(){}
+
+	/****
+	 * Run the steps of the task at a fixed rate until cancelled
+	 */
+	@Override
+	public final void run(){
+		begin();
+		long next = System.currentTimeMillis(), last = -1;
+		while (!cancelled){
+			long now = System.currentTimeMillis();
+			if (last >= 0) record((int)(now - last));
+			last = now;
+
+			step();
+			runs++;
+
+			next += period;
+			long end = System.currentTimeMillis();
+			if (end > next){
+				overruns++;
+				next = end;
+			} else try {
+				Thread.sleep(next - end);
+			} catch (InterruptedException e){}
+		}
+	}
+
+	/****
+	 * Stop running steps, after the current step has finished
+	 */
+	public void cancel(){
+		cancelled = true;}
+
+	/****
+	 * Get the time between the starts of steps the task should run at
+	 *
+	 * @return The period in ms
+	 */
+	public int getPeriod(){
+		return period;}
+
+	/****
+	 * Get the number of steps run so far
+	 *
+	 * @return The number of steps
+	 */
+	public int getRuns(){
+		return runs;}
+
+	/****
+	 * Get the number of steps which took longer than a period, delaying the next step
+	 *
+	 * @return The number of overruns
+	 */
+	public int getOverruns(){
+		return overruns;}
+
+	/****
+	 * Get the mean time between the starts of steps so far
+	 *
+	 * @return The mean period in ms, or the period if fewer than two steps have run
+	 */
+	public float getMeanPeriod(){
+		int n = runs;
+		return n < 2 ? period : total / (float)(n - 1);
+	}
+
+	/****
+	 * Get the largest difference so far between the time between the starts of two steps and the period
+	 *
+	 * @return The jitter in ms
+	 */
+	public int getJitter(){
+		return jitter;}
+
+	/****
+	 * Record the time between the starts of the last two steps
+	 */
+	private void record(int actual){
+		total += actual;
+		jitter = Math.max(jitter, Math.abs(actual - period));}
+}
@@ -0,0 +1,266 @@
+package main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import lejos.robotics.RegulatedMotor;
+import lejos.robotics.navigation.Move;
+import lejos.robotics.navigation.MoveListener;
+import lejos.robotics.navigation.MoveProvider;
+import lejos.robotics.navigation.Pose;
+
+/*****
+ * Records the color sensor and ultrasonic readings, tachometer counts and moves of the pilot
+ * to a binary trace, which <code>TraceReplay</code> feeds back into the classes which read them
+ * on a computer.
+ * <br><br>
+ * A trace is a sequence of 8 byte records, each two big endian ints. The first int holds the
+ * kind of record in its top 4 bits and the ms since recording started in the rest, and the
+ * second holds the value. The first record is a header, with <code>MAGIC</code> in place of
+ * both and <code>VERSION</code> as its value. Values are:
+ * <ul>
+ * <li>LIGHT: the left and right color sensors' normalized light values, in the top and bottom 16 bits</li>
+ * <li>TACHO: the left and right motors' tachometer counts, in the top and bottom 16 bits, which wrap around</li>
+ * <li>RANGE: the ultrasonic sensor's distance in cm, 255 if there was no echo</li>
+ * <li>TRAVEL, ROTATE and ARC: a move started, with the distance or angle to move as float bits</li>
+ * <li>STOP: the last move stopped, with the distance or angle it moved as float bits</li>
+ * <li>TRAVEL_SPEED and ROTATE_SPEED: the speed of the following moves changed, as float bits</li>
+ * <li>MARK: a class started reading the sensors itself, such as <code>LOCALIZE</code>, then X, Y and
+ * HEADING with the pose at the time as float bits</li>
+ * </ul>
+ * Records are written into one of two buffers allocated up front, and a background thread
+ * writes a full buffer out while the other is filled, so recording never allocates or waits
+ * on the output. Records made together, such as a MARK and its pose, are only recorded if there
+ * is room for all of them, and are otherwise dropped and counted together, so a replay never
+ * sees part of a group.
+ * <br><br>
+ * The recorder is added to the pilot as a <code>MoveListener</code> to record its moves.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class TraceRecorder implements MoveListener {
+	public static final int MAGIC = 0x54524331,		// "TRC1"
+							VERSION = 1,
+							RECORD_SIZE = 8,
+							TIME_MASK = 0x0FFFFFFF;
+	public static final int LIGHT = 1, TACHO = 2, RANGE = 3, TRAVEL = 4, ROTATE = 5, ARC = 6, STOP = 7,
+							TRAVEL_SPEED = 8, ROTATE_SPEED = 9, MARK = 10, X = 11, Y = 12, HEADING = 13;
+	public static final int LOCALIZE = 1, BLOCK_SEARCH = 2;	// Marks
+
+	private final OutputStream out;
+	private final RegulatedMotor left, right;
+	private final byte[][] buffers = new byte[2][];
+	private final int capacity;				// Records in each buffer
+	private int current, size;				// Buffer being filled and the bytes in it
+	private int full = -1;					// Buffer being written out, -1 if none
+	private final long start;
+	private float travelSpeed = Float.NaN, rotateSpeed = Float.NaN;		// Speeds of the last moves recorded
+	private int dropped;
+	private boolean closed, failed;
+
+	/****
+	 * Create a new recorder, which starts recording immediately
+	 *
+	 * @param out The stream to write the trace to, closed with the recorder
+	 * @param capacity The number of records in each buffer, at least 4
+	 * @param left The left motor, to record its tachometer count with every light value, or null not to
+	 * @param right The right motor
+	 */
+	public TraceRecorder(OutputStream out, int capacity, RegulatedMotor left, RegulatedMotor right){
+		if (capacity < 4) throw new RuntimeException("Trace buffers must hold at least 4 records");
+		this.out = out;
+		this.capacity = capacity;
+		this.left = left;
+		this.right = right;
+		buffers[0] = new byte[capacity * RECORD_SIZE];
+		buffers[1] = new byte[capacity * RECORD_SIZE];
+		start = System.currentTimeMillis();
+		put(buffers[0], 0, MAGIC);
+		put(buffers[0], 4, VERSION);
+		size = RECORD_SIZE;
+
+		Thread writer = new Thread(){
+			@Override
+			public void run(){
+				write();}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/****
+	 * Record a sample of both color sensors, and the tachometer counts if the motors were given
+	 *
+	 * @param left The normalized light value of the left sensor
+	 * @param right The normalized light value of the right sensor
+	 */
+	public synchronized void recordLight(int left, int right){
+		if (!reserve(this.left != null ? 2 : 1)) return;
+		record(LIGHT, left << 16 | right & 0xFFFF);
+		if (this.left != null)
+			record(TACHO, this.left.getTachoCount() << 16 | this.right.getTachoCount() & 0xFFFF);
+	}
+
+	/****
+	 * Record a reading of the ultrasonic sensor
+	 *
+	 * @param distance The distance in cm, 255 if there was no echo
+	 */
+	public synchronized void recordRange(int distance){
+		if (reserve(1)) record(RANGE, distance);}
+
+	/****
+	 * Record a class starting to read the sensors itself, from where a replay can start
+	 *
+	 * @param mark The mark, such as <code>LOCALIZE</code>
+	 * @param pose The pose at the time
+	 */
+	public synchronized void mark(int mark, Pose pose){
+		if (!reserve(4)) return;
+		record(MARK, mark);
+		record(X, Float.floatToIntBits(pose.getX()));
+		record(Y, Float.floatToIntBits(pose.getY()));
+		record(HEADING, Float.floatToIntBits(pose.getHeading()));
+	}
+
+	/****
+	 * Record the move started, and the speeds if they changed
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void moveStarted(Move event, MoveProvider mp){
+		boolean travel = event.getTravelSpeed() != travelSpeed, rotate = event.getRotateSpeed() != rotateSpeed;
+		if (!reserve((travel ? 1 : 0) + (rotate ? 1 : 0) + 1)) return;
+		if (travel){
+			travelSpeed = event.getTravelSpeed();
+			record(TRAVEL_SPEED, Float.floatToIntBits(travelSpeed));
+		}
+		if (rotate){
+			rotateSpeed = event.getRotateSpeed();
+			record(ROTATE_SPEED, Float.floatToIntBits(rotateSpeed));
+		}
+		switch (event.getMoveType()){
+		case TRAVEL: record(TRAVEL, Float.floatToIntBits(event.getDistanceTraveled())); break;
+		case ROTATE: record(ROTATE, Float.floatToIntBits(event.getAngleTurned())); break;
+		case ARC: record(ARC, Float.floatToIntBits(event.getAngleTurned())); break;
+		default: break;
+		}
+	}
+
+	/****
+	 * Record the move stopped, with the angle it turned if it was a rotation, or else the distance travelled
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void moveStopped(Move event, MoveProvider mp){
+		if (reserve(1))
+			record(STOP, Float.floatToIntBits(event.getMoveType() == Move.MoveType.ROTATE ? event.getAngleTurned() : event.getDistanceTraveled()));
+	}
+
+	/****
+	 * Get the number of records or groups of records dropped because both buffers were full
+	 *
+	 * @return The number of records and groups
+	 */
+	public synchronized int getDropped(){
+		return dropped;}
+
+	/****
+	 * Stop recording, writing out every record made and closing the stream
+	 */
+	public synchronized void close(){
+		while (full >= 0){
+			try {
+				wait();
+			} catch (InterruptedException e) {
+			}
+		}
+		boolean wasClosed = closed;
+		closed = true;
+		notifyAll();
+		if (failed) throw new RuntimeException("Failed to write the trace");
+		if (wasClosed) return;
+		try {
+			out.write(buffers[current], 0, size);
+			out.close();
+		} catch (IOException e){
+			throw new RuntimeException("Failed to write the trace");
+		}
+	}
+
+	/****
+	 * Check whether a group of records can be recorded, counting it as dropped if both buffers
+	 * would be full first. Only called while synchronized.
+	 *
+	 * @param records The number of records in the group, at most 4
+	 * @return True iff every record of the group fits
+	 */
+	private boolean reserve(int records){
+		if (closed) return false;
+		int room = (buffers[current].length - size) / RECORD_SIZE + (full < 0 ? capacity : 0);
+		if (room >= records) return true;
+		dropped++;
+		return false;
+	}
+
+	/****
+	 * Add a record reserved with {@link #reserve(int)} to the buffer being filled, switching
+	 * buffers if it is full. Only called while synchronized.
+	 */
+	private void record(int kind, int value){
+		if (size == buffers[current].length){
+			full = current;
+			current ^= 1;
+			size = 0;
+			notifyAll();
+		}
+		int time = (int)(System.currentTimeMillis() - start) & TIME_MASK;
+		put(buffers[current], size, kind << 28 | time);
+		put(buffers[current], size + 4, value);
+		size += RECORD_SIZE;
+	}
+
+	/****
+	 * Write out every buffer filled until the recorder is closed, run by the writer thread
+	 */
+	private void write(){
+		while (true){
+			byte[] buffer;
+			synchronized (this){
+				while (full < 0 && !closed){
+					try {
+						wait();
+					} catch (InterruptedException e) {
+					}
+				}
+				if (full < 0) return;
+				buffer = buffers[full];
+			}
+
+			// The buffer is not filled again until it has been written
+			try {
+				out.write(buffer, 0, buffer.length);
+			} catch (IOException e){
+				synchronized (this){
+					failed = true;
+					closed = true;
+				}
+			}
+			synchronized (this){
+				full = -1;
+				notifyAll();
+			}
+		}
+	}
+
+	/** Put a big endian int into a buffer */
+	private static void put(byte[] buffer, int offset, int value){
+		buffer[offset] = (byte)(value >>> 24);
+		buffer[offset + 1] = (byte)(value >>> 16);
+		buffer[offset + 2] = (byte)(value >>> 8);
+		buffer[offset + 3] = (byte)value;
+	}
+}
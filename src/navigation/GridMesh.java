@@ -0,0 +1,224 @@
+package navigation;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+
+import lejos.robotics.pathfinding.NavigationMesh;
+import lejos.robotics.pathfinding.Node;
+import main.Main;
+
+/*****
+ * Implementation of a NavigationMesh using tiles as the nodes.
+ * <br>
+ * A node can only be connect to tiles it is touching (the 4 surrounding tiles),
+ * ensuring that all paths found only require movement in the X and Y directions,
+ * therefore all movement on a large scale can be corrected usng <code>OdometryCorrection</code>
+ * <br><br>
+ * Nodes are stored in an array indexed by tile, in the same order as the map
+ * (<code>X * size + Y</code>), so the neighbours of a tile are found by index
+ * arithmetic and the mesh is regenerated in time linear in the number of tiles.
+ * A node added on a tile which already has one, such as the start and goal nodes
+ * added by <code>NodePathFinder</code>, is connected to the neighbours of that tile
+ * and to the other such nodes on the surrounding tiles, so a start and goal on
+ * neighbouring tiles are connected directly. It is not stored, and removing it only
+ * disconnects it again.
+ * <br><br>
+ * This is to be utilized by the <code>NodePathFinder</code> using the A* algorithm
+ * provided via the leJOS library
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class GridMesh implements NavigationMesh {
+
+	private final BitSet map;			// Map of blocked tiles, null for the current map
+	private final int size;				// Number of tiles along each side of the map
+
+	private volatile Mesh mesh;			// Nodes of the mesh, replaced as a whole when regenerated
+
+	/**
+	 * Instantiate a new mesh of the current map
+	 */
+	public GridMesh(){
+		this(null, Main.NUM_TILES);}
+
+	/****
+	 * Instantiate a new mesh of the provided map
+	 *
+	 * @param map The map where the value at (X, Y) is at <code>X * size + Y</code>, or null for the current map
+	 * @param size The number of tiles along each side of the map
+	 */
+	public GridMesh(BitSet map, int size){
+		this.map = map;
+		this.size = size;
+		this.mesh = new Mesh(new Node[size * size], new ArrayList<Node>());
+	}
+
+	/****
+	 * Get the number of tiles along each side of the map
+	 *
+	 * @return The size of the map
+	 */
+	public int getSize(){
+		return size;}
+
+	/****
+	 * Get the node of a tile
+	 *
+	 * @param x X coordinate of the tile
+	 * @param y Y coordinate of the tile
+	 * @return The node of the tile, or null if the tile is blocked or outside the map
+	 */
+	public Node getNode(int x, int y){
+		if (x < 0 || x >= size || y < 0 || y >= size) return null;
+		return mesh.nodes[x * size + y];
+	}
+
+	/****
+	 * Check if a <code>Node</code> is within in the bounds of the map.
+	 * @param n The node to check the validity of
+	 * @return True iff the node 'n' is valid on the map
+	 */
+	private boolean isValid(Node n){
+		return n.x >= 0 && n.x < size && n.y >= 0 && n.y < size;}
+
+	/***
+	 * Add a node to this <code>NavigationMesh</code>, connecting it to
+	 * the nodes of the surrounding tiles. Note that the value of neighbors
+	 * is not used because of the inherint maximum of 4
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int addNode(Node node, int neighbors) {
+		if (!isValid(node)) return 0;
+
+		Mesh mesh = this.mesh;
+		Node[] nodes = mesh.nodes;
+		int x = (int)node.x, y = (int)node.y, i = x * size + y;
+		if (nodes[i] == null){
+			nodes[i] = node;
+			mesh.set.add(node);
+		}
+
+		int n_count = 0;
+		if (x > 0 && nodes[i - size] != null && connect(node, nodes[i - size])) n_count++;
+		if (x < size - 1 && nodes[i + size] != null && connect(node, nodes[i + size])) n_count++;
+		if (y > 0 && nodes[i - 1] != null && connect(node, nodes[i - 1])) n_count++;
+		if (y < size - 1 && nodes[i + 1] != null && connect(node, nodes[i + 1])) n_count++;
+
+		// Nodes which are not stored can only be found through the list of them
+		for (Node other : mesh.unstored)
+			if (Math.abs((int)other.x - x) + Math.abs((int)other.y - y) == 1 && connect(node, other)) n_count++;
+		if (nodes[i] != node && !mesh.unstored.contains(node))
+			mesh.unstored.add(node);
+		return n_count;
+	}
+
+	/****
+	 * Remove a node from the given mesh, disconnecting it from all of its neighbours.
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean removeNode(Node node) {
+		if (!isValid(node)) return false;
+
+		Mesh mesh = this.mesh;
+		int i = (int)node.x * size + (int)node.y;
+		boolean stored = mesh.nodes[i] == node;
+		Node[] neighbors = node.getNeighbors().toArray(new Node[0]);
+		if (!stored && !mesh.unstored.remove(node) && neighbors.length == 0)
+			return false;
+
+		for (Node n : neighbors)
+			disconnect(node, n);
+		if (stored){
+			mesh.nodes[i] = null;
+			mesh.set.remove(node);
+		}
+		return true;
+	}
+
+	/***
+	 * Connect node1 and node2.
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean connect(Node node1, Node node2) {
+		if (isValid(node1) && isValid(node2)){
+			node1.addNeighbor(node2);
+			node2.addNeighbor(node1);
+			return true;
+		} else return false;
+	}
+
+	/****
+	 * Disconnect node1 and node2.
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean disconnect(Node node1, Node node2) {
+		if (node1.getNeighbors().contains(node2) && node2.getNeighbors().contains(node1)){
+			node1.removeNeighbor(node2);
+			node2.removeNeighbor(node1);
+			return true;
+		} else return false;
+	}
+
+	/****
+	 * Get the current mesh.
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Collection<Node> getMesh() {
+		return mesh.set;
+	}
+
+	/*****
+	 * Regenerate the set of nodes using the map provided during instantiation,
+	 * or the current map. Each tile is only connected to the tiles before it
+	 * in X and Y, so each connection is made once.
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void regenerate() {
+		BitSet map = this.map == null ? Main.getCurrentMap() : this.map;
+		Node[] nodes = new Node[size * size];
+		ArrayList<Node> set = new ArrayList<Node>(size * size);
+
+		for (int x = 0, i = 0; x < size; x++){
+			for (int y = 0; y < size; y++, i++){
+				if (map.get(i)) continue;
+
+				Node node = new Node(x, y);
+				nodes[i] = node;
+				set.add(node);
+				if (x > 0 && nodes[i - size] != null) connect(node, nodes[i - size]);
+				if (y > 0 && nodes[i - 1] != null) connect(node, nodes[i - 1]);
+			}
+		}
+
+		// Publish the new mesh with a single write, as it is regenerated in the background
+		this.mesh = new Mesh(nodes, set);
+	}
+
+	/*****
+	 * The nodes of a mesh, indexed by tile and as a set, which are always published together
+	 */
+	private static final class Mesh {
+		private final Node[] nodes;			// Node of each free tile, indexed by X * size + Y
+		private final ArrayList<Node> set;	// Set of nodes in the mesh
+		private final ArrayList<Node> unstored = new ArrayList<Node>();	// Nodes added on tiles which already had one
+
+		private Mesh(Node[] nodes, ArrayList<Node> set){
+			this.nodes = nodes;
+			this.set = set;
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package navigation;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import lejos.robotics.navigation.DestinationUnreachableException;
+import lejos.robotics.navigation.Pose;
+import lejos.robotics.navigation.Waypoint;
+import lejos.robotics.pathfinding.Path;
+import lejos.robotics.pathfinding.PathFinder;
+import lejos.robotics.pathfinding.WaypointListener;
+import main.Main;
+
+/*****
+ * Path finder which finds the route taking the least time to drive, rather than the fewest
+ * tiles, by searching over both the tile and the heading of the robot.
+ * <br><br>
+ * Each state is a tile and one of the four headings the robot drives along the grid at.
+ * Travelling one tile forward and rotating a quarter or half turn in place each cost the time
+ * the <code>MotionProfile</code> expects them to take, so a route with fewer turns is preferred
+ * over one of the same length, and a slightly longer route is preferred if it saves enough
+ * turns. The heading of the starting pose is used, and when the destination requires a heading,
+ * the route ends facing it, including the cost of the final rotation.
+ * <br><br>
+ * Like the <code>GridMesh</code>, coordinates are given in tiles, and moving into a blocked
+ * tile is not allowed except into the destination.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class HeadingPlanner implements PathFinder {
+	// 1 tile forward at each heading, 0 being 0 degrees and each next heading 90 degrees to the left
+	private static final int[] FORWARD_X = {1, 0, -1, 0}, FORWARD_Y = {0, 1, 0, -1};
+
+	private final BitSet map;			// Map to plan on, null for the current map
+	private final int size;
+	private MotionProfile profile;
+	private final float[] cost;			// Least time to reach each state, as (X * size + Y) * 4 + heading
+	private final int[] parent;			// Previous state on the route to each state
+	private final IndexedHeap open;
+	private final ArrayList<WaypointListener> listeners = new ArrayList<WaypointListener>();
+	private float time;					// Expected time of the last route found
+
+	/****
+	 * Create a new planner for the current map
+	 *
+	 * @param profile The expected times of each action
+	 */
+	public HeadingPlanner(MotionProfile profile){
+		this(null, Main.NUM_TILES, profile);}
+
+	/****
+	 * Create a new planner for a map
+	 *
+	 * @param map The map where the value at (X, Y) is at <code>X * size + Y</code>, or null for the current map
+	 * @param size The number of tiles along each side of the map
+	 * @param profile The expected times of each action
+	 */
+	public HeadingPlanner(BitSet map, int size, MotionProfile profile){
+		this.map = map;
+		this.size = size;
+		this.profile = profile;
+		this.cost = new float[size * size * 4];
+		this.parent = new int[size * size * 4];
+		this.open = new IndexedHeap(size * size * 4);
+	}
+
+	/****
+	 * Set the expected times of each action used to find routes
+	 *
+	 * @param profile The motion profile
+	 */
+	public synchronized void setMotionProfile(MotionProfile profile){
+		this.profile = profile;}
+
+	/****
+	 * Get the expected time to drive the last route found, including the final rotation
+	 *
+	 * @return The expected time in ms
+	 */
+	public float getTime(){
+		return time;}
+
+	/****
+	 * Get the heading closest to an angle
+	 *
+	 * @param angle The angle in degrees
+	 * @return The heading, 0 for 0 degrees and each next heading 90 degrees to the left
+	 */
+	static int toHeading(double angle){
+		return (int)Math.round(angle / 90) & 3;}
+
+	/****
+	 * Find the fastest route between two tiles
+	 *
+	 * @param start The tile to start from and the current heading, as a pose in tiles
+	 * @param dest The tile to travel to, as a waypoint in tiles, with the heading to end at if required
+	 * @return The path to follow, including the starting and ending tiles
+	 * @throws DestinationUnreachableException If there is no route
+	 */
+	@Override
+	public synchronized Path findRoute(Pose start, Waypoint dest) throws DestinationUnreachableException {
+		int sx = Math.round(start.getX()), sy = Math.round(start.getY()),
+			gx = Math.round(dest.x), gy = Math.round(dest.y);
+		if (!isValid(sx, sy) || !isValid(gx, gy))
+			throw new DestinationUnreachableException();
+
+		BitSet map = this.map == null ? Main.getCurrentMap() : this.map;
+		int goal = gx * size + gy, end = dest.isHeadingRequired() ? toHeading(dest.getHeading()) : -1;
+		float forward = profile.travelTime(Main.TILE_WIDTH),
+			  quarter = profile.rotateTime(90),
+			  half = profile.rotateTime(180);
+
+		for (int i = 0; i < cost.length; i++) cost[i] = Float.MAX_VALUE;
+		open.clear();
+		int s = (sx * size + sy) * 4 + toHeading(start.getHeading());
+		cost[s] = 0;
+		parent[s] = -1;
+		open.put(s, 0);
+
+		int found = -1;
+		while (!open.isEmpty()){
+			int u = open.pop(), tile = u >> 2, h = u & 3;
+			if (tile == goal){
+				if (end < 0 || h == end){
+					found = u;
+					break;
+				}
+				relax(u, (tile << 2) | end, cost[u] + ((end - h) == 2 || (h - end) == 2 ? half : quarter));
+				continue;
+			}
+
+			// Rotate in place, or travel one tile forward
+			relax(u, (tile << 2) | ((h + 1) & 3), cost[u] + quarter);
+			relax(u, (tile << 2) | ((h + 3) & 3), cost[u] + quarter);
+			relax(u, (tile << 2) | ((h + 2) & 3), cost[u] + half);
+
+			int x = tile / size + FORWARD_X[h], y = tile % size + FORWARD_Y[h], next = x * size + y;
+			if (isValid(x, y) && (next == goal || !map.get(next)))
+				relax(u, (next << 2) | h, cost[u] + forward);
+		}
+		if (found < 0)
+			throw new DestinationUnreachableException();
+		time = cost[found];
+
+		// Walk back along the route, keeping each tile once
+		ArrayList<Waypoint> reversed = new ArrayList<Waypoint>();
+		for (int u = found, last = -1; u >= 0; u = parent[u]){
+			if ((u >> 2) == last) continue;
+			last = u >> 2;
+			reversed.add(new Waypoint(last / size, last % size));
+		}
+		Path path = new Path();
+		for (int i = reversed.size() - 1; i >= 0; i--)
+			path.add(reversed.get(i));
+		return path;
+	}
+
+	@Override
+	public void addListener(WaypointListener wpl){
+		listeners.add(wpl);}
+
+	/****
+	 * Find a route in the background, passing each waypoint to the listeners
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void startPathFinding(final Pose start, final Waypoint end){
+		new Thread(new Runnable(){
+			public void run(){
+				try {
+					for (Waypoint w : findRoute(start, end))
+						for (WaypointListener l : listeners) l.addWaypoint(w);
+					for (WaypointListener l : listeners) l.pathGenerated();
+				} catch (DestinationUnreachableException e){}
+			}
+		}).start();
+	}
+
+	private boolean isValid(int x, int y){
+		return x >= 0 && x < size && y >= 0 && y < size;}
+
+	private void relax(int from, int to, float c){
+		if (c >= cost[to]) return;
+		cost[to] = c;
+		parent[to] = from;
+		open.put(to, Float.floatToIntBits(c));
+	}
+}
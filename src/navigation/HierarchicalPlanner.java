@@ -0,0 +1,442 @@
+package navigation;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import lejos.robotics.navigation.DestinationUnreachableException;
+import lejos.robotics.navigation.Pose;
+import lejos.robotics.navigation.Waypoint;
+import lejos.robotics.pathfinding.Path;
+import lejos.robotics.pathfinding.PathFinder;
+import lejos.robotics.pathfinding.WaypointListener;
+
+/*****
+ * Path finder for large maps which searches a graph of cluster entrances rather than every
+ * tile, using HPA* (Botea, M&uuml;ller and Schaeffer, 2004).
+ * <br><br>
+ * The map is split into square clusters. Along the border between two clusters, each run of
+ * tiles which are free on both sides gets one entrance in its middle, or one at each end if it
+ * is long. The distances between the entrances of each cluster are found once, so a route is
+ * found by searching over entrances only, from the tiles the start can reach in its own cluster
+ * to those the goal can be reached from, and the route is then refined into tiles one cluster
+ * at a time. The time taken grows with the number of clusters the route crosses rather than
+ * the area of the map, and routes are within a few tiles of the shortest.
+ * <br><br>
+ * When tiles are blocked or unblocked, only the clusters containing them and the clusters
+ * sharing a border with those are rebuilt, before the next route is found.
+ * <br><br>
+ * Like the <code>GridMesh</code>, tiles are only connected to the 4 surrounding tiles and
+ * coordinates are given in tiles. Moving into a blocked tile is not allowed, except into the
+ * goal, and a route may start from a blocked tile.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class HierarchicalPlanner implements PathFinder {
+	private static final int INF = 1 << 29;		// Distance between tiles with no route between them
+	private static final int CLUSTER = 8,		// Default number of tiles along each side of a cluster
+							 LONG_RUN = 6;		// Length of a run of free tiles given an entrance at each end
+
+	private final int size, cluster;
+	private final int clusters;			// Number of clusters along each side of the map
+	private final BitSet blocked;		// Copy of the map, where the value at (X, Y) is at X * size + Y
+	private final BitSet dirty;			// Clusters containing tiles changed since they were built
+	private final int[][] entrances;	// Entrance tiles of each cluster
+	private final int[][] distances;	// Distance between each pair of entrances of each cluster
+	private final int[] entrance;		// Index of each tile in the entrances of its cluster, -1 if not an entrance
+
+	private final Search from, to, local;	// Searches of tiles from the start, to the goal, and within a cluster
+	private final int[] g, parent, via;		// Distance, previous entrance, and edge of each entrance searched
+	private final int[] seen;				// Number of the search each entrance was last reached by
+	private final IndexedHeap open;
+	private final ArrayList<WaypointListener> listeners = new ArrayList<WaypointListener>();
+	private int search;						// Number of the current search
+	private int expanded;					// Number of entrances expanded by the last route found
+
+	// Edges between entrances: within a cluster, across a border, from the start, and to the goal
+	private static final int INTRA = 0, ACROSS = 1, START = 2, GOAL = 3;
+
+	/****
+	 * Create a new planner for a map, with the default cluster size
+	 *
+	 * @param map The map where the value at (X, Y) is at <code>X * size + Y</code>, which is copied
+	 * @param size The number of tiles along each side of the map
+	 */
+	public HierarchicalPlanner(BitSet map, int size){
+		this(map, size, CLUSTER);}
+
+	/****
+	 * Create a new planner for a map
+	 *
+	 * @param map The map where the value at (X, Y) is at <code>X * size + Y</code>, which is copied
+	 * @param size The number of tiles along each side of the map
+	 * @param cluster The number of tiles along each side of a cluster
+	 */
+	public HierarchicalPlanner(BitSet map, int size, int cluster){
+		if (cluster < 2) throw new RuntimeException("Clusters must be at least 2 tiles wide");
+		this.size = size;
+		this.cluster = cluster;
+		this.clusters = (size + cluster - 1) / cluster;
+		this.blocked = (BitSet)map.clone();
+		this.dirty = new BitSet(clusters * clusters);
+		this.dirty.set(0, clusters * clusters);
+		this.entrances = new int[clusters * clusters][];
+		this.distances = new int[clusters * clusters][];
+		this.entrance = new int[size * size];
+		for (int i = 0; i < entrance.length; i++) entrance[i] = -1;
+
+		this.from = new Search(size * size);
+		this.to = new Search(size * size);
+		this.local = new Search(size * size);
+		this.g = new int[size * size];
+		this.parent = new int[size * size];
+		this.via = new int[size * size];
+		this.seen = new int[size * size];
+		this.open = new IndexedHeap(size * size);
+	}
+
+	/****
+	 * Block or unblock a tile. Its cluster is rebuilt before the next route is found.
+	 *
+	 * @param x X coordinate of the tile
+	 * @param y Y coordinate of the tile
+	 * @param v True iff the tile is blocked
+	 */
+	public synchronized void setBlocked(int x, int y, boolean v){
+		int s = x * size + y;
+		if (blocked.get(s) == v) return;
+		blocked.set(s, v);
+		dirty.set(clusterOf(s));
+	}
+
+	/****
+	 * Update every tile which differs from a map
+	 *
+	 * @param map The map where the value at (X, Y) is at <code>X * size + Y</code>
+	 */
+	public synchronized void update(BitSet map){
+		BitSet changed = (BitSet)map.clone();
+		changed.xor(blocked);
+		for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1))
+			setBlocked(i / size, i % size, map.get(i));
+	}
+
+	/****
+	 * Get the number of entrances expanded to find the last route
+	 *
+	 * @return The number of entrances expanded
+	 */
+	public int getExpanded(){
+		return expanded;}
+
+	/****
+	 * Find a route between two tiles
+	 *
+	 * @param start The tile to start from, as a pose in tiles
+	 * @param dest The tile to travel to, as a waypoint in tiles
+	 * @return The path to follow, including the starting and ending tiles
+	 * @throws DestinationUnreachableException If there is no route
+	 */
+	@Override
+	public synchronized Path findRoute(Pose start, Waypoint dest) throws DestinationUnreachableException {
+		int sx = Math.round(start.getX()), sy = Math.round(start.getY()),
+			gx = Math.round(dest.x), gy = Math.round(dest.y);
+		if (!isValid(sx, sy) || !isValid(gx, gy))
+			throw new DestinationUnreachableException();
+		build();
+
+		int s = sx * size + sy, t = gx * size + gy;
+		expanded = 0;
+		Path path = new Path();
+		path.add(new Waypoint(sx, sy));
+		if (s == t)
+			return path;
+
+		// Tiles the start can reach and the goal can be reached from, leaving their clusters only on the first step,
+		// or the last step into the goal
+		bfs(from, s, t, true, false);
+		bfs(to, t, -1, true, false);
+
+		// Search the entrances, starting from the start
+		search++;
+		open.clear();
+		reach(s, 0, -1, START, t);
+		int found = -1;
+		while (!open.isEmpty()){
+			int u = open.pop();
+			expanded++;
+			if (u == t){
+				found = u;
+				break;
+			}
+			if (u == s)
+				for (int i = 0; i < from.count; i++){
+					int v = from.queue[i];
+					if (v != s && (v == t || entrance[v] >= 0)) reach(v, from.dist[v], u, START, t);
+				}
+			if (entrance[u] >= 0)
+				expand(u, t);
+		}
+		if (found < 0)
+			throw new DestinationUnreachableException();
+
+		// List the entrances on the route, then refine each edge between them into tiles
+		int n = 0;
+		for (int u = found; u >= 0; u = parent[u]) n++;
+		int[] route = new int[n];
+		for (int u = found, i = n - 1; u >= 0; u = parent[u], i--) route[i] = u;
+		for (int i = 1; i < n; i++)
+			refine(path, route[i - 1], route[i], via[route[i]]);
+		return path;
+	}
+
+	@Override
+	public void addListener(WaypointListener wpl){
+		listeners.add(wpl);}
+
+	/****
+	 * Find a route in the background, passing each waypoint to the listeners
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void startPathFinding(final Pose start, final Waypoint end){
+		new Thread(new Runnable(){
+			public void run(){
+				try {
+					for (Waypoint w : findRoute(start, end))
+						for (WaypointListener l : listeners) l.addWaypoint(w);
+					for (WaypointListener l : listeners) l.pathGenerated();
+				} catch (DestinationUnreachableException e){}
+			}
+		}).start();
+	}
+
+	private boolean isValid(int x, int y){
+		return x >= 0 && x < size && y >= 0 && y < size;}
+
+	private int clusterOf(int tile){
+		return (tile / size / cluster) * clusters + (tile % size) / cluster;}
+
+	/****
+	 * Relax the edges out of an entrance: to the other entrances of its cluster, to the
+	 * entrances next to it across a border, and to the goal if it can be reached from it
+	 */
+	private void expand(int u, int t){
+		int c = clusterOf(u), k = entrances[c].length, i = entrance[u];
+		for (int j = 0; j < k; j++){
+			int d = distances[c][i * k + j];
+			if (j != i && d < INF) reach(entrances[c][j], g[u] + d, u, INTRA, t);
+		}
+
+		int x = u / size, y = u % size;
+		if (x > 0) across(u, u - size, c, t);
+		if (x < size - 1) across(u, u + size, c, t);
+		if (y > 0) across(u, u - 1, c, t);
+		if (y < size - 1) across(u, u + 1, c, t);
+
+		if (to.has(u)) reach(t, g[u] + to.dist[u], u, GOAL, t);
+	}
+
+	private void across(int u, int v, int c, int t){
+		if (entrance[v] >= 0 && clusterOf(v) != c) reach(v, g[u] + 1, u, ACROSS, t);}
+
+	/****
+	 * Reach an entrance at a distance, if it has not been reached by a shorter route
+	 */
+	private void reach(int v, int d, int u, int edge, int t){
+		if (seen[v] == search && g[v] <= d) return;
+		seen[v] = search;
+		g[v] = d;
+		parent[v] = u;
+		via[v] = edge;
+		int f = d + Math.abs(v / size - t / size) + Math.abs(v % size - t % size);
+		open.put(v, ((long)f << 32) | (INF - d));
+	}
+
+	/****
+	 * Add the tiles along one edge of the route to a path, not including the tile it starts at
+	 */
+	private void refine(Path path, int u, int v, int edge){
+		int[] tiles;
+		int n = 0;
+		if (edge == ACROSS){
+			tiles = new int[]{v};
+			n = 1;
+		} else if (edge == GOAL){
+			// Follow the search from the goal forwards
+			tiles = new int[to.dist[u]];
+			for (int w = to.parent[u]; w >= 0; w = to.parent[w]) tiles[n++] = w;
+		} else {
+			// Follow a search from the start of the edge backwards
+			Search tree = from;
+			if (edge == INTRA){
+				bfs(local, u, v, false, true);
+				tree = local;
+			}
+			tiles = new int[tree.dist[v]];
+			for (int w = v; w != u; w = tree.parent[w]) tiles[tiles.length - 1 - n++] = w;
+		}
+		for (int i = 0; i < n; i++)
+			path.add(new Waypoint(tiles[i] / size, tiles[i] % size));
+	}
+
+	/****
+	 * Search the tiles reachable from a tile, only moving between tiles of the same cluster
+	 * and only into free tiles, except into the target, which may be moved into from any tile
+	 *
+	 * @param search The search to keep the distances in
+	 * @param s The tile to search from
+	 * @param target The tile which may be moved into while blocked, -1 if none
+	 * @param leave True to allow moving into another cluster on the first step
+	 * @param stop True to stop once the target is reached
+	 */
+	private void bfs(Search search, int s, int target, boolean leave, boolean stop){
+		search.start(s);
+		for (int i = 0; i < search.count; i++){
+			int u = search.queue[i];
+			if (u == target && u != s){
+				if (stop) return;
+				continue;
+			}
+			int x = u / size, y = u % size, c = u == s && leave ? -1 : clusterOf(u);
+			if (x > 0) step(search, u, u - size, c, target);
+			if (x < size - 1) step(search, u, u + size, c, target);
+			if (y > 0) step(search, u, u - 1, c, target);
+			if (y < size - 1) step(search, u, u + 1, c, target);
+		}
+	}
+
+	private void step(Search search, int u, int v, int c, int target){
+		if (search.has(v) || (v != target && blocked.get(v)) || (c >= 0 && v != target && clusterOf(v) != c)) return;
+		search.add(v, search.dist[u] + 1, u);
+	}
+
+	/****
+	 * Rebuild every cluster which has changed, and the clusters next to them, whose
+	 * entrances on the borders they share may have changed
+	 */
+	private void build(){
+		if (dirty.isEmpty()) return;
+		BitSet rebuild = new BitSet(clusters * clusters);
+		for (int c = dirty.nextSetBit(0); c >= 0; c = dirty.nextSetBit(c + 1)){
+			int cx = c / clusters, cy = c % clusters;
+			rebuild.set(c);
+			if (cx > 0) rebuild.set(c - clusters);
+			if (cx < clusters - 1) rebuild.set(c + clusters);
+			if (cy > 0) rebuild.set(c - 1);
+			if (cy < clusters - 1) rebuild.set(c + 1);
+		}
+		dirty.clear();
+
+		for (int c = rebuild.nextSetBit(0); c >= 0; c = rebuild.nextSetBit(c + 1))
+			findEntrances(c);
+		for (int c = rebuild.nextSetBit(0); c >= 0; c = rebuild.nextSetBit(c + 1)){
+			int[] e = entrances[c];
+			int k = e.length;
+			int[] d = new int[k * k];
+			for (int i = 0; i < k; i++){
+				bfs(local, e[i], -1, false, false);
+				for (int j = 0; j < k; j++) d[i * k + j] = local.has(e[j]) ? local.dist[e[j]] : INF;
+			}
+			distances[c] = d;
+		}
+	}
+
+	/****
+	 * Find the entrances of a cluster on each of its borders. Both clusters sharing a
+	 * border find the same runs along it, so their entrances are always next to each other.
+	 */
+	private void findEntrances(int c){
+		if (entrances[c] != null)
+			for (int i = 0; i < entrances[c].length; i++) entrance[entrances[c][i]] = -1;
+
+		int x0 = (c / clusters) * cluster, y0 = (c % clusters) * cluster,
+			x1 = Math.min(size, x0 + cluster), y1 = Math.min(size, y0 + cluster);
+		int[] found = new int[4 * cluster];
+		int k = 0;
+		if (x0 > 0) k = findRuns(found, k, x0 * size + y0, 1, -size, y1 - y0);
+		if (x1 < size) k = findRuns(found, k, (x1 - 1) * size + y0, 1, size, y1 - y0);
+		if (y0 > 0) k = findRuns(found, k, x0 * size + y0, size, -1, x1 - x0);
+		if (y1 < size) k = findRuns(found, k, x0 * size + y1 - 1, size, 1, x1 - x0);
+
+		int[] e = new int[k];
+		for (int i = 0; i < k; i++){
+			e[i] = found[i];
+			entrance[e[i]] = i;
+		}
+		entrances[c] = e;
+	}
+
+	/****
+	 * Add entrances for the runs of tiles free on both sides of one border of a cluster
+	 *
+	 * @param found The entrances found so far
+	 * @param k The number of entrances found so far
+	 * @param first The first tile along the border inside the cluster
+	 * @param step The difference between consecutive tiles along the border
+	 * @param across The difference between a tile and the tile next to it across the border
+	 * @param n The number of tiles along the border
+	 * @return The number of entrances found
+	 */
+	private int findRuns(int[] found, int k, int first, int step, int across, int n){
+		int run = -1;
+		for (int i = 0; i <= n; i++){
+			int u = first + i * step;
+			boolean free = i < n && !blocked.get(u) && !blocked.get(u + across);
+			if (free && run < 0) run = i;
+			else if (!free && run >= 0){
+				if (i - run < LONG_RUN)
+					k = add(found, k, first + (run + i - 1) / 2 * step);
+				else {
+					k = add(found, k, first + run * step);
+					k = add(found, k, first + (i - 1) * step);
+				}
+				run = -1;
+			}
+		}
+		return k;
+	}
+
+	/** Add an entrance unless a corner tile has already been added from another border */
+	private static int add(int[] found, int k, int tile){
+		for (int i = 0; i < k; i++)
+			if (found[i] == tile) return k;
+		found[k] = tile;
+		return k + 1;
+	}
+
+	/*****
+	 * Breadth first search over tiles, which can be reused without clearing
+	 * by numbering each search
+	 */
+	private static class Search {
+		final int[] dist, parent, queue;
+		private final int[] seen;		// Number of the search each tile was last reached by
+		private int search;
+		int count;						// Number of tiles reached, in the order they were reached
+
+		Search(int tiles){
+			dist = new int[tiles];
+			parent = new int[tiles];
+			queue = new int[tiles];
+			seen = new int[tiles];
+		}
+
+		void start(int s){
+			search++;
+			count = 0;
+			add(s, 0, -1);
+		}
+
+		boolean has(int tile){
+			return seen[tile] == search;}
+
+		void add(int tile, int d, int from){
+			seen[tile] = search;
+			dist[tile] = d;
+			parent[tile] = from;
+			queue[count++] = tile;
+		}
+	}
+}
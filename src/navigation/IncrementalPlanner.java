@@ -0,0 +1,280 @@
+package navigation;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import lejos.robotics.navigation.DestinationUnreachableException;
+import lejos.robotics.navigation.Pose;
+import lejos.robotics.navigation.Waypoint;
+import lejos.robotics.pathfinding.Path;
+import lejos.robotics.pathfinding.PathFinder;
+import lejos.robotics.pathfinding.WaypointListener;
+
+/*****
+ * Path finder which repairs its search when tiles are blocked or unblocked, rather than
+ * planning from scratch, using D* Lite (Koenig and Likhachev, 2002).
+ * <br><br>
+ * Each search runs backwards from its goal, keeping the distance of every tile expanded so far
+ * to the goal. When a tile changes, only the distances which depend on it are made
+ * inconsistent, and the next route found only expands those again, so replanning after a
+ * small change costs a fraction of a full search. A search is kept for each of the last few
+ * goals routed to, so the robot can travel back and forth between them and every search is
+ * still repaired rather than restarted. Each search keeps 24 bytes per tile, and a search is
+ * only restarted for a goal which has none, reusing the search of the least recently used goal.
+ * <br><br>
+ * Like the <code>GridMesh</code>, tiles are only connected to the 4 surrounding tiles and
+ * coordinates are given in tiles. Moving into a blocked tile is not allowed, except into the
+ * goal, and a route may start from a blocked tile, in the same way as temporary nodes are
+ * connected to the mesh.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class IncrementalPlanner implements PathFinder {
+	private static final int INF = 1 << 29;		// Distance of a tile with no route to the goal
+
+	private final int size;
+	private final BitSet blocked;		// Copy of the map, where the value at (X, Y) is at X * size + Y
+	private final Search[] searches;	// Searches of the last goals routed to, most recently used first
+	private final ArrayList<WaypointListener> listeners = new ArrayList<WaypointListener>();
+	private int expanded;				// Number of tiles expanded by the last route found
+
+	/****
+	 * Create a new planner for a map, keeping the searches of the last 2 goals
+	 *
+	 * @param map The map where the value at (X, Y) is at <code>X * size + Y</code>, which is copied
+	 * @param size The number of tiles along each side of the map
+	 */
+	public IncrementalPlanner(BitSet map, int size){
+		this(map, size, 2);}
+
+	/****
+	 * Create a new planner for a map
+	 *
+	 * @param map The map where the value at (X, Y) is at <code>X * size + Y</code>, which is copied
+	 * @param size The number of tiles along each side of the map
+	 * @param goals The number of goals to keep a search for
+	 */
+	public IncrementalPlanner(BitSet map, int size, int goals){
+		if (goals < 1) throw new RuntimeException("At least 1 search must be kept");
+		this.size = size;
+		this.blocked = (BitSet)map.clone();
+		this.searches = new Search[goals];
+	}
+
+	/****
+	 * Block or unblock a tile, updating the distances which depend on it in every search
+	 *
+	 * @param x X coordinate of the tile
+	 * @param y Y coordinate of the tile
+	 * @param v True iff the tile is blocked
+	 */
+	public synchronized void setBlocked(int x, int y, boolean v){
+		int s = x * size + y;
+		if (blocked.get(s) == v) return;
+		blocked.set(s, v);
+
+		// Every move into the tile has changed, which changes the lookahead of its neighbours
+		for (Search search : searches){
+			if (search == null) break;
+			if (x > 0) search.updateRhs(s - size);
+			if (x < size - 1) search.updateRhs(s + size);
+			if (y > 0) search.updateRhs(s - 1);
+			if (y < size - 1) search.updateRhs(s + 1);
+		}
+	}
+
+	/****
+	 * Update every tile which differs from a map
+	 *
+	 * @param map The map where the value at (X, Y) is at <code>X * size + Y</code>
+	 */
+	public synchronized void update(BitSet map){
+		BitSet changed = (BitSet)map.clone();
+		changed.xor(blocked);
+		for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1))
+			setBlocked(i / size, i % size, map.get(i));
+	}
+
+	/****
+	 * Get the number of tiles expanded to find the last route
+	 *
+	 * @return The number of tiles expanded
+	 */
+	public int getExpanded(){
+		return expanded;}
+
+	/****
+	 * Find a route between two tiles
+	 *
+	 * @param start The tile to start from, as a pose in tiles
+	 * @param dest The tile to travel to, as a waypoint in tiles
+	 * @return The path to follow, including the starting and ending tiles
+	 * @throws DestinationUnreachableException If there is no route
+	 */
+	@Override
+	public synchronized Path findRoute(Pose start, Waypoint dest) throws DestinationUnreachableException {
+		int sx = Math.round(start.getX()), sy = Math.round(start.getY()),
+			gx = Math.round(dest.x), gy = Math.round(dest.y);
+		if (!isValid(sx, sy) || !isValid(gx, gy))
+			throw new DestinationUnreachableException();
+
+		int s = sx * size + sy;
+		Search search = search(gx * size + gy, s);
+		if (s != search.start){
+			search.km += h(search.start, s);
+			search.start = s;
+		}
+
+		expanded = 0;
+		search.computeShortestPath();
+		int[] g = search.g;
+		if (g[s] >= INF)
+			throw new DestinationUnreachableException();
+
+		// Follow the distances down to the goal
+		Path path = new Path();
+		path.add(new Waypoint(sx, sy));
+		for (int u = s; u != search.goal;){
+			int next = -1, best = INF;
+			int x = u / size, y = u % size;
+			if (x > 0 && search.cost(u - size) + g[u - size] < best){ next = u - size; best = search.cost(next) + g[next];}
+			if (x < size - 1 && search.cost(u + size) + g[u + size] < best){ next = u + size; best = search.cost(next) + g[next];}
+			if (y > 0 && search.cost(u - 1) + g[u - 1] < best){ next = u - 1; best = search.cost(next) + g[next];}
+			if (y < size - 1 && search.cost(u + 1) + g[u + 1] < best){ next = u + 1; best = search.cost(next) + g[next];}
+			if (next < 0 || path.size() > size * size)
+				throw new DestinationUnreachableException();
+
+			path.add(new Waypoint(next / size, next % size));
+			u = next;
+		}
+		return path;
+	}
+
+	@Override
+	public void addListener(WaypointListener wpl){
+		listeners.add(wpl);}
+
+	/****
+	 * Find a route in the background, passing each waypoint to the listeners
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void startPathFinding(final Pose start, final Waypoint end){
+		new Thread(new Runnable(){
+			public void run(){
+				try {
+					for (Waypoint w : findRoute(start, end))
+						for (WaypointListener l : listeners) l.addWaypoint(w);
+					for (WaypointListener l : listeners) l.pathGenerated();
+				} catch (DestinationUnreachableException e){}
+			}
+		}).start();
+	}
+
+	/****
+	 * Get the search of a goal, moving it to the front, or restart the search of the least
+	 * recently used goal from the goal if it has none
+	 *
+	 * @param goal The goal tile
+	 * @param start The tile the route starts from
+	 * @return The search of the goal
+	 */
+	private Search search(int goal, int start){
+		int i = 0;
+		while (i < searches.length - 1 && searches[i] != null && searches[i].goal != goal) i++;
+		Search search = searches[i];
+		if (search == null) search = new Search();
+		if (search.goal != goal) search.initialize(start, goal);
+
+		for (; i > 0; i--) searches[i] = searches[i - 1];
+		searches[0] = search;
+		return search;
+	}
+
+	private boolean isValid(int x, int y){
+		return x >= 0 && x < size && y >= 0 && y < size;}
+
+	/** Manhattan distance between two tiles */
+	private int h(int a, int b){
+		return Math.abs(a / size - b / size) + Math.abs(a % size - b % size);}
+
+	/*****
+	 * D* Lite search backwards from a single goal
+	 */
+	private class Search {
+		private final int[] g = new int[size * size], rhs = new int[size * size];	// Distance to the goal, and the one step lookahead of it
+		private final IndexedHeap open = new IndexedHeap(size * size);				// Inconsistent tiles, ordered by key
+		private int start = -1, goal = -1;	// Tile the last route started from, and the goal of the search
+		private int km;						// Sum of the heuristic between every start, as in D* Lite
+
+		/** Cost of moving into a tile from a neighbour */
+		private int cost(int to){
+			return to != goal && blocked.get(to) ? INF : 1;}
+
+		/** Key of a tile, as its two parts packed into one long */
+		private long key(int u){
+			int m = Math.min(g[u], rhs[u]);
+			return ((long)(m + h(start, u) + km) << 32) | m;
+		}
+
+		/****
+		 * Restart the search from a new goal
+		 */
+		private void initialize(int start, int goal){
+			for (int i = 0; i < g.length; i++) g[i] = rhs[i] = INF;
+			open.clear();
+			this.start = start;
+			this.goal = goal;
+			km = 0;
+			rhs[goal] = 0;
+			open.put(goal, key(goal));
+		}
+
+		/****
+		 * Recompute the lookahead of a tile from its neighbours, and queue it if it is inconsistent
+		 */
+		private void updateRhs(int u){
+			if (u != goal){
+				int best = INF, x = u / size, y = u % size;
+				if (x > 0) best = Math.min(best, cost(u - size) + g[u - size]);
+				if (x < size - 1) best = Math.min(best, cost(u + size) + g[u + size]);
+				if (y > 0) best = Math.min(best, cost(u - 1) + g[u - 1]);
+				if (y < size - 1) best = Math.min(best, cost(u + 1) + g[u + 1]);
+				rhs[u] = Math.min(best, INF);
+			}
+			if (g[u] != rhs[u]) open.put(u, key(u));
+			else open.remove(u);
+		}
+
+		/****
+		 * Expand inconsistent tiles until the distance of the start is known
+		 */
+		private void computeShortestPath(){
+			while (!open.isEmpty() && (open.peekKey() < key(start) || rhs[start] != g[start])){
+				int u = open.peek();
+				long old = open.getKey(u), k = key(u);
+				if (old < k){
+					open.put(u, k);
+					continue;
+				}
+
+				open.remove(u);
+				expanded++;
+				if (g[u] > rhs[u])
+					g[u] = rhs[u];
+				else {
+					g[u] = INF;
+					updateRhs(u);
+				}
+
+				int x = u / size, y = u % size;
+				if (x > 0) updateRhs(u - size);
+				if (x < size - 1) updateRhs(u + size);
+				if (y > 0) updateRhs(u - 1);
+				if (y < size - 1) updateRhs(u + 1);
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package navigation;
+
+/*****
+ * Binary min-heap of the integers <code>0</code> to <code>capacity - 1</code>, such as
+ * tile indices, ordered by a <code>long</code> key. The position of each item in the
+ * heap is kept, so an item's key can be changed or the item removed in logarithmic time,
+ * which the planners need to repair a search when the map changes, and the heap never
+ * holds more than <code>capacity</code> items, however often their keys are lowered.
+ * <br><br>
+ * Items and keys are kept in arrays allocated once, so no objects are created while
+ * searching.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class IndexedHeap {
+	private final int[] heap;		// Items in heap order
+	private final int[] pos;		// Position of each item in the heap, -1 if absent
+	private final long[] key;		// Key of each item
+	private int n;					// Number of items in the heap
+
+	/****
+	 * Create a new empty heap
+	 *
+	 * @param capacity The number of items which can be in the heap
+	 */
+	public IndexedHeap(int capacity){
+		heap = new int[capacity];
+		pos = new int[capacity];
+		key = new long[capacity];
+		for (int i = 0; i < capacity; i++) pos[i] = -1;
+	}
+
+	/** Remove every item from the heap */
+	public void clear(){
+		for (int i = 0; i < n; i++) pos[heap[i]] = -1;
+		n = 0;
+	}
+
+	/** Check whether the heap is empty */
+	public boolean isEmpty(){
+		return n == 0;}
+
+	/** Get the number of items in the heap */
+	public int size(){
+		return n;}
+
+	/** Check whether an item is in the heap */
+	public boolean contains(int item){
+		return pos[item] >= 0;}
+
+	/** Get the item with the smallest key, without removing it */
+	public int peek(){
+		return heap[0];}
+
+	/** Get the smallest key, or <code>Long.MAX_VALUE</code> if the heap is empty */
+	public long peekKey(){
+		return n == 0 ? Long.MAX_VALUE : key[heap[0]];}
+
+	/** Get the key of an item in the heap */
+	public long getKey(int item){
+		return key[item];}
+
+	/****
+	 * Remove and return the item with the smallest key
+	 *
+	 * @return The item removed
+	 */
+	public int pop(){
+		int top = heap[0];
+		remove(top);
+		return top;
+	}
+
+	/****
+	 * Add an item, or change its key if it is already in the heap
+	 *
+	 * @param item The item
+	 * @param k The key of the item
+	 */
+	public void put(int item, long k){
+		if (pos[item] < 0){
+			pos[item] = n;
+			heap[n++] = item;
+			key[item] = k;
+			up(n - 1);
+		} else {
+			long old = key[item];
+			key[item] = k;
+			if (k < old) up(pos[item]);
+			else down(pos[item]);
+		}
+	}
+
+	/****
+	 * Remove an item from the heap
+	 *
+	 * @param item The item
+	 * @return True iff the item was in the heap
+	 */
+	public boolean remove(int item){
+		int i = pos[item];
+		if (i < 0) return false;
+
+		pos[item] = -1;
+		if (i == --n) return true;
+		heap[i] = heap[n];
+		pos[heap[i]] = i;
+		up(i);
+		down(i);
+		return true;
+	}
+
+	private void up(int i){
+		int item = heap[i];
+		long k = key[item];
+		while (i > 0){
+			int parent = (i - 1) >>> 1;
+			if (key[heap[parent]] <= k) break;
+			heap[i] = heap[parent];
+			pos[heap[i]] = i;
+			i = parent;
+		}
+		heap[i] = item;
+		pos[item] = i;
+	}
+
+	private void down(int i){
+		int item = heap[i];
+		long k = key[item];
+		while (true){
+			int child = 2 * i + 1;
+			if (child >= n) break;
+			if (child + 1 < n && key[heap[child + 1]] < key[heap[child]]) child++;
+			if (key[heap[child]] >= k) break;
+			heap[i] = heap[child];
+			pos[heap[i]] = i;
+			i = child;
+		}
+		heap[i] = item;
+		pos[item] = i;
+	}
+}
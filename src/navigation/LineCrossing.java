@@ -0,0 +1,121 @@
+package navigation;
+
+/*****
+ * A grid line crossed by both color sensors, as seen by <code>OdometryCorrection</code>.
+ * <br><br>
+ * Crossings are kept in a <code>LineCrossings</code> buffer, which fills the same instances
+ * again as new lines are crossed, so readers copy them into their own instance rather than
+ * keeping a reference.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class LineCrossing {
+	int number;					// Number of crossings published before this one
+	long firstTime, time;		// ms when the first and second sensor saw the line
+	boolean leftFirst;			// Whether the left sensor saw the line first
+	float firstX, firstY, firstHeading;	// Pose when the first sensor saw the line
+	float x, y, heading;		// Pose when the second sensor saw the line
+	float headingError;			// Degrees the heading was off by
+	float lineError;			// cm the pose was off by along the direction of travel, NaN if unknown
+	boolean corrected;			// Whether the pose was corrected when the line was crossed
+
+	/****
+	 * Get the number of crossings published before this one, which increases by one with every crossing
+	 *
+	 * @return The number of the crossing
+	 */
+	public int getNumber(){
+		return number;}
+
+	/****
+	 * Get the time the first sensor saw the line
+	 *
+	 * @return The time in ms, as given by <code>System.currentTimeMillis()</code>
+	 */
+	public long getFirstTime(){
+		return firstTime;}
+
+	/****
+	 * Get the time the second sensor saw the line, completing the crossing
+	 *
+	 * @return The time in ms, as given by <code>System.currentTimeMillis()</code>
+	 */
+	public long getTime(){
+		return time;}
+
+	/** Check whether the left sensor saw the line before the right sensor */
+	public boolean isLeftFirst(){
+		return leftFirst;}
+
+	/** Get the X coordinate when the first sensor saw the line */
+	public float getFirstX(){
+		return firstX;}
+
+	/** Get the Y coordinate when the first sensor saw the line */
+	public float getFirstY(){
+		return firstY;}
+
+	/** Get the heading when the first sensor saw the line */
+	public float getFirstHeading(){
+		return firstHeading;}
+
+	/** Get the X coordinate when the second sensor saw the line */
+	public float getX(){
+		return x;}
+
+	/** Get the Y coordinate when the second sensor saw the line */
+	public float getY(){
+		return y;}
+
+	/** Get the heading when the second sensor saw the line */
+	public float getHeading(){
+		return heading;}
+
+	/****
+	 * Get the amount the heading was off when the line was crossed, found from the
+	 * distance travelled between the two sensors seeing it
+	 *
+	 * @return The amount to correct the heading by in degrees
+	 */
+	public float getHeadingError(){
+		return headingError;}
+
+	/****
+	 * Get the amount the pose was off along the direction of travel when the line was crossed
+	 *
+	 * @return The amount to correct the pose by in cm, or NaN if the line was crossed too far off the grid to tell
+	 */
+	public float getLineError(){
+		return lineError;}
+
+	/****
+	 * Check whether the pose was already corrected when the line was crossed, so the
+	 * correction should not be made again
+	 *
+	 * @return True iff the pose was corrected
+	 */
+	public boolean isCorrected(){
+		return corrected;}
+
+	/****
+	 * Copy this crossing into another
+	 *
+	 * @param to The crossing to copy into
+	 */
+	public void copyTo(LineCrossing to){
+		to.number = number;
+		to.firstTime = firstTime;
+		to.time = time;
+		to.leftFirst = leftFirst;
+		to.firstX = firstX;
+		to.firstY = firstY;
+		to.firstHeading = firstHeading;
+		to.x = x;
+		to.y = y;
+		to.heading = heading;
+		to.headingError = headingError;
+		to.lineError = lineError;
+		to.corrected = corrected;
+	}
+}
@@ -0,0 +1,89 @@
+package navigation;
+
+/*****
+ * Ring buffer of the lines crossed, written by a single thread and read by any number of threads
+ * without locking.
+ * <br><br>
+ * The crossings are allocated once, and the writer fills the next one in place before publishing
+ * it by incrementing a volatile count. Each reader keeps the number of the last crossing it used
+ * and copies newer ones out at its own pace, so no crossing is lost or used twice by one reader,
+ * and readers do not affect each other. The writer never waits, so a reader which falls more
+ * than a buffer behind misses the oldest crossings, and a copy which the writer overtook while
+ * it was being made is made again from a newer crossing.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class LineCrossings {
+	private final LineCrossing[] crossings;
+	private final int mask;
+	private volatile int count;		// Number of crossings published, only changed by the writer
+
+	/****
+	 * Create a new empty buffer
+	 *
+	 * @param capacity The least number of crossings kept, rounded up to a power of 2
+	 */
+	public LineCrossings(int capacity){
+		int n = 2;
+		while (n < capacity + 1) n <<= 1;		// The slot being written is not readable
+		crossings = new LineCrossing[n];
+		for (int i = 0; i < n; i++) crossings[i] = new LineCrossing();
+		mask = n - 1;
+	}
+
+	/****
+	 * Get the crossing to fill in before publishing it. Only called by the writer.
+	 *
+	 * @return The next crossing
+	 */
+	LineCrossing next(){
+		return crossings[count & mask];}
+
+	/****
+	 * Publish the crossing returned by <code>next()</code>. Only called by the writer.
+	 */
+	void publish(){
+		int n = count;
+		crossings[n & mask].number = n;
+		count = n + 1;
+	}
+
+	/****
+	 * Get the number of crossings published so far
+	 *
+	 * @return The number of crossings
+	 */
+	public int getCount(){
+		return count;}
+
+	/****
+	 * Copy a crossing, if it is still in the buffer
+	 *
+	 * @param number The number of the crossing
+	 * @param into The crossing to copy into
+	 * @return True iff the crossing was copied, false if it has not been published or was overwritten
+	 */
+	public boolean read(int number, LineCrossing into){
+		if (number < 0 || number >= count) return false;
+		crossings[number & mask].copyTo(into);
+
+		// The writer fills the slot after the newest crossing, so the copy is only whole if that was not this one
+		return count - number <= mask;
+	}
+
+	/****
+	 * Copy the newest crossing, if any have been published since a number of crossings
+	 *
+	 * @param after The number of crossings already used, such as one more than the number of the last crossing copied
+	 * @param into The crossing to copy into
+	 * @return True iff a newer crossing was copied
+	 */
+	public boolean readLatest(int after, LineCrossing into){
+		while (true){
+			int n = count;
+			if (n <= after) return false;
+			if (read(n - 1, into)) return true;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package navigation;
+
+/*****
+ * Detects grid lines from the light values of one color sensor, by how far they fall below
+ * the light value of the floor around them, rather than by the drop between two samples.
+ * <br><br>
+ * The floor's light value is tracked by an exponentially weighted moving average of the samples
+ * taken off lines, so slow changes in the floor or the lighting are followed. A line is entered
+ * once a sample is darker than the floor by the entry threshold, and left once a sample is
+ * darker by less than the exit threshold, so noise near a single threshold does not split one
+ * line into several. Every line reports the time it was entered and left, and its centre, as the
+ * time weighted by how much darker each sample on it was. Detection does not depend on the
+ * change between consecutive samples, so it works at any speed the line is still sampled at.
+ * <br><br>
+ * The detector only depends on the samples given to it, so it can be tuned on recorded traces.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class LineDetector {
+	private float rate = 0.05f;		// Weight of each sample off lines in the floor's light value
+	private float enter = 20;		// Amount darker than the floor to enter a line at
+	private float exit = 10;		// Amount darker than the floor to leave a line below
+	private long maxDuration = 1000;	// Most ms to be on a line before it is taken to be the floor
+
+	private float baseline = Float.NaN;	// Light value of the floor, NaN before the first sample
+	private boolean onLine;
+	private long start, end;			// ms the current or last line was entered and left
+	private float weight, moment;		// Sum of how much darker samples on the line were, and the same by time since start
+	private float centre;				// ms after entering the last line its centre was at
+
+	/****
+	 * Set how quickly the floor's light value follows the samples taken off lines
+	 *
+	 * @param rate The weight of each sample, between 0 and 1
+	 */
+	public void setBaselineRate(float rate){
+		this.rate = rate;}
+
+	/****
+	 * Set how much darker than the floor a sample must be to enter and leave a line
+	 *
+	 * @param enter The amount darker to enter a line at
+	 * @param exit The amount darker to leave a line below, at most <code>enter</code>
+	 */
+	public void setThresholds(float enter, float exit){
+		if (exit > enter) throw new RuntimeException("The exit threshold must not be above the entry threshold");
+		this.enter = enter;
+		this.exit = exit;
+	}
+
+	/****
+	 * Set the most time to be on a line for, after which the darker floor is taken as the
+	 * floor's light value instead, such as when stopped on a line
+	 *
+	 * @param ms The time in ms
+	 */
+	public void setMaxDuration(long ms){
+		this.maxDuration = ms;}
+
+	/****
+	 * Forget the floor's light value and any line being crossed
+	 */
+	public void reset(){
+		baseline = Float.NaN;
+		onLine = false;
+	}
+
+	/****
+	 * Detect lines with the next sample
+	 *
+	 * @param value The light value, lower being darker
+	 * @param time The time the sample was taken in ms
+	 * @return True iff a line was left with this sample, which is when its start, end and centre are known
+	 */
+	public boolean sample(int value, long time){
+		if (Float.isNaN(baseline)){
+			baseline = value;
+			return false;
+		}
+
+		float depth = baseline - value;
+		if (!onLine){
+			if (depth >= enter){
+				onLine = true;
+				start = time;
+				weight = depth;
+				moment = 0;
+			} else
+				baseline += rate * (value - baseline);
+			return false;
+		}
+
+		if (depth >= exit){
+			weight += depth;
+			moment += depth * (time - start);
+			if (time - start > maxDuration){
+				onLine = false;
+				baseline = value;
+			}
+			return false;
+		}
+
+		onLine = false;
+		end = time;
+		centre = moment / weight;
+		baseline += rate * (value - baseline);
+		return true;
+	}
+
+	/** Check whether the sensor is over a line */
+	public boolean isOnLine(){
+		return onLine;}
+
+	/** Get the light value of the floor, or NaN before the first sample */
+	public float getBaseline(){
+		return baseline;}
+
+	/** Get the time the last line was entered in ms */
+	public long getStart(){
+		return start;}
+
+	/** Get the time the last line was left in ms, which is the time of the first sample off it */
+	public long getEnd(){
+		return end;}
+
+	/** Get the time of the centre of the last line in ms */
+	public long getCentre(){
+		return start + Math.round(centre);}
+
+	/****
+	 * Get how far between entering and leaving the last line its centre was
+	 *
+	 * @return The fraction of the time between entering and leaving the line
+	 */
+	public float getCentreFraction(){
+		return end == start ? 0 : centre / (end - start);}
+}
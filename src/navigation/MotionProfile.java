@@ -0,0 +1,112 @@
+package navigation;
+
+import lejos.robotics.navigation.RotateMoveController;
+
+/*****
+ * Estimates of how long the robot takes to perform its basic actions: rotating in place,
+ * travelling in a straight line, and taking a reading with the ultrasonic sensor.
+ * <br><br>
+ * Estimates start from the speeds set on the pilot, plus a fixed overhead per action for
+ * accelerating and stopping. Every measured action updates the overhead of that type of
+ * action using an exponentially weighted moving average, so estimates converge towards
+ * what the robot actually does on the current surface and battery level.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class MotionProfile {
+	private static final float WEIGHT = 0.25f;		// Weight of a new measurement in the moving average
+
+	private float travelSpeed, rotateSpeed;			// cm/s and deg/s
+	private float travelOverhead = 300,				// ms added to every travel
+				  rotateOverhead = 300,				// ms added to every rotation
+				  senseTime = 100;					// ms taken by a single blocked/free reading
+	private boolean adaptive = true;				// Whether measurements update the estimates
+
+	/****
+	 * Create a new profile using the speeds currently set on a pilot
+	 *
+	 * @param pilot The pilot whose travel and rotate speeds to use
+	 */
+	public MotionProfile(RotateMoveController pilot){
+		this(pilot.getTravelSpeed(), pilot.getRotateSpeed());}
+
+	/****
+	 * Create a new profile using the provided speeds
+	 *
+	 * @param travelSpeed The travel speed in cm/s
+	 * @param rotateSpeed The rotate speed in deg/s
+	 */
+	public MotionProfile(double travelSpeed, double rotateSpeed){
+		this.travelSpeed = (float)Math.max(travelSpeed, 1);
+		this.rotateSpeed = (float)Math.max(rotateSpeed, 1);
+	}
+
+	/****
+	 * Set whether measured actions update the estimates. Disable to keep the estimates
+	 * fixed, for example when the actions are simulated and take no time.
+	 * 
+	 * @param adaptive True to update the estimates with every measurement
+	 */
+	public synchronized void setAdaptive(boolean adaptive){
+		this.adaptive = adaptive;}
+	
+	/****
+	 * Get the expected time to rotate in place
+	 *
+	 * @param angle The angle to rotate in degrees
+	 * @return The expected time in ms
+	 */
+	public synchronized float rotateTime(double angle){
+		return angle == 0 ? 0 : rotateOverhead + (float)Math.abs(angle) * 1000f / rotateSpeed;}
+
+	/****
+	 * Get the expected time to travel in a straight line
+	 *
+	 * @param distance The distance to travel in cm
+	 * @return The expected time in ms
+	 */
+	public synchronized float travelTime(double distance){
+		return distance == 0 ? 0 : travelOverhead + (float)Math.abs(distance) * 1000f / travelSpeed;}
+
+	/****
+	 * Get the expected time to take a single blocked/free reading
+	 *
+	 * @return The expected time in ms
+	 */
+	public synchronized float senseTime(){
+		return senseTime;}
+
+	/****
+	 * Record the time a rotation took
+	 *
+	 * @param angle The angle rotated in degrees
+	 * @param ms The time the rotation took in ms
+	 */
+	public synchronized void recordRotation(double angle, long ms){
+		if (angle == 0 || !adaptive) return;
+		float overhead = ms - (float)Math.abs(angle) * 1000f / rotateSpeed;
+		rotateOverhead = Math.max(0, (1 - WEIGHT) * rotateOverhead + WEIGHT * overhead);
+	}
+
+	/****
+	 * Record the time a straight line travel took
+	 *
+	 * @param distance The distance travelled in cm
+	 * @param ms The time the travel took in ms
+	 */
+	public synchronized void recordTravel(double distance, long ms){
+		if (distance == 0 || !adaptive) return;
+		float overhead = ms - (float)Math.abs(distance) * 1000f / travelSpeed;
+		travelOverhead = Math.max(0, (1 - WEIGHT) * travelOverhead + WEIGHT * overhead);
+	}
+
+	/****
+	 * Record the time a single blocked/free reading took
+	 *
+	 * @param ms The time the reading took in ms
+	 */
+	public synchronized void recordSense(long ms){
+		if (adaptive)
+			senseTime = (1 - WEIGHT) * senseTime + WEIGHT * ms;}
+}
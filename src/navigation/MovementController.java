@@ -1,21 +1,16 @@
 package navigation;
 
-import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.Collection;
-
 import lejos.robotics.navigation.DestinationUnreachableException;
 import lejos.robotics.navigation.Navigator;
 import lejos.robotics.navigation.Pose;
 import lejos.robotics.navigation.Waypoint;
 import lejos.robotics.pathfinding.AstarSearchAlgorithm;
-import lejos.robotics.pathfinding.NavigationMesh;
-import lejos.robotics.pathfinding.Node;
 import lejos.robotics.pathfinding.NodePathFinder;
 import lejos.robotics.pathfinding.Path;
 import lejos.robotics.pathfinding.PathFinder;
 import main.Display;
 import main.Main;
+import main.MapSnapshot;
 
 /**
  * Movement controller that finds a path using a given map and travels there.
@@ -25,144 +20,50 @@ import main.Main;
  */
 public class MovementController{
 	
-	/*****
-	 * Implementation of a NavigationMesh using tiles as the nodes.
-	 * <br>
-	 * A node can only be connect to tiles it is touching (the 4 surrounding tiles),
-	 * ensuring that all paths found only require movement in the X and Y directions,
-	 * therefore all movement on a large scale can be corrected usng <code>OdometryCorrection</code>
-	 * <br>
-	 * This is to be utilized by the <code>NodePathFinder</code> using the A* algorithm
-	 * provided via the leJOS library
-	 * 
-	 * @author Scott Cooper
-	 * @since v1
+	/****
+	 * Algorithm used to find paths between tiles
 	 */
-	private static class Grid implements NavigationMesh {
-		
-		/****
-		 * Check if a <code>Node</code> is within in the bounds of the current map.
-		 * @param n The node to check the validity of
-		 * @return True iff the node 'n' is valid on the current map
-		 */
-		private static boolean isValid(Node n){
-			return n.x >= 0 && n.x < Main.NUM_TILES && n.y >= 0 && n.y < Main.NUM_TILES;}
-		
-		// Set of nodes in this NavigationMesh
-		private ArrayList<Node> set;
-		
-		/**
-		 * Instantiate a new Grid using the provided map
-		 */
-		public Grid(){}
-		
-		/***
-		 * Add a node to this <code>NavigationMesh</code>. Note that 
-		 * the value of neighbors is not used because of the inherint
-		 * maximum of 4
-		 * 
-		 * {@inheritDoc}
-		 */
-		@Override
-		public int addNode(Node node, int neighbors) {
-			set.add(node);
-			int n_count = 0;
-			int[] n = {-1, 0, 1};
-			for (int x : n){
-				for (int y : n){
-					if (Math.abs(x) + Math.abs(y) == 1)
-						for (Node n2 : set)
-							if (n2.x == node.x + x && n2.y == node.y + y){
-								connect(node, n2);
-								n_count++;}
-				}
-			}
-			
-			return n_count;
-		}
-
-		/****
-		 * Remove a node from the given mesh.
-		 * 
-		 * {@inheritDoc}
-		 */
-		@Override
-		public boolean removeNode(Node node) {
-			if (!set.contains(node))
-				return false;
-			
-			set.remove(node);
-			return true;
-			
-			
-		}
-
-		/***
-		 * Connect node1 and node2. 
-		 * 
-		 * {@inheritDoc}
-		 */
-		@Override
-		public boolean connect(Node node1, Node node2) {
-			if (isValid(node1) && isValid(node2)){
-				node1.addNeighbor(node2);
-				node2.addNeighbor(node1);
-				return true;
-			} else return false;
-
-		}
-
-		/****
-		 * Disconnect node1 and node2.
-		 * 
-		 * {@inheritDoc}
-		 */
-		@Override
-		public boolean disconnect(Node node1, Node node2) {
-			if (node1.getNeighbors().contains(node2) && node1.getNeighbors().contains(node1)){
-				node1.removeNeighbor(node2);
-				node2.removeNeighbor(node1);
-				return true;
-			} else return false;
-		}
-
-		/****
-		 * Get the current mesh.
-		 * 
-		 * {@inheritDoc}
-		 */
-		@Override
-		public Collection<Node> getMesh() {
-			return set;
-		}
-
-		/*****
-		 * Regenerate the set of nodes using the map provided
-		 * during instantiation.
-		 * 
-		 * {@inheritDoc}
-		 */
-		@Override
-		public void regenerate() {
-			BitSet map = Main.getCurrentMap();
-			
-			set = new ArrayList<Node>();
-			
-			for (int x = 0; x < Main.NUM_TILES; x++){
-				for (int y = 0; y < Main.NUM_TILES; y++){
-					if (!map.get(x*Main.NUM_TILES + y)){
-						addNode(new Node(x, y), 5);
-					}
-						
-				}
-			}
-		}
-		
+	public static enum Planner {
+		/** A* over a <code>GridMesh</code>, which is regenerated after every change to the map */
+		ASTAR,
+		/** D* Lite, which repairs its search after changes to the map. See <code>IncrementalPlanner</code> */
+		INCREMENTAL,
+		/** Least time to drive, including rotations and the final heading. See <code>HeadingPlanner</code> */
+		HEADING,
+		/** Searches between clusters of tiles, for large maps. See <code>HierarchicalPlanner</code> */
+		HIERARCHICAL
 	}
 	
+	/****
+	 * How a path is driven once it has been found
+	 */
+	public static enum Execution {
+		/** Stop at every tile, and correct the heading and distance with a manoeuvre */
+		STEP,
+		/** Drive each straight run of tiles as one leg, correcting the pose at each line without stopping */
+		MERGED,
+		/** Drive the whole path without stopping, rounding corners into arcs. See <code>PathFollower</code> */
+		CONTINUOUS
+	}
+	
+	private static final int ROUTE_CACHE = 8;	// Most routes kept between trips
+	private static final float MAX_ERROR = 2;	// cm from the end of a merged path before moving to it again
+	
 	private Navigator nav;			// Navigator to control movement
 	private PathFinder pathFinder;	// Path finder
-	private Grid grid;
+	private Planner planner = Planner.ASTAR;
+	private Execution execution = Execution.STEP;
+	private PathFollower follower;	// Follower of paths driven continuously
+	private GridMesh grid;			// Mesh of the free tiles of the current map
+	private IncrementalPlanner incremental;
+	private HeadingPlanner heading;
+	private HierarchicalPlanner hierarchical;
+	private MotionProfile profile;	// Expected time of each move, updated as moves are made
+	private final RouteCache routes = new RouteCache(ROUTE_CACHE);
+	private volatile int plannedVersion = -1;	// Version of the map the planner was last updated to
+	private volatile RouteTable table;			// Distances between every pair of tiles, null if not built
+	private final LineCrossing crossing = new LineCrossing();	// Last line crossed
+	private int crossings;			// Number of lines crossed already used to correct
 	
 	/***
 	 * Create a new movement Controller
@@ -171,10 +72,32 @@ public class MovementController{
 	 */
 	public MovementController(Navigator nav){
 		this.nav = nav;
-		grid = new Grid();
+		grid = new GridMesh();
 		pathFinder = new NodePathFinder(new AstarSearchAlgorithm(), grid);
+		profile = new MotionProfile(Main.getPilot());
 	}
 	
+	/****
+	 * Set the motion profile used to plan routes and updated with the time moves take,
+	 * for example to share it with the <code>Localizer</code>. Routes kept from earlier
+	 * trips are dropped, as they were planned with the previous profile.
+	 * 
+	 * @param profile The motion profile
+	 */
+	public void setMotionProfile(MotionProfile profile){
+		this.profile = profile;
+		if (heading != null) heading.setMotionProfile(profile);
+		routes.clear();
+	}
+	
+	/****
+	 * Get the motion profile used to plan routes
+	 * 
+	 * @return The motion profile
+	 */
+	public MotionProfile getMotionProfile(){
+		return profile;}
+	
 	/****
 	 * Get the coordinate <code>c</code> as a tile number
 	 * @param c The coordinate to find the tile of
@@ -204,27 +127,48 @@ public class MovementController{
 	 * @param y Y coordinate of tile to move to
 	 */
 	public void travelToTile(int x, int y){
+		travel(x, y, Float.NaN);}
+	
+	/****
+	 * Travel to the center of a tile, planning for the heading to face on arrival
+	 * if there is one
+	 * 
+	 * @param k The heading to face on arrival, or NaN if any
+	 */
+	private void travel(int x, int y, float k){
 		nav.stop();
 		nav.clearPath();
 		Path p;
 		
 		Pose me = nav.getPoseProvider().getPose();
-		Pose tile = new Pose(coordAsTile(me.getX()), coordAsTile(me.getY()), me.getHeading());
-		Waypoint dest = new Waypoint(x, y);
-		try {
-			p = pathFinder.findRoute(tile, dest);
-		} catch (DestinationUnreachableException e) {
-			throw new RuntimeException("Destination Unreachable");
+		p = findRoute(coordAsTile(me.getX()), coordAsTile(me.getY()), me.getHeading(), x, y, k);
+		if (execution != Execution.STEP){
+			drive(merge(p));
+			return;
 		}
 
 		for (Waypoint way : p){
 			way.x = way.x * Main.TILE_WIDTH - Main.TILE_WIDTH/2f;
 			way.y = way.y * Main.TILE_WIDTH - Main.TILE_WIDTH/2f;
+			Pose from = nav.getPoseProvider().getPose();
+			long start = System.currentTimeMillis();
 			nav.goTo(way);
 			nav.waitForStop();
+			recordMove(from, way, System.currentTimeMillis() - start);
+			if (nav.getPoseProvider() instanceof PoseEstimator){
+				Display.printLocation(nav.getPoseProvider().getPose());
+				continue;		// Already corrected by the lines crossed
+			}
+			
 			Pose pose = nav.getPoseProvider().getPose();
-			double ang = OdometryCorrection.lastHeadingCorrection();
-			double dist = OdometryCorrection.lastDistanceCorrection();
+			double ang = 0, dist = 0;
+			if (OdometryCorrection.getCrossings().readLatest(crossings, crossing)){
+				crossings = crossing.getNumber() + 1;
+				if (!crossing.isCorrected()){
+					ang = crossing.getHeadingError();
+					dist = OdometryCorrection.distanceCorrection(crossing, pose);
+				}
+			}
 			
 			
 			if (dist > 0){
@@ -245,6 +189,152 @@ public class MovementController{
 		nav.waitForStop();
 	}
 	
+	/****
+	 * Drive a path of legs without stopping for corrections, correcting the pose at
+	 * every line crossed instead. Legs are either driven one after the other, or
+	 * followed as one trajectory if driving continuously. If the pose is off the end
+	 * of the path once the last leg is driven, move to it again.
+	 * 
+	 * @param p The path to drive, in tiles
+	 */
+	private void drive(Path p){
+		Waypoint end = null;
+		for (Waypoint way : p){
+			way.x = way.x * Main.TILE_WIDTH - Main.TILE_WIDTH/2f;
+			way.y = way.y * Main.TILE_WIDTH - Main.TILE_WIDTH/2f;
+			end = way;
+		}
+		
+		OdometryCorrection.setPoseCorrection(!(nav.getPoseProvider() instanceof PoseEstimator));
+		try {
+			if (execution == Execution.CONTINUOUS){
+				if (follower == null)
+					follower = new PathFollower(Main.getPilot(), nav.getPoseProvider(), Main.WHEEL_BASE);
+				follower.follow(p);
+				Display.printLocation(nav.getPoseProvider().getPose());
+			} else for (Waypoint way : p){
+				Pose from = nav.getPoseProvider().getPose();
+				long start = System.currentTimeMillis();
+				nav.goTo(way);
+				nav.waitForStop();
+				recordMove(from, way, System.currentTimeMillis() - start);
+				Display.printLocation(nav.getPoseProvider().getPose());
+			}
+			
+			if (end != null && nav.getPoseProvider().getPose().distanceTo(end) > MAX_ERROR){
+				nav.goTo(end);
+				nav.waitForStop();
+			}
+		} finally {
+			OdometryCorrection.setPoseCorrection(false);
+		}
+		nav.singleStep(false);
+	}
+	
+	/****
+	 * Merge waypoints which are in a straight line with the waypoints either side,
+	 * so each straight run of tiles is a single leg
+	 * 
+	 * @param p The path in tiles
+	 * @return The path with only the first and last waypoints and the corners
+	 */
+	static Path merge(Path p){
+		Path merged = new Path();
+		for (int i = 0; i < p.size(); i++){
+			if (i > 0 && i < p.size() - 1){
+				Waypoint a = p.get(i - 1), b = p.get(i), c = p.get(i + 1);
+				if ((b.x - a.x) * (c.y - b.y) == (b.y - a.y) * (c.x - b.x))
+					continue;
+			}
+			merged.add(p.get(i));
+		}
+		return merged;
+	}
+	
+	/****
+	 * Set how paths are driven
+	 * 
+	 * @param execution The execution mode to use
+	 */
+	public void setExecution(Execution execution){
+		this.execution = execution;}
+	
+	/****
+	 * Build the table of distances between every pair of free tiles of the current map,
+	 * which is used to find routes and distances without searching for as long as no
+	 * other tiles are blocked. See <code>RouteTable</code>
+	 * 
+	 * @param threads The number of threads to build the table with
+	 */
+	public void buildRouteTable(int threads){
+		table = RouteTable.build(Main.getCurrentMap(), Main.NUM_TILES, threads);}
+	
+	/****
+	 * Get the number of tiles travelled between two tiles, from the route table if it has
+	 * been built and is valid for the current map, or else by finding the route
+	 * 
+	 * @param x0 X coordinate of the starting tile
+	 * @param y0 Y coordinate of the starting tile
+	 * @param x X coordinate of the ending tile
+	 * @param y Y coordinate of the ending tile
+	 * @return The distance in tiles, or -1 if there is no route
+	 */
+	public int getDistance(int x0, int y0, int x, int y){
+		RouteTable table = this.table;
+		if (table != null && table.isValidFor(Main.getCurrentMap())){
+			int d = table.getDistance(x0, y0, x, y);
+			if (d >= 0) return d;
+		}
+		try {
+			return findRoute(x0, y0, Float.NaN, x, y, Float.NaN).size() - 1;
+		} catch (RuntimeException e){
+			return -1;
+		}
+	}
+	
+	/****
+	 * Find a route between two tiles, from the route table if possible, otherwise using
+	 * the route from the last trip between them if the map has not changed since.
+	 * Headings are only used by the heading planner, and are part of the key of its routes.
+	 * 
+	 * @param h0 The current heading, or NaN if unknown
+	 * @param k The heading to face on arrival, or NaN if any
+	 * @return The path to follow in tiles, including the starting and ending tiles
+	 */
+	private Path findRoute(int x0, int y0, float h0, int x, int y, float k){
+		boolean headings = planner == Planner.HEADING;
+		RouteTable table = this.table;
+		MapSnapshot map = Main.getMap();
+		Path p = null;
+		if (!headings && table != null && table.isValidFor(map.toBitSet()))
+			p = table.getRoute(x0, y0, x, y);
+		if (p != null)
+			return p;
+		
+		if (Float.isNaN(h0)) h0 = 0;
+		int from = x0 * Main.NUM_TILES + y0, to = x * Main.NUM_TILES + y;
+		if (headings){
+			from = 4 * from + HeadingPlanner.toHeading(h0);
+			to = 5 * to + (Float.isNaN(k) ? 4 : HeadingPlanner.toHeading(k));
+		}
+		int version = plannedVersion;
+		p = routes.get(from, to, map.getVersion());
+		if (p != null)
+			return p;
+		
+		try {
+			Waypoint dest = Float.isNaN(k) ? new Waypoint(x, y) : new Waypoint(x, y, k);
+			p = pathFinder.findRoute(new Pose(x0, y0, h0), dest);
+		} catch (DestinationUnreachableException e) {
+			throw new RuntimeException("Destination Unreachable");
+		}
+		
+		// Only keep routes found once the planner has caught up with the map
+		if (version == Main.getMapVersion())
+			routes.put(from, to, version, p);
+		return p;
+	}
+	
 	/****
 	 * Travel to the center of a tile and face a certain direction
 	 * 
@@ -253,15 +343,84 @@ public class MovementController{
 	 * @param k Heading to turn to upon completion
 	 */
 	public void travelToTile(int x, int y, float k) {
-		travelToTile(x, y);
+		travel(x, y, k);
+		float angle = k - nav.getPoseProvider().getPose().getHeading();
+		long start = System.currentTimeMillis();
 		nav.rotateTo(k);
-		nav.waitForStop();}
+		nav.waitForStop();
+		profile.recordRotation(((angle % 360) + 540) % 360 - 180, System.currentTimeMillis() - start);}
+	
+	/****
+	 * Record the time taken to go to a waypoint in the motion profile. Going to a waypoint
+	 * rotates towards it and then travels, so the expected time of the travel is taken off
+	 * the time of a move which rotated.
+	 * 
+	 * @param from The pose before the move
+	 * @param way The waypoint gone to
+	 * @param ms The time taken in ms
+	 */
+	private void recordMove(Pose from, Waypoint way, long ms){
+		float distance = from.distanceTo(way);
+		if (distance < Main.TILE_WIDTH / 2) return;		// Only centering on the current tile
+		
+		float angle = ((from.angleTo(way) - from.getHeading()) % 360 + 540) % 360 - 180;
+		if (Math.abs(angle) < 45)
+			profile.recordTravel(distance, ms);
+		else
+			profile.recordRotation(angle, ms - (long)profile.travelTime(distance));
+	}
 
 	/****
-	 * Regenerate the set of nodes. Necessary when changes to the map have been made
+	 * Set the algorithm used to find paths. Routes kept from earlier trips are dropped,
+	 * as each planner keys its routes differently.
+	 * 
+	 * @param planner The planner to use
+	 */
+	public void setPlanner(Planner planner){
+		MapSnapshot map = Main.getMap();
+		this.planner = planner;
+		routes.clear();
+		switch (planner){
+		case HEADING:
+			if (heading == null)
+				heading = new HeadingPlanner(profile);
+			pathFinder = heading;
+			break;
+		case INCREMENTAL:
+			if (incremental == null)
+				incremental = new IncrementalPlanner(map.toBitSet(), Main.NUM_TILES);
+			else
+				incremental.update(map.toBitSet());
+			pathFinder = incremental;
+			break;
+		case HIERARCHICAL:
+			if (hierarchical == null)
+				hierarchical = new HierarchicalPlanner(map.toBitSet(), Main.NUM_TILES);
+			else
+				hierarchical.update(map.toBitSet());
+			pathFinder = hierarchical;
+			break;
+		default:
+			grid.regenerate();
+			pathFinder = new NodePathFinder(new AstarSearchAlgorithm(), grid);
+			break;
+		}
+		plannedVersion = map.getVersion();
+	}
+	
+	/****
+	 * Regenerate the set of nodes, or update the tiles which changed when using
+	 * the incremental or hierarchical planner. The heading planner always uses the current map. Necessary when changes to the map have been made,
+	 * and until then routes found are not kept for later trips
 	 */
 	public void regenerate() {
-		grid.regenerate();
-		pathFinder = new NodePathFinder(new AstarSearchAlgorithm(), grid);
+		MapSnapshot map = Main.getMap();
+		if (planner == Planner.INCREMENTAL)
+			incremental.update(map.toBitSet());
+		else if (planner == Planner.HIERARCHICAL)
+			hierarchical.update(map.toBitSet());
+		else if (planner == Planner.ASTAR)
+			grid.regenerate();
+		plannedVersion = map.getVersion();
 	}
 }
@@ -2,9 +2,11 @@ package navigation;
 
 import lejos.nxt.ColorSensor;
 import lejos.robotics.Color;
-import lejos.robotics.localization.OdometryPoseProvider;
+import lejos.robotics.localization.PoseProvider;
 import lejos.robotics.navigation.Pose;
 import main.Main;
+import main.PeriodicTask;
+import main.TraceRecorder;
 
 /**
  * The <code>OdometryCorrection</code> class corrects the odometry whenever one of the two 
@@ -13,7 +15,11 @@ import main.Main;
  * It has a private method which determines which grid line is closest to a given coordinate.
  * 
  * An instance of this class holds an instance of the <code>OdometryPoseProvider</code> class which it updates when
- * a grid line is crossed.
+ * a grid line is crossed. Every line crossed is published to a <code>LineCrossings</code> buffer, from which other
+ * threads read the corrections to make after stopping.
+ * 
+ * The color sensors are sampled at a fixed rate, above normal priority so samples are taken on time,
+ * leaving the rest of the processor to motor regulation rather than polling as fast as possible.
  * 
  * @see OdometeryPoseProvider
  * 
@@ -21,28 +27,34 @@ import main.Main;
  * @since v1
  */
 
-public class OdometryCorrection extends Thread {
-	private static double lastHeadingCorrection;		// Value of the last heading correction
-	
+public class OdometryCorrection extends PeriodicTask {
 	private static boolean enabled;						// Whether odometry correction is enabled
-	private final static double X_OFFSET = 3, 			// X distance of ultrasonic sensors from center
-								Y_OFFSET = 3.25,		// Y distance of ultrasonic sensors from center
-								THRESHOLD = 11;			// Threshold for line detection
+	private static volatile boolean correctPose;		// Whether to correct the pose itself when a line is crossed
+	private final static int PERIOD = 10,					// ms between samples of the color sensors
+							 PRIORITY = Thread.NORM_PRIORITY + 2;
+	final static double X_OFFSET = 3, 					// X distance of color sensors from center
+						Y_OFFSET = 3.25;				// Y distance of color sensors from center
+	private final static double MAX_SKEW = 15;			// Most degrees off the grid to correct the pose at
 
-	private static OdometryPoseProvider odometer;		// odometer to correct
-	private static Pose last;							// The last position we saw a line at (by both CS)
+	private static PoseProvider odometer;				// odometer to correct
+	private static final LineCrossings crossings = new LineCrossings(8);	// Lines crossed by both CS
+	private static volatile TraceRecorder recorder;		// Recorder of the light values, if any
 	
 	private ColorSensor leftCS, rightCS;				// Left and right color sensors
+	private final LineDetector left = new LineDetector(), right = new LineDetector();
+	private final float[] leftEntry = new float[3], rightEntry = new float[3];	// Pose when each sensor entered its line
+	private boolean sawLeft, sawRight;					// Which sensors have seen the line being crossed
 	
 
 	/**
 	 * The constructor of the <code>OdometryCorrection</code>.
 	 * 
-	 * @param odometer 	The <code>OdometeryPoseProvider</code> that is used for the robot
+	 * @param odometer 	The <code>PoseProvider</code> that is used for the robot, usually an <code>OdometryPoseProvider</code>
 	 * @param leftCS 	The left <code>ColorSensor</code> that is used to check grid lines
 	 * @param rightCS 	The right <code>ColorSensor</code>that is used to check grid lines
 	 */
-	public OdometryCorrection(OdometryPoseProvider odometer, ColorSensor leftCS, ColorSensor rightCS) {		
+	public OdometryCorrection(PoseProvider odometer, ColorSensor leftCS, ColorSensor rightCS) {		
+		super(PERIOD, PRIORITY);
 		OdometryCorrection.odometer = odometer;
 		this.leftCS = leftCS;
 		this.rightCS = rightCS;
@@ -50,70 +62,204 @@ public class OdometryCorrection extends Thread {
 	}
 
 
+	/****
+	 * Turn on the floodlights and take the first sample
+	 * 
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void begin() {
+		leftCS.setFloodlight(Color.RED);
+		rightCS.setFloodlight(Color.RED);
+		left.reset();
+		right.reset();
+		long now = System.currentTimeMillis();
+		left.sample(leftCS.getNormalizedLightValue(), now);
+		right.sample(rightCS.getNormalizedLightValue(), now);
+	}
+
+	/****
+	 * Get the detector of lines under the left or right color sensor, such as to tune it
+	 *
+	 * @param isLeft True for the left sensor
+	 * @return The <code>LineDetector</code>
+	 */
+	public LineDetector getDetector(boolean isLeft){
+		return isLeft ? left : right;}
+
 	/** If the <code>boolean isTurning</code> from the <code>Navigation</code> is false,
 	 * check if either of the two <code>ColorSensors</code> crosses a grid line. If one does, 
 	 * determine which grid line is closest and update the <code>Odometer</code> accordingly.
 	 * 
 	 * {@inheritDoc}
 	 */
-	public void run() {
-		leftCS.setFloodlight(Color.RED);
-		rightCS.setFloodlight(Color.RED);
-		
-		int lastColorLeft = -1, lastColorRight = -1, newColorLeft = -1, newColorRight = -1;
-		boolean leftFirst = false;
-		boolean sawLeft = false, sawRight = false;
-		Pose lastPose = null;
-		
-		//	This while loop is used to check if either of the ColorSensors crosses a grid line.
-		// 	If one does, it updates the odometer. It only does this when the robot is not turning.
-		lastColorLeft = leftCS.getNormalizedLightValue();
-		lastColorRight = rightCS.getNormalizedLightValue();
-		Pose p;
+	@Override
+	protected void step() {
+		int newColorLeft = leftCS.getNormalizedLightValue(); 
+		int newColorRight = rightCS.getNormalizedLightValue();
+		TraceRecorder recorder = OdometryCorrection.recorder;
+		if (recorder != null) recorder.recordLight(newColorLeft, newColorRight);
+		sample(newColorLeft, newColorRight, System.currentTimeMillis());
+	}
+
+	/****
+	 * Detect lines from a sample of both color sensors, as every step does, such as to replay
+	 * the light values recorded in a trace instead of sampling the sensors
+	 * 
+	 * @param lightLeft The normalized light value of the left sensor
+	 * @param lightRight The normalized light value of the right sensor
+	 * @param now The time of the sample in ms
+	 */
+	public void sample(int lightLeft, int lightRight, long now) {
+		boolean wasLeft = left.isOnLine(), wasRight = right.isOnLine();
+		boolean leftDone = left.sample(lightLeft, now);
+		boolean rightDone = right.sample(lightRight, now);
 		
-		while (true) {
-			newColorLeft = leftCS.getNormalizedLightValue(); 
-			newColorRight = rightCS.getNormalizedLightValue();
+		//	The odometry correction only runs if enabled
+		if(enabled){
+			Pose p = null;
 			
-			//	The odometry correction only runs if enabled
-			if(enabled){
-				p = odometer.getPose();
-				
-				// Check if we detected a line on the left side
-				if (lastColorLeft - newColorLeft > THRESHOLD) {
-					if (!sawRight ){
-						lastPose = new Pose(p.getX(), p.getY(), p.getHeading());
-						leftFirst = true;
-					}
-					sawLeft = true;
-				}
-				//	Check if we detected a line on the right side
-				if (lastColorRight - newColorRight > THRESHOLD) {
-					if (!sawLeft){
-						lastPose = new Pose(p.getX(), p.getY(), p.getHeading());
-						leftFirst = false;
-					}
-					sawRight = true;
-					
-				}
-				
-				// Once we've detected a line on both sides, calculate heading correction and save position
-				if (sawRight && sawLeft){
-					sawRight = false;
-					sawLeft = false;
-					OdometryCorrection.last = new Pose(p.getX(), p.getY(), p.getHeading());
-					lastHeadingCorrection = (leftFirst ? 1 : -1 ) * Math.abs(Math.toDegrees(Math.atan(lastPose.distanceTo(p.getLocation()) / (X_OFFSET * 2))));
-				}
-
-			}
-			
-			// Set previous light values to current
-			lastColorLeft = newColorLeft;
-			lastColorRight = newColorRight;
+			// Record the pose as each sensor enters a line, to find where its centre was once it is left
+			if (left.isOnLine() && !wasLeft) record(p = pose(p), leftEntry);
+			if (right.isOnLine() && !wasRight) record(p = pose(p), rightEntry);
 			
+			if (leftDone) crossed(true, p = pose(p), leftEntry, left);
+			if (rightDone) crossed(false, p = pose(p), rightEntry, right);
+		} else
+			sawLeft = sawRight = false;
+	}
+
+	/** Get the pose of the odometer, unless it was already got this step */
+	private static Pose pose(Pose p){
+		return p != null ? p : odometer.getPose();}
+
+	/** Record a pose into an array of its X, Y and heading */
+	private static void record(Pose p, float[] into){
+		into[0] = p.getX();
+		into[1] = p.getY();
+		into[2] = p.getHeading();
+	}
+
+	/****
+	 * Handle a color sensor leaving a line, publishing the crossing once both sensors have seen it
+	 * 
+	 * @param isLeft True if it was the left sensor
+	 * @param p The current pose
+	 * @param entry The pose when the sensor entered the line
+	 * @param detector The detector of the sensor
+	 */
+	private void crossed(boolean isLeft, Pose p, float[] entry, LineDetector detector){
+		// Pose at the centre of the line, between entering and leaving it
+		float f = detector.getCentreFraction();
+		float x = entry[0] + f * (p.getX() - entry[0]);
+		float y = entry[1] + f * (p.getY() - entry[1]);
+		float dh = ((p.getHeading() - entry[2]) % 360 + 540) % 360 - 180;
+		float h = entry[2] + f * dh;
+		long time = detector.getCentre();
+		
+		LineCrossing crossing = crossings.next();
+		if (isLeft ? sawRight : sawLeft){
+			// A line seen by the other sensor too far back is from a line this sensor missed
+			float dx = x - crossing.firstX, dy = y - crossing.firstY;
+			if (dx*dx + dy*dy > 4 * X_OFFSET * X_OFFSET) sawLeft = sawRight = false;
+		}
+		
+		if (!(isLeft ? sawRight : sawLeft)){
+			first(crossing, x, y, h, time);
+			crossing.leftFirst = isLeft;
+		}
+		if (isLeft) sawLeft = true;
+		else sawRight = true;
+		
+		// Once we've detected a line on both sides, calculate heading correction and publish the crossing
+		if (sawRight && sawLeft){
+			sawRight = false;
+			sawLeft = false;
+			crossing.time = time;
+			crossing.x = x;
+			crossing.y = y;
+			crossing.heading = h;
+			float dx = crossing.x - crossing.firstX, dy = crossing.y - crossing.firstY;
+			crossing.headingError = (crossing.leftFirst ? 1 : -1 ) * (float)Math.abs(Math.toDegrees(Math.atan(Math.sqrt(dx*dx + dy*dy) / (X_OFFSET * 2))));
+			crossing.lineError = lineError(crossing);
+			crossing.corrected = correctPose && correctPose(crossing);
+			crossings.publish();
 		}
 	}
 
+	/****
+	 * Record the pose when the first color sensor saw a line
+	 */
+	private static void first(LineCrossing crossing, float x, float y, float heading, long time){
+		crossing.firstTime = time;
+		crossing.firstX = x;
+		crossing.firstY = y;
+		crossing.firstHeading = heading;
+	}
+	
+	/****
+	 * Find how far off the pose was along the direction of travel when a line was crossed,
+	 * from the position of the closest line, which the color sensors are <code>Y_OFFSET</code>
+	 * in front of the center of the robot when crossing.
+	 * 
+	 * @param crossing The line crossed, with its heading error
+	 * @return The distance to correct the pose by, or NaN if the line was crossed at an angle, such as on an arc
+	 */
+	private static float lineError(LineCrossing crossing){
+		double heading = crossing.heading - crossing.headingError;
+		int axis = (int)Math.round(heading / 90) & 3;		// 0: +X, 1: +Y, 2: -X, 3: -Y
+		if (Math.abs(((heading - 90 * axis) % 360 + 540) % 360 - 180) > MAX_SKEW)
+			return Float.NaN;
+		
+		double sign = axis < 2 ? 1 : -1;
+		double c = (axis % 2 == 0 ? crossing.x : crossing.y) + sign * Y_OFFSET;
+		double line = Math.round(c / Main.TILE_WIDTH) * Main.TILE_WIDTH;
+		return (float)(sign * (line - c));
+	}
+	
+	/****
+	 * Correct the pose from the line just crossed by both color sensors, without stopping.
+	 * The heading is corrected by the heading error, and the coordinate along the
+	 * direction of travel by the line error.
+	 * 
+	 * @param crossing The line crossed
+	 * @return True iff the pose was corrected
+	 */
+	private static boolean correctPose(LineCrossing crossing){
+		// A line crossed at an angle, such as on an arc, does not give a correction
+		if (Float.isNaN(crossing.lineError))
+			return false;
+		int axis = Math.round((crossing.heading - crossing.headingError) / 90) & 3;
+		double along = axis < 2 ? crossing.lineError : -crossing.lineError;
+		
+		// Only correct by less than a third of a tile, in case a line was missed
+		Pose now = odometer.getPose();
+		if (Math.abs(along) < Main.TILE_WIDTH / 3f){
+			if (axis % 2 == 0) now.setLocation(now.getX() + (float)along, now.getY());
+			else now.setLocation(now.getX(), now.getY() + (float)along);
+		}
+		now.setHeading(now.getHeading() - crossing.headingError);
+		odometer.setPose(now);
+		return true;
+	}
+	
+	/****
+	 * Set whether the pose is corrected while moving whenever a line is crossed, rather than
+	 * only keeping the last corrections for a manoeuvre after stopping.
+	 * 
+	 * @param correct True to correct the pose while moving
+	 */
+	public static void setPoseCorrection(boolean correct){
+		correctPose = correct;}
+	
+	/****
+	 * Set the recorder to record the light values of both color sensors to with every sample
+	 * 
+	 * @param recorder The recorder, or null to stop recording
+	 */
+	public static void setRecorder(TraceRecorder recorder){
+		OdometryCorrection.recorder = recorder;}
+	
 	/****
 	 * Enable OdometryCorrection globally
 	 */
@@ -127,28 +273,26 @@ public class OdometryCorrection extends Thread {
 	public static void disable(){enabled = false;}
 	
 	/****
-	 * Get the amount the heading was off the last time a line was crossed.
-	 * Following a call to this method, the last heading is set to 0 to 
-	 * prevent subsequent corrections if a line is missed.
+	 * Get the lines crossed by both color sensors, which readers should copy the
+	 * newest crossing out of after moving, to correct the pose. See <code>LineCrossings</code>
 	 * 
-	 * @return The amount the heading needs to be corrected in degrees
+	 * @return The buffer of lines crossed
 	 */
-	public static double lastHeadingCorrection(){
-		double temp = lastHeadingCorrection;
-		lastHeadingCorrection = 0;
-		return temp;}
+	public static LineCrossings getCrossings(){
+		return crossings;}
 	
 	/****
-	 * Get the amount the distance was off the last time a line was crossed.
-	 * Following a call to this method, the last distance correction
-	 * is set to 0 to prevent subsequent corrections if a line is missed.
+	 * Get the amount the distance was off when a line was crossed, after moving to the center
+	 * of the next tile. Does not correct if the robot travelled more than a third of a tile
+	 * further than expected since, in case a line was missed.
 	 * 
+	 * @param crossing The line crossed
+	 * @param p The pose after stopping
 	 * @return The amount the distance needs to be corrected
 	 */
-	public static double lastDistanceCorrection(){
-		if (last == null) return 0;
-		double off = last.distanceTo(odometer.getPose().getLocation()) - Main.TILE_WIDTH/2f - Y_OFFSET;
-		last = null;
+	public static double distanceCorrection(LineCrossing crossing, Pose p){
+		float dx = p.getX() - crossing.getX(), dy = p.getY() - crossing.getY();
+		double off = Math.sqrt(dx*dx + dy*dy) - Main.TILE_WIDTH/2f - Y_OFFSET;
 		return (off > Main.TILE_WIDTH/3f) ? 0 : -off;
 	}
 
@@ -0,0 +1,201 @@
+package navigation;
+
+import lejos.robotics.localization.PoseProvider;
+import lejos.robotics.navigation.ArcMoveController;
+import lejos.robotics.navigation.Pose;
+import lejos.robotics.navigation.RotateMoveController;
+import lejos.robotics.navigation.Waypoint;
+import lejos.robotics.pathfinding.Path;
+
+/*****
+ * Drives a path as one continuous trajectory, without stopping at waypoints, using pure pursuit.
+ * <br><br>
+ * Every period, the robot steers along the arc through a point a fixed distance ahead of it
+ * on the path, so corners are rounded into arcs instead of stopping to rotate in place.
+ * The speed is only lowered where needed: on arcs, so the outer wheel does not exceed the
+ * set travel speed, and near the end of the path, so the robot can stop there. The robot
+ * only rotates in place first if it is not already facing roughly along the path.
+ * <br><br>
+ * The pose keeps being updated while moving, so corrections made to it are steered out
+ * during the rest of the path.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class PathFollower {
+	private static final int PERIOD = 20;				// ms between steering updates
+	private static final float MIN_SPEED = 4,			// cm/s, slowest speed before stopping
+							   ARRIVED = 1,				// cm from the end of the path to stop at
+							   STRAIGHT = 0.001f;		// Curvature below which to drive straight
+
+	private final ArcMoveController pilot;
+	private final PoseProvider odo;
+	private final float trackWidth;			// Distance between the wheels in cm
+	private float lookahead = 15;			// Distance ahead on the path to steer towards, in cm
+	private float deceleration = 40;		// Deceleration when approaching the end in cm/s/s
+
+	private float[] xs, ys;					// Points of the path being followed, in cm
+	private int segment;					// Index of the segment the robot is on
+	private float maxSpeed;					// Fastest speed to drive at, in cm/s
+	private float speed;					// Speed to drive at, in cm/s
+	private float curvature;				// Curvature to drive at, positive to the left, in 1/cm
+
+	/****
+	 * Create a new path follower
+	 *
+	 * @param pilot The pilot used to move
+	 * @param odo The pose provider updated as the robot moves
+	 * @param trackWidth The distance between the wheels in cm
+	 */
+	public PathFollower(ArcMoveController pilot, PoseProvider odo, double trackWidth){
+		this.pilot = pilot;
+		this.odo = odo;
+		this.trackWidth = (float)trackWidth;
+	}
+
+	/****
+	 * Set the distance ahead on the path to steer towards. Shorter follows the path more
+	 * closely, longer rounds corners into wider and faster arcs.
+	 *
+	 * @param lookahead The distance in cm
+	 */
+	public void setLookahead(float lookahead){
+		this.lookahead = lookahead;}
+
+	/****
+	 * Set how quickly the robot slows down when approaching the end of the path
+	 *
+	 * @param deceleration The deceleration in cm/s/s
+	 */
+	public void setDeceleration(float deceleration){
+		this.deceleration = deceleration;}
+
+	/****
+	 * Drive along a path at up to the set travel speed, stopping at its end
+	 *
+	 * @param path The path, in cm
+	 */
+	public void follow(Path path){
+		if (path.isEmpty()) return;
+		double maxSpeed = pilot.getTravelSpeed();
+		start(path, (float)maxSpeed);
+
+		// Face along the path first, rather than turning a tight circle towards it
+		Pose p = odo.getPose();
+		Waypoint next = path.get(Math.min(1, path.size() - 1));
+		if (p.distanceTo(next) > ARRIVED){
+			float angle = normalize(p.angleTo(next) - p.getHeading());
+			if (Math.abs(angle) > 45 && pilot instanceof RotateMoveController)
+				((RotateMoveController)pilot).rotate(angle);
+		}
+
+		try {
+			while (update(odo.getPose())){
+				pilot.setTravelSpeed(speed);
+				if (Math.abs(curvature) < STRAIGHT) pilot.forward();
+				else pilot.arcForward(1 / curvature);
+				try {
+					Thread.sleep(PERIOD);
+				} catch (InterruptedException e){
+					break;
+				}
+			}
+		} finally {
+			pilot.stop();
+			pilot.setTravelSpeed(maxSpeed);
+		}
+	}
+
+	/****
+	 * Start following a path
+	 *
+	 * @param path The path, in cm
+	 * @param maxSpeed The fastest speed to drive at, in cm/s
+	 */
+	void start(Path path, float maxSpeed){
+		xs = new float[path.size()];
+		ys = new float[path.size()];
+		for (int i = 0; i < path.size(); i++){
+			xs[i] = path.get(i).x;
+			ys[i] = path.get(i).y;
+		}
+		segment = 0;
+		speed = maxSpeed;
+		this.maxSpeed = maxSpeed;
+	}
+
+	/** Get the speed to drive at, as of the last update */
+	float getSpeed(){
+		return speed;}
+
+	/** Get the curvature to drive at, positive to the left, as of the last update */
+	float getCurvature(){
+		return curvature;}
+
+	/****
+	 * Compute the speed and curvature to drive at from the current pose
+	 *
+	 * @param p The current pose
+	 * @return False iff the end of the path has been reached
+	 */
+	boolean update(Pose p){
+		int last = xs.length - 1;
+		float px = p.getX(), py = p.getY();
+
+		// Move on to the next segment once the robot is closer to it than the current one
+		while (segment < last - 1 && offset(segment + 1, px, py) < offset(segment, px, py)) segment++;
+
+		float remaining = distance(px, py, xs[last], ys[last]);
+		if (last == 0 || (segment == last - 1 && progress(segment, px, py) >= 1) || remaining < ARRIVED)
+			return false;
+
+		// Point the lookahead distance along the path from the robot's projection onto it
+		float t = Math.max(0, progress(segment, px, py)), ahead = lookahead;
+		int s = segment;
+		float tx = 0, ty = 0;
+		while (true){
+			float len = distance(xs[s], ys[s], xs[s + 1], ys[s + 1]);
+			float left = (1 - t) * len;
+			if (ahead <= left || s == last - 1){
+				float u = len == 0 ? 1 : Math.min(1, t + ahead / len);
+				tx = xs[s] + u * (xs[s + 1] - xs[s]);
+				ty = ys[s] + u * (ys[s + 1] - ys[s]);
+				break;
+			}
+			ahead -= left;
+			t = 0;
+			s++;
+		}
+
+		// Arc through the lookahead point, tangent to the current heading
+		float dx = tx - px, dy = ty - py, d2 = dx * dx + dy * dy;
+		double h = Math.toRadians(p.getHeading());
+		float lateral = (float)(-Math.sin(h) * dx + Math.cos(h) * dy);
+		curvature = d2 < 1e-6f ? 0 : 2 * lateral / d2;
+
+		// Limit the outer wheel to the travel speed, and slow down to stop at the end
+		speed = maxSpeed / (1 + trackWidth * Math.abs(curvature) / 2);
+		speed = Math.min(speed, (float)Math.sqrt(2 * deceleration * remaining));
+		speed = Math.max(speed, MIN_SPEED);
+		return true;
+	}
+
+	/** Fraction of a segment the projection of a point onto it is along, unbounded */
+	private float progress(int s, float px, float py){
+		float sx = xs[s + 1] - xs[s], sy = ys[s + 1] - ys[s], len2 = sx * sx + sy * sy;
+		return len2 == 0 ? 1 : ((px - xs[s]) * sx + (py - ys[s]) * sy) / len2;
+	}
+
+	/** Distance from a point to the closest point of a segment */
+	private float offset(int s, float px, float py){
+		float t = Math.max(0, Math.min(1, progress(s, px, py)));
+		return distance(px, py, xs[s] + t * (xs[s + 1] - xs[s]), ys[s] + t * (ys[s + 1] - ys[s]));
+	}
+
+	private static float distance(float x0, float y0, float x1, float y1){
+		return (float)Math.sqrt((x1 - x0) * (x1 - x0) + (y1 - y0) * (y1 - y0));}
+
+	/** Normalize an angle to between -180 and 180 degrees */
+	private static float normalize(float angle){
+		return ((angle % 360) + 540) % 360 - 180;}
+}
@@ -0,0 +1,247 @@
+package navigation;
+
+import lejos.robotics.localization.PoseProvider;
+import lejos.robotics.navigation.Pose;
+import main.Main;
+
+/*****
+ * Pose provider which corrects the odometry with the grid lines crossed, using an extended
+ * Kalman filter, rather than by manoeuvring the robot to where the odometry thinks it is.
+ * <br><br>
+ * The estimate is moved by every change of the odometry's pose, with its uncertainty growing
+ * with the distance travelled and the angle turned. Each line crossed by both color sensors
+ * gives two observations, one per sensor, that the sensor was on a grid line, and grid lines
+ * are every <code>TILE_WIDTH</code> along both axes. The line closest to where the estimate puts
+ * the sensor is assumed to be the one crossed, and observations too unlikely given the
+ * uncertainty, such as from a missed line, are ignored. Crossings may be read after the robot
+ * has moved on, so the pose of each sensor when it saw the line is found from the odometry's
+ * change since.
+ * <br><br>
+ * The odometry must be the pose provider <code>OdometryCorrection</code> records the crossings
+ * from, and is not corrected itself, so <code>OdometryCorrection.setPoseCorrection()</code> should
+ * not be used with an estimator, and the pose should only be set through the estimator.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class PoseEstimator implements PoseProvider {
+	private static final double DISTANCE_NOISE = 0.02,	// Standard deviation of the distance travelled, per cm travelled
+								TURN_NOISE = 0.02,		// Standard deviation of the angle turned, per radian turned
+								DRIFT = 0.0005,			// Standard deviation of the heading in radians, per cm travelled
+								LINE_SD = 1,			// Standard deviation of where a sensor sees a line, in cm
+								GATE = 3,				// Most standard deviations off to use an observation at
+								POSITION_SD = 2,		// Standard deviation of a pose which is set, in cm
+								HEADING_SD = 2,			// Standard deviation of the heading of a pose which is set, in degrees
+								MAX_SKEW = 30,			// Most degrees off the grid to use a crossing at
+								MAX_TURN = 5;			// Most degrees turned between both sensors seeing a line to use it at
+
+	private final PoseProvider odo;				// Odometry, which is never corrected
+	private final LineCrossings crossings;
+	private final LineCrossing crossing = new LineCrossing();
+	private int used;							// Number of crossings already used
+
+	private double x, y, h;						// Estimate of the pose, with the heading in radians
+	private final double[] p = new double[9];	// Covariance of x, y and h, row by row
+	private final double[] f = new double[9], a = new double[9], b = new double[9];	// Working space
+	private float rawX, rawY, rawH;				// Pose of the odometry the estimate was last moved to
+	private int accepted, rejected;				// Number of observations used and ignored
+
+	/****
+	 * Create a new estimator starting at the odometry's current pose
+	 *
+	 * @param odo The odometry to move the estimate with
+	 * @param crossings The lines crossed, see <code>OdometryCorrection.getCrossings()</code>
+	 */
+	public PoseEstimator(PoseProvider odo, LineCrossings crossings){
+		this.odo = odo;
+		this.crossings = crossings;
+		setPose(odo.getPose());
+	}
+
+	/****
+	 * Get the estimate of the pose, after using the odometry and lines crossed since it was last found
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized Pose getPose(){
+		update();
+		return new Pose((float)x, (float)y, normalize((float)Math.toDegrees(h)));
+	}
+
+	/****
+	 * Set the estimate of the pose, with a small uncertainty. Lines crossed before are not used.
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void setPose(Pose pose){
+		Pose raw = odo.getPose();
+		rawX = raw.getX();
+		rawY = raw.getY();
+		rawH = raw.getHeading();
+		x = pose.getX();
+		y = pose.getY();
+		h = Math.toRadians(pose.getHeading());
+		for (int i = 0; i < 9; i++) p[i] = 0;
+		p[0] = p[4] = POSITION_SD * POSITION_SD;
+		p[8] = Math.toRadians(HEADING_SD) * Math.toRadians(HEADING_SD);
+		used = crossings.getCount();
+	}
+
+	/****
+	 * Get the covariance of the estimate of the pose
+	 *
+	 * @return The covariance of X, Y and the heading, row by row, in cm and degrees
+	 */
+	public synchronized double[] getCovariance(){
+		update();
+		double[] c = new double[9];
+		for (int i = 0; i < 9; i++){
+			c[i] = p[i];
+			if (i / 3 == 2) c[i] = Math.toDegrees(c[i]);
+			if (i % 3 == 2) c[i] = Math.toDegrees(c[i]);
+		}
+		return c;
+	}
+
+	/****
+	 * Get the number of observations of lines used to correct the estimate
+	 *
+	 * @return The number of observations
+	 */
+	public int getAccepted(){
+		return accepted;}
+
+	/****
+	 * Get the number of observations of lines ignored as too unlikely, such as from missed lines
+	 *
+	 * @return The number of observations
+	 */
+	public int getRejected(){
+		return rejected;}
+
+	/****
+	 * Move the estimate to the current pose of the odometry, then correct it with every new line crossed
+	 */
+	private void update(){
+		predict(odo.getPose());
+		int count = crossings.getCount();
+		for (int n = used; n < count; n++){
+			if (!crossings.read(n, crossing)) continue;		// Overwritten before it was used
+			if (Math.abs(normalize(crossing.getHeading() - crossing.getFirstHeading())) > MAX_TURN) continue;
+
+			float side = (float)OdometryCorrection.X_OFFSET;
+			observe(crossing.getFirstX(), crossing.getFirstY(), crossing.getFirstHeading(), crossing.isLeftFirst() ? side : -side);
+			observe(crossing.getX(), crossing.getY(), crossing.getHeading(), crossing.isLeftFirst() ? -side : side);
+		}
+		used = count;
+	}
+
+	/****
+	 * Move the estimate by the change in the odometry's pose, growing its uncertainty
+	 *
+	 * @param raw The current pose of the odometry
+	 */
+	private void predict(Pose raw){
+		double dh = Math.toRadians(normalize(raw.getHeading() - rawH));
+		double mid = Math.toRadians(rawH) + dh / 2;
+		double ds = (raw.getX() - rawX) * Math.cos(mid) + (raw.getY() - rawY) * Math.sin(mid);
+		rawX = raw.getX();
+		rawY = raw.getY();
+		rawH = raw.getHeading();
+		if (ds == 0 && dh == 0) return;
+
+		double c = Math.cos(h + dh / 2), s = Math.sin(h + dh / 2);
+		x += ds * c;
+		y += ds * s;
+		h += dh;
+
+		// P = F P F' + G Q G', where F is the Jacobian of the move by the pose, and G by the distance and angle
+		for (int i = 0; i < 9; i++) f[i] = i % 4 == 0 ? 1 : 0;
+		f[2] = -ds * s;
+		f[5] = ds * c;
+		multiply(f, p, a, false);
+		multiply(a, f, p, true);
+		double vd = DISTANCE_NOISE * ds * DISTANCE_NOISE * ds,
+			   vh = TURN_NOISE * dh * TURN_NOISE * dh + DRIFT * ds * DRIFT * ds;
+		a[0] = c; a[1] = -ds * s / 2;
+		a[2] = s; a[3] = ds * c / 2;
+		a[4] = 0; a[5] = 1;
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < 3; j++)
+				p[i * 3 + j] += a[i * 2] * vd * a[j * 2] + a[i * 2 + 1] * vh * a[j * 2 + 1];
+	}
+
+	/****
+	 * Correct the estimate from a color sensor seeing a grid line
+	 *
+	 * @param ex X coordinate of the odometry when the line was seen
+	 * @param ey Y coordinate of the odometry when the line was seen
+	 * @param eh Heading of the odometry when the line was seen
+	 * @param side Distance of the sensor to the left of the center of the robot, negative if to the right
+	 */
+	private void observe(float ex, float ey, float eh, float side){
+		// Pose when the line was seen, from the odometry's change since, turned into the estimate's frame
+		double phi = h - Math.toRadians(rawH), cp = Math.cos(phi), sp = Math.sin(phi);
+		double bx = cp * (ex - rawX) - sp * (ey - rawY), by = sp * (ex - rawX) + cp * (ey - rawY);
+		double he = h + Math.toRadians(normalize(eh - rawH)), ch = Math.cos(he), sh = Math.sin(he);
+		double forward = OdometryCorrection.Y_OFFSET;
+
+		// Lines across the direction of travel are the ones crossed
+		double degrees = Math.toDegrees(he);
+		int axis = (int)Math.round(degrees / 90) & 3;
+		if (Math.abs(normalize((float)(degrees - 90 * axis))) > MAX_SKEW) return;
+
+		double predicted, h0, h1, h2;
+		if (axis % 2 == 0){
+			predicted = x + bx + forward * ch - side * sh;
+			h0 = 1; h1 = 0; h2 = -by - forward * sh - side * ch;
+		} else {
+			predicted = y + by + forward * sh + side * ch;
+			h0 = 0; h1 = 1; h2 = bx + forward * ch - side * sh;
+		}
+		double innovation = Math.round(predicted / Main.TILE_WIDTH) * Main.TILE_WIDTH - predicted;
+
+		// Gain K = P H' / S, where S = H P H' + R
+		double ph0 = p[0] * h0 + p[1] * h1 + p[2] * h2,
+			   ph1 = p[3] * h0 + p[4] * h1 + p[5] * h2,
+			   ph2 = p[6] * h0 + p[7] * h1 + p[8] * h2;
+		double s = h0 * ph0 + h1 * ph1 + h2 * ph2 + LINE_SD * LINE_SD;
+		if (innovation * innovation > GATE * GATE * s){
+			rejected++;
+			return;
+		}
+		accepted++;
+
+		x += ph0 / s * innovation;
+		y += ph1 / s * innovation;
+		h += ph2 / s * innovation;
+
+		// P = P - K H P, which is P - (P H')(P H')' / S as P is symmetric
+		a[0] = ph0; a[1] = ph1; a[2] = ph2;
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < 3; j++)
+				p[i * 3 + j] -= a[i] * a[j] / s;
+	}
+
+	/****
+	 * Multiply two 3x3 matrices, stored row by row
+	 *
+	 * @param transpose True to multiply by the transpose of the second matrix
+	 */
+	private void multiply(double[] m, double[] n, double[] out, boolean transpose){
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < 3; j++){
+				double v = 0;
+				for (int k = 0; k < 3; k++)
+					v += m[i * 3 + k] * (transpose ? n[j * 3 + k] : n[k * 3 + j]);
+				b[i * 3 + j] = v;
+			}
+		System.arraycopy(b, 0, out, 0, 9);
+	}
+
+	/** Normalize an angle to between -180 and 180 degrees */
+	private static float normalize(float angle){
+		return ((angle % 360) + 540) % 360 - 180;}
+}
@@ -0,0 +1,106 @@
+package navigation;
+
+import lejos.robotics.navigation.Waypoint;
+import lejos.robotics.pathfinding.Path;
+
+/*****
+ * Bounded cache of routes between tiles, for the few trips which are made over and over,
+ * such as to the pickup area and back to the dropoff point.
+ * <br><br>
+ * Routes are keyed by their starting and ending tiles and the version of the map they
+ * were found on (see <code>Main.getMapVersion()</code>), so a route is never used after
+ * the map changes. When full, the least recently used route is replaced. Routes are copied
+ * in and out, since paths are changed while they are followed.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class RouteCache {
+	private final int[] from, to, version;	// Key of each entry
+	private final long[] used;				// When each entry was last used
+	private final Path[] routes;			// Route of each entry, null if empty
+	private long clock;
+	private int hits, misses;
+
+	/****
+	 * Create a new empty cache
+	 *
+	 * @param capacity The most routes kept
+	 */
+	public RouteCache(int capacity){
+		from = new int[capacity];
+		to = new int[capacity];
+		version = new int[capacity];
+		used = new long[capacity];
+		routes = new Path[capacity];
+	}
+
+	/****
+	 * Get a route, if it was found on the same version of the map
+	 *
+	 * @param from The starting tile, as X * size + Y
+	 * @param to The ending tile, as X * size + Y
+	 * @param version The current version of the map
+	 * @return A copy of the route, or null if it is not in the cache
+	 */
+	public synchronized Path get(int from, int to, int version){
+		int i = find(from, to, version);
+		if (i < 0){
+			misses++;
+			return null;
+		}
+		hits++;
+		used[i] = ++clock;
+		return copy(routes[i]);
+	}
+
+	/****
+	 * Add a route, replacing the least recently used route if the cache is full
+	 *
+	 * @param from The starting tile, as X * size + Y
+	 * @param to The ending tile, as X * size + Y
+	 * @param version The version of the map the route was found on
+	 * @param route The route, which is copied
+	 */
+	public synchronized void put(int from, int to, int version, Path route){
+		int i = find(from, to, version);
+		if (i < 0){
+			i = 0;
+			for (int j = 1; j < routes.length; j++)
+				if (routes[i] != null && (routes[j] == null || used[j] < used[i])) i = j;
+		}
+		this.from[i] = from;
+		this.to[i] = to;
+		this.version[i] = version;
+		this.used[i] = ++clock;
+		this.routes[i] = copy(route);
+	}
+
+	/****
+	 * Remove every route
+	 */
+	public synchronized void clear(){
+		for (int i = 0; i < routes.length; i++) routes[i] = null;}
+
+	/** Get the number of routes found in the cache */
+	public int getHits(){
+		return hits;}
+
+	/** Get the number of routes not found in the cache */
+	public int getMisses(){
+		return misses;}
+
+	private int find(int from, int to, int version){
+		for (int i = 0; i < routes.length; i++)
+			if (routes[i] != null && this.from[i] == from && this.to[i] == to && this.version[i] == version)
+				return i;
+		return -1;
+	}
+
+	private static Path copy(Path route){
+		Path p = new Path();
+		for (Waypoint w : route)
+			p.add(new Waypoint(w.x, w.y));
+		return p;
+	}
+}
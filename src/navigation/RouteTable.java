@@ -0,0 +1,191 @@
+package navigation;
+
+import java.util.BitSet;
+
+import lejos.robotics.navigation.Waypoint;
+import lejos.robotics.pathfinding.Path;
+
+/*****
+ * Table of the distance between every pair of free tiles of a map, built before the run
+ * starts, so routes and distances can be looked up without searching.
+ * <br><br>
+ * Distances are found with a breadth first search from every free tile, split between a
+ * number of threads. Since distances are symmetric, only one triangle of the table is kept,
+ * one byte per pair, and the next tile of a route is the neighbour one tile closer to the
+ * end, so a route is found in time linear in its length. A map of 12 by 12 tiles with 122
+ * free tiles takes 7381 bytes.
+ * <br><br>
+ * A table is valid for every map which has no blocked tiles that were free when it was built:
+ * routes found still avoid every blocked tile, although they may be longer than needed if
+ * tiles have been unblocked since.
+ *
+ * @author Scott Cooper
+ * @since v5
+ */
+public class RouteTable {
+	private static final int UNREACHABLE = 0xFF;
+
+	private final int size;
+	private final BitSet map;		// Map the table was built for
+	private final short[] rank;		// Index of each free tile among the free tiles, -1 if blocked
+	private final int[] tiles;		// Tile of each index, as X * size + Y
+	private final byte[] dist;		// Distance between each pair of free tiles, as an unsigned byte
+
+	private RouteTable(BitSet map, int size){
+		this.size = size;
+		this.map = (BitSet)map.clone();
+		this.rank = new short[size * size];
+
+		int n = 0;
+		for (int i = 0; i < size * size; i++)
+			rank[i] = map.get(i) ? -1 : (short)n++;
+		if (n > UNREACHABLE)
+			throw new RuntimeException("Too many free tiles for a route table");
+
+		this.tiles = new int[n];
+		for (int i = 0; i < size * size; i++)
+			if (rank[i] >= 0) tiles[rank[i]] = i;
+		this.dist = new byte[n * (n - 1) / 2];
+	}
+
+	/****
+	 * Build the table for a map
+	 *
+	 * @param map The map where the value at (X, Y) is at <code>X * size + Y</code>
+	 * @param size The number of tiles along each side of the map
+	 * @param threads The number of threads to search with
+	 * @return The table of the map
+	 */
+	public static RouteTable build(BitSet map, int size, int threads){
+		final RouteTable table = new RouteTable(map, size);
+		final int n = table.tiles.length;
+		if (threads <= 1){
+			table.search(0, 1);
+			return table;
+		}
+
+		// Searches from different tiles write to different entries, so need no locking
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++){
+			final int first = t, step = threads;
+			workers[t] = new Thread(new Runnable(){
+				public void run(){
+					table.search(first, step);}
+			});
+			workers[t].start();
+		}
+		for (Thread w : workers){
+			try {
+				w.join();
+			} catch (InterruptedException e){
+				throw new RuntimeException("Interrupted building route table");
+			}
+		}
+		return table;
+	}
+
+	/****
+	 * Check whether routes in this table can be followed on a map
+	 *
+	 * @param map The map where the value at (X, Y) is at <code>X * size + Y</code>
+	 * @return True iff every tile blocked on the map was blocked when the table was built
+	 */
+	public boolean isValidFor(BitSet map){
+		BitSet added = (BitSet)map.clone();
+		added.andNot(this.map);
+		return added.isEmpty();
+	}
+
+	/****
+	 * Get the number of tiles travelled between two tiles
+	 *
+	 * @param x0 X coordinate of the starting tile
+	 * @param y0 Y coordinate of the starting tile
+	 * @param x X coordinate of the ending tile
+	 * @param y Y coordinate of the ending tile
+	 * @return The distance in tiles, or -1 if either tile was blocked or there is no route
+	 */
+	public int getDistance(int x0, int y0, int x, int y){
+		int a = rankOf(x0, y0), b = rankOf(x, y);
+		if (a < 0 || b < 0) return -1;
+		int d = distance(a, b);
+		return d == UNREACHABLE ? -1 : d;
+	}
+
+	/****
+	 * Get the route between two tiles
+	 *
+	 * @param x0 X coordinate of the starting tile
+	 * @param y0 Y coordinate of the starting tile
+	 * @param x X coordinate of the ending tile
+	 * @param y Y coordinate of the ending tile
+	 * @return The path to follow in tiles, including the starting and ending tiles,
+	 * or null if either tile was blocked or there is no route
+	 */
+	public Path getRoute(int x0, int y0, int x, int y){
+		int a = rankOf(x0, y0), b = rankOf(x, y);
+		if (a < 0 || b < 0 || distance(a, b) == UNREACHABLE) return null;
+
+		Path path = new Path();
+		path.add(new Waypoint(x0, y0));
+		for (int u = tiles[a]; u != tiles[b];){
+			int d = distance(rank[u], b) - 1, ux = u / size, uy = u % size;
+			if (ux > 0 && isCloser(u - size, b, d)) u -= size;
+			else if (ux < size - 1 && isCloser(u + size, b, d)) u += size;
+			else if (uy > 0 && isCloser(u - 1, b, d)) u -= 1;
+			else u += 1;
+			path.add(new Waypoint(u / size, u % size));
+		}
+		return path;
+	}
+
+	private boolean isCloser(int tile, int b, int d){
+		return rank[tile] >= 0 && distance(rank[tile], b) == d;}
+
+	private int rankOf(int x, int y){
+		if (x < 0 || x >= size || y < 0 || y >= size) return -1;
+		return rank[x * size + y];
+	}
+
+	/** Distance between the free tiles of index a and b */
+	private int distance(int a, int b){
+		if (a == b) return 0;
+		if (a > b){ int t = a; a = b; b = t;}
+		return dist[index(a, b)] & 0xFF;
+	}
+
+	/** Index in the triangle of the pair a, b, where a < b */
+	private int index(int a, int b){
+		return a * (2 * tiles.length - a - 1) / 2 + b - a - 1;}
+
+	/****
+	 * Search from every free tile of index <code>first + k * step</code>, writing its
+	 * distance to every tile of a greater index
+	 */
+	private void search(int first, int step){
+		int n = tiles.length;
+		int[] queue = new int[n], d = new int[n];
+		for (int s = first; s < n; s += step){
+			for (int i = 0; i < n; i++) d[i] = UNREACHABLE;
+			d[s] = 0;
+			queue[0] = s;
+			for (int head = 0, tail = 1; head < tail; head++){
+				int u = queue[head], t = tiles[u], x = t / size, y = t % size;
+				if (x > 0) tail = visit(t - size, d[u] + 1, d, queue, tail);
+				if (x < size - 1) tail = visit(t + size, d[u] + 1, d, queue, tail);
+				if (y > 0) tail = visit(t - 1, d[u] + 1, d, queue, tail);
+				if (y < size - 1) tail = visit(t + 1, d[u] + 1, d, queue, tail);
+			}
+			for (int b = s + 1; b < n; b++)
+				dist[index(s, b)] = (byte)d[b];
+		}
+	}
+
+	private int visit(int tile, int distance, int[] d, int[] queue, int tail){
+		int v = rank[tile];
+		if (v < 0 || d[v] != UNREACHABLE) return tail;
+		d[v] = distance;
+		queue[tail] = v;
+		return tail + 1;
+	}
+}